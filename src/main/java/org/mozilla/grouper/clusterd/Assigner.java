@@ -0,0 +1,143 @@
+package org.mozilla.grouper.clusterd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mozilla.grouper.jobs.ClusterIndex;
+import org.mozilla.grouper.model.Cluster;
+import org.mozilla.grouper.model.CollectionRef;
+import org.mozilla.grouper.model.Document;
+import org.mozilla.grouper.model.DocumentRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Assigns new documents to the clusters of their collection, as they come
+ * in. The cluster index of each collection is loaded once and kept in
+ * memory (it is reloaded when the collection has been rebuilt), so that
+ * assigning a batch only costs vectorizing and scoring its documents.
+ *
+ * Results are written asynchronously, in micro-batches.
+ * Instances are thread safe.
+ */
+public class Assigner {
+
+  public
+  Assigner(final Storage storage, final UpdaterOptions options) {
+    storage_ = storage;
+    options_ = options;
+    writer_ = new MembershipWriter(storage, options);
+  }
+
+
+  /**
+   * Assigns documents to clusters, and queues them (and their memberships)
+   * for writing.
+   *
+   * @return The label of the assigned cluster for each document (in input
+   *         order), <tt>null</tt> for documents that are left for the next
+   *         rebuild.
+   */
+  public
+  Map<String, String> assign(final CollectionRef collection,
+                             final List<Document> documents)
+      throws IOException {
+    final Map<String, String> labels = new LinkedHashMap<String, String>();
+    for (final Document doc : documents) labels.put(doc.ref().id(), null);
+
+    final ClusterIndex index = index(collection);
+    final List<Cluster> additions;
+    if (index == null) {
+      additions = new ArrayList<Cluster>();
+    }
+    else {
+      additions = index.assign(documents, new ArrayList<Document>());
+      for (final Cluster cluster : additions) {
+        for (final DocumentRef doc : cluster.relatedDocs()) {
+          labels.put(doc.id(), cluster.ref().label());
+        }
+      }
+    }
+    writer_.add(documents, additions);
+    return labels;
+  }
+
+
+  /** Blocks until all results so far have been written. */
+  public
+  void flush() throws InterruptedException {
+    writer_.flush();
+  }
+
+
+  /** Writes pending results. The assigner cannot be used afterwards. */
+  public
+  void close() {
+    writer_.close();
+  }
+
+
+  /**
+   * The index of a collection, (re-)loaded if there was a rebuild since it
+   * was last checked, and dropped if the collection was reset since. Lookups
+   * for different collections do not block each other.
+   */
+  private
+  ClusterIndex index(final CollectionRef collection) throws IOException {
+    final String key = collection.namespace() + "/" + collection.key();
+    Entry entry;
+    synchronized (entries_) {
+      entry = entries_.get(key);
+      if (entry == null) {
+        entry = new Entry();
+        entries_.put(key, entry);
+      }
+    }
+
+    synchronized (entry) {
+      final long now = System.currentTimeMillis();
+      if (entry.checked_ != 0
+          && now - entry.checked_ < options_.refreshMillis()) {
+        return entry.index_;
+      }
+      final Long rebuilt = storage_.rebuilt(collection);
+      if (rebuilt == null && entry.index_ != null) {
+        entry.index_ = null;
+        log.info(String.format("Dropped the clusters of %s (reset).", key));
+      }
+      else if (rebuilt != null && !rebuilt.equals(entry.rebuilt_)) {
+        entry.index_ = storage_.load(collection, options_.assignThreshold());
+        log.info(String.format(
+            "Loaded %d clusters of %s (rebuilt %d). Took %dms.",
+            entry.index_ == null ? 0 : entry.index_.size(), key,
+            rebuilt.longValue(), System.currentTimeMillis() - now));
+      }
+      entry.rebuilt_ = rebuilt;
+      entry.checked_ = now;
+      return entry.index_;
+    }
+  }
+
+
+  /** The in-memory state of a collection. */
+  private static
+  class Entry {
+    ClusterIndex index_ = null;
+    Long rebuilt_ = null;
+    long checked_ = 0;
+  }
+
+
+  private static final Logger log = LoggerFactory.getLogger(Assigner.class);
+
+  private final Storage storage_;
+  private final UpdaterOptions options_;
+  private final MembershipWriter writer_;
+  private final Map<String, Entry> entries_ = new HashMap<String, Entry>();
+
+}
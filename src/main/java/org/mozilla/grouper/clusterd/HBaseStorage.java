@@ -0,0 +1,57 @@
+package org.mozilla.grouper.clusterd;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.mozilla.grouper.conf.Conf;
+import org.mozilla.grouper.hbase.Factory;
+import org.mozilla.grouper.jobs.ClusterIndex;
+import org.mozilla.grouper.jobs.DictionaryLoader;
+import org.mozilla.grouper.model.Cluster;
+import org.mozilla.grouper.model.Collection;
+import org.mozilla.grouper.model.Collection.Attribute;
+import org.mozilla.grouper.model.CollectionRef;
+import org.mozilla.grouper.model.Document;
+
+
+/** The storage of a Grouperfish installation. */
+public class HBaseStorage implements Storage {
+
+  public
+  HBaseStorage(final Conf conf, final Configuration hadoopConf) {
+    conf_ = conf;
+    factory_ = new Factory(conf);
+    dictionaries_ = new DictionaryLoader(conf, hadoopConf);
+  }
+
+
+  @Override public
+  Long rebuilt(final CollectionRef collection) throws IOException {
+    final Collection c =
+      factory_.get(Collection.class, factory_.keys().key(collection));
+    return c == null ? null : c.get(Attribute.REBUILT);
+  }
+
+
+  @Override public
+  ClusterIndex load(final CollectionRef collection, final double threshold)
+      throws IOException {
+    return ClusterIndex.load(conf_, dictionaries_, collection, threshold);
+  }
+
+
+  @Override public
+  void write(final List<Document> documents, final List<Cluster> additions)
+      throws IOException {
+    factory_.importer(Document.class).put(documents);
+    factory_.importer(Cluster.class).put(additions);
+  }
+
+
+  private final Conf conf_;
+  private final Factory factory_;
+  /** Indexes are reloaded after each rebuild, dictionaries only once. */
+  private final DictionaryLoader dictionaries_;
+
+}
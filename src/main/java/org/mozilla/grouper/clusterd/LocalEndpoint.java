@@ -0,0 +1,154 @@
+package org.mozilla.grouper.clusterd;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.mozilla.grouper.conf.Conf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Serves the {@link Updater} API from the JDK http server, so the updater
+ * can be run (and tested) without a servlet container.
+ */
+public class LocalEndpoint {
+
+  /** @param port The port to listen on (0: any free port). */
+  public
+  LocalEndpoint(final Assigner assigner, final int port) throws IOException {
+    assigner_ = assigner;
+    server_ = HttpServer.create(new InetSocketAddress(port), 0);
+    server_.createContext(PATH, new HttpHandler() {
+      @Override public
+      void handle(final HttpExchange exchange) throws IOException {
+        LocalEndpoint.this.handle(exchange);
+      }
+    });
+    executor_ = Executors.newCachedThreadPool();
+    server_.setExecutor(executor_);
+    server_.start();
+  }
+
+
+  public
+  int port() {
+    return server_.getAddress().getPort();
+  }
+
+
+  /** Stops serving. The assigner is not closed. */
+  public
+  void stop() {
+    server_.stop(0);
+    executor_.shutdown();
+  }
+
+
+  private
+  void handle(final HttpExchange exchange) throws IOException {
+    int status = 200;
+    String body;
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        status = 405;
+        body = "POST required.";
+      }
+      else {
+        final Map<String, String> params =
+          params(exchange.getRequestURI().getRawQuery());
+        body = Updater.update(
+            assigner_,
+            params.get(Updater.PARAM_NAMESPACE),
+            params.get(Updater.PARAM_COLLECTION),
+            new InputStreamReader(exchange.getRequestBody(), UTF8));
+      }
+    }
+    catch (IllegalArgumentException e) {
+      status = 400;
+      body = e.getMessage();
+    }
+    catch (Exception e) {
+      log.error("Error handling update.", e);
+      status = 500;
+      body = String.valueOf(e);
+    }
+
+    final byte[] bytes = body.getBytes(UTF8);
+    exchange.getResponseHeaders().set(
+        "Content-Type", status == 200 ? "application/json" : "text/plain");
+    exchange.sendResponseHeaders(status, bytes.length);
+    final OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(bytes);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+
+  private static
+  Map<String, String> params(final String query)
+      throws UnsupportedEncodingException {
+    final Map<String, String> params = new HashMap<String, String>();
+    if (query == null) return params;
+    for (final String param : query.split("&")) {
+      final int eq = param.indexOf('=');
+      if (eq == -1) continue;
+      params.put(URLDecoder.decode(param.substring(0, eq), UTF8),
+                 URLDecoder.decode(param.substring(eq + 1), UTF8));
+    }
+    return params;
+  }
+
+
+  /**
+   * Runs the updater against the configured HBase.
+   * Usage: LocalEndpoint [--config PATH] [PORT]
+   */
+  public static
+  void main(final String[] args) throws IOException {
+    String configPath = null;
+    int port = DEFAULT_PORT;
+    int i = 0;
+    if (args.length > 1 && "--config".equals(args[0])) {
+      configPath = args[1];
+      i = 2;
+    }
+    if (args.length > i) port = Integer.parseInt(args[i]);
+
+    final Conf conf = new org.mozilla.grouper.conf.Factory().conf(configPath);
+    final Assigner assigner =
+      new Assigner(new HBaseStorage(conf, new Configuration()),
+                   new UpdaterOptions(conf));
+    final LocalEndpoint endpoint = new LocalEndpoint(assigner, port);
+    log.info("Serving {} on port {}", PATH, endpoint.port());
+  }
+
+
+  private static final Logger log =
+    LoggerFactory.getLogger(LocalEndpoint.class);
+
+  private static final String PATH = "/update";
+  private static final String UTF8 = "UTF-8";
+  private static final int DEFAULT_PORT = 8081;
+
+  private final Assigner assigner_;
+  private final HttpServer server_;
+  private final ExecutorService executor_;
+
+}
@@ -0,0 +1,146 @@
+package org.mozilla.grouper.clusterd;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.grouper.model.Cluster;
+import org.mozilla.grouper.model.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Writes documents and new cluster members in micro-batches: Requests only
+ * queue their results, a background thread writes them once enough are
+ * pending or the oldest one has waited for the flush interval.
+ *
+ * Failed batches are logged and dropped. The documents are picked up again
+ * by the next rebuild (or by {@link org.mozilla.grouper.jobs.AssignDocuments})
+ * if they were stored by the REST service.
+ */
+final class MembershipWriter {
+
+  MembershipWriter(final Storage storage, final UpdaterOptions options) {
+    storage_ = storage;
+    batchSize_ = options.batchSize();
+    flushMillis_ = options.flushMillis();
+    thread_ = new Thread("clusterd-writer") {
+      @Override public
+      void run() { writeLoop(); }
+    };
+    thread_.setDaemon(true);
+    thread_.start();
+  }
+
+
+  /** Queues the results of a request. */
+  synchronized
+  void add(final List<Document> documents, final List<Cluster> additions) {
+    if (closed_) throw new IllegalStateException("Writer is closed.");
+    if (documents_.isEmpty()) oldest_ = System.currentTimeMillis();
+    documents_.addAll(documents);
+    additions_.addAll(additions);
+    notifyAll();
+  }
+
+
+  /** Blocks until everything that was queued so far has been written. */
+  synchronized
+  void flush() throws InterruptedException {
+    final long target = queued_ + documents_.size();
+    if (!documents_.isEmpty()) {
+      forceFlush_ = true;
+      notifyAll();
+    }
+    while (written_ < target && thread_.isAlive()) wait();
+  }
+
+
+  /** Writes what is pending, and stops the background thread. */
+  void close() {
+    synchronized (this) {
+      closed_ = true;
+      notifyAll();
+    }
+    try {
+      thread_.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  private
+  void writeLoop() {
+    while (true) {
+      final List<Document> documents;
+      final List<Cluster> additions;
+      synchronized (this) {
+        try {
+          while (!ready()) {
+            if (documents_.isEmpty()) wait();
+            else wait(Math.max(1, oldest_ + flushMillis_
+                                  - System.currentTimeMillis()));
+          }
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+        if (documents_.isEmpty() && closed_) return;
+        documents = documents_;
+        additions = additions_;
+        documents_ = new ArrayList<Document>();
+        additions_ = new ArrayList<Cluster>();
+        queued_ += documents.size();
+        forceFlush_ = false;
+      }
+
+      final long ts = System.currentTimeMillis();
+      try {
+        storage_.write(documents, additions);
+        log.debug(String.format(
+            "Wrote %d documents, %d cluster additions. Took %dms.",
+            documents.size(), additions.size(),
+            System.currentTimeMillis() - ts));
+      }
+      catch (Exception e) {
+        log.error(String.format("Could not write batch of %d documents.",
+                                documents.size()), e);
+      }
+
+      synchronized (this) {
+        written_ += documents.size();
+        notifyAll();
+      }
+    }
+  }
+
+
+  /** Whether the pending writes should be written now. */
+  private
+  boolean ready() {
+    if (closed_) return true;
+    if (documents_.isEmpty()) return false;
+    return forceFlush_ || documents_.size() >= batchSize_
+        || System.currentTimeMillis() - oldest_ >= flushMillis_;
+  }
+
+
+  private static final Logger log =
+    LoggerFactory.getLogger(MembershipWriter.class);
+
+  private final Storage storage_;
+  private final int batchSize_;
+  private final long flushMillis_;
+  private final Thread thread_;
+
+  private List<Document> documents_ = new ArrayList<Document>();
+  private List<Cluster> additions_ = new ArrayList<Cluster>();
+  private long oldest_ = 0;
+  private long queued_ = 0;
+  private long written_ = 0;
+  private boolean forceFlush_ = false;
+  private boolean closed_ = false;
+
+}
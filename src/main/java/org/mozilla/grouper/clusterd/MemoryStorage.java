@@ -0,0 +1,121 @@
+package org.mozilla.grouper.clusterd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.mahout.math.Vector;
+import org.mozilla.grouper.jobs.ClusterIndex;
+import org.mozilla.grouper.jobs.Dictionary;
+import org.mozilla.grouper.model.Cluster;
+import org.mozilla.grouper.model.ClusterRef;
+import org.mozilla.grouper.model.CollectionRef;
+import org.mozilla.grouper.model.Document;
+
+
+/**
+ * Keeps everything in memory: A stand-in for the database, to run and test
+ * the updater locally. Rebuilds are simulated using {@link #rebuild} (and
+ * resets using {@link #reset}).
+ */
+public class MemoryStorage implements Storage {
+
+  /**
+   * Replaces the clusters of a collection.
+   * @param clusters The clusters, with their medoid vectorized (using the
+   *                 dictionary).
+   */
+  public synchronized
+  void rebuild(final CollectionRef collection,
+               final long timestamp,
+               final Dictionary dictionary,
+               final List<Cluster> clusters) {
+    rebuilds_.put(key(collection), new Rebuild(timestamp, dictionary,
+                                               clusters));
+  }
+
+
+  /** Forgets the clusters of a collection, as if it was never rebuilt. */
+  public synchronized
+  void reset(final CollectionRef collection) {
+    rebuilds_.remove(key(collection));
+  }
+
+
+  /** All documents that were written so far. */
+  public synchronized
+  List<Document> documents() {
+    return new ArrayList<Document>(documents_);
+  }
+
+
+  /** All cluster additions that were written so far. */
+  public synchronized
+  List<Cluster> additions() {
+    return new ArrayList<Cluster>(additions_);
+  }
+
+
+  /** The number of calls to {@link #write}. */
+  public synchronized
+  int writes() {
+    return writes_;
+  }
+
+
+  @Override public synchronized
+  Long rebuilt(final CollectionRef collection) {
+    final Rebuild rebuild = rebuilds_.get(key(collection));
+    return rebuild == null ? null : Long.valueOf(rebuild.timestamp_);
+  }
+
+
+  @Override public synchronized
+  ClusterIndex load(final CollectionRef collection, final double threshold) {
+    final Rebuild rebuild = rebuilds_.get(key(collection));
+    if (rebuild == null) return null;
+    final List<ClusterRef> refs = new ArrayList<ClusterRef>();
+    final List<Vector> medoids = new ArrayList<Vector>();
+    for (final Cluster cluster : rebuild.clusters_) {
+      refs.add(cluster.ref());
+      medoids.add(cluster.medoid());
+    }
+    return new ClusterIndex(rebuild.dictionary_, refs, medoids, threshold);
+  }
+
+
+  @Override public synchronized
+  void write(final List<Document> documents, final List<Cluster> additions) {
+    documents_.addAll(documents);
+    additions_.addAll(additions);
+    ++writes_;
+  }
+
+
+  private static
+  String key(final CollectionRef collection) {
+    return collection.namespace() + "/" + collection.key();
+  }
+
+
+  private static
+  class Rebuild {
+    Rebuild(final long timestamp, final Dictionary dictionary,
+            final List<Cluster> clusters) {
+      timestamp_ = timestamp;
+      dictionary_ = dictionary;
+      clusters_ = clusters;
+    }
+    final long timestamp_;
+    final Dictionary dictionary_;
+    final List<Cluster> clusters_;
+  }
+
+
+  private final Map<String, Rebuild> rebuilds_ = new HashMap<String, Rebuild>();
+  private final List<Document> documents_ = new ArrayList<Document>();
+  private final List<Cluster> additions_ = new ArrayList<Cluster>();
+  private int writes_ = 0;
+
+}
@@ -0,0 +1,40 @@
+package org.mozilla.grouper.clusterd;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.mozilla.grouper.jobs.ClusterIndex;
+import org.mozilla.grouper.model.Cluster;
+import org.mozilla.grouper.model.CollectionRef;
+import org.mozilla.grouper.model.Document;
+
+
+/**
+ * What the updater needs from the database: The clusters of the last
+ * rebuild, and a way to write documents and new cluster members.
+ */
+public interface Storage {
+
+  /**
+   * @return The time of the last rebuild of the collection, or
+   *         <tt>null</tt> if it was never rebuilt.
+   */
+  Long rebuilt(CollectionRef collection) throws IOException;
+
+
+  /**
+   * Loads the clusters of the last rebuild.
+   * @return <tt>null</tt> if the collection was never rebuilt.
+   */
+  ClusterIndex load(CollectionRef collection, double threshold)
+      throws IOException;
+
+
+  /**
+   * Writes a (small) batch of documents and cluster additions, as produced
+   * by {@link ClusterIndex#assign}.
+   */
+  void write(List<Document> documents, List<Cluster> additions)
+      throws IOException;
+
+}
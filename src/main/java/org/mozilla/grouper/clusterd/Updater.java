@@ -0,0 +1,170 @@
+package org.mozilla.grouper.clusterd;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.hadoop.conf.Configuration;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.mozilla.grouper.conf.Conf;
+import org.mozilla.grouper.model.CollectionRef;
+import org.mozilla.grouper.model.Document;
+import org.mozilla.grouper.model.DocumentRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Incremental clustering service: Assigns batches of new documents to the
+ * existing clusters of their collection, without waiting for a rebuild.
+ *
+ * <pre>
+ * POST /update?namespace=NS&amp;collection=CK
+ * [{"id": "123", "text": "..."}, ...]
+ * </pre>
+ *
+ * The response has the cluster label for each assigned document, and the
+ * ids of those that were not similar enough to any cluster:
+ * <tt>{"assigned": {"123": "456"}, "unassigned": ["124"]}</tt>.
+ *
+ * Documents and memberships are written to HBase in the background, see
+ * {@link Assigner}. The servlet init-parameter <tt>config</tt> may point to
+ * the Grouperfish configuration.
+ */
+public class Updater extends HttpServlet {
+
+  @Override public
+  void init() throws ServletException {
+    final Conf conf = new org.mozilla.grouper.conf.Factory().conf(
+        getInitParameter(INIT_PARAM_CONFIG));
+    assigner_ = new Assigner(new HBaseStorage(conf, new Configuration()),
+                             new UpdaterOptions(conf));
+  }
+
+
+  @Override public
+  void destroy() {
+    assigner_.close();
+  }
+
+
+  @Override protected
+  void doPost(final HttpServletRequest request,
+              final HttpServletResponse response)
+      throws ServletException, IOException {
+    final String result;
+    try {
+      result = update(assigner_,
+                      request.getParameter(PARAM_NAMESPACE),
+                      request.getParameter(PARAM_COLLECTION),
+                      request.getReader());
+    }
+    catch (IllegalArgumentException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.getWriter().write(result);
+  }
+
+
+  /**
+   * Handles an update request (shared with {@link LocalEndpoint}).
+   * @return The JSON response.
+   * @throws IllegalArgumentException If the request is malformed.
+   */
+  static
+  String update(final Assigner assigner,
+                final String namespace,
+                final String collectionKey,
+                final Reader body) throws IOException {
+    if (namespace == null || collectionKey == null) {
+      throw new IllegalArgumentException(String.format(
+          "Parameters '%s' and '%s' are required.",
+          PARAM_NAMESPACE, PARAM_COLLECTION));
+    }
+    final CollectionRef collection =
+      new CollectionRef(namespace, collectionKey);
+
+    final long ts = System.currentTimeMillis();
+    final List<Document> documents = parse(collection, body);
+    final Map<String, String> labels = assigner.assign(collection, documents);
+
+    final Map<String, String> assigned = new HashMap<String, String>();
+    final List<String> unassigned = new ArrayList<String>();
+    for (final Map.Entry<String, String> label : labels.entrySet()) {
+      if (label.getValue() == null) unassigned.add(label.getKey());
+      else assigned.put(label.getKey(), label.getValue());
+    }
+    log.debug(String.format(
+        "Assigned %d of %d documents of %s/%s. Took %dms.",
+        assigned.size(), documents.size(), namespace, collectionKey,
+        System.currentTimeMillis() - ts));
+
+    final Map<String, Object> result = new HashMap<String, Object>();
+    result.put(KEY_ASSIGNED, assigned);
+    result.put(KEY_UNASSIGNED, unassigned);
+    return JSONValue.toJSONString(result);
+  }
+
+
+  private static
+  List<Document> parse(final CollectionRef collection, final Reader body)
+      throws IOException {
+    final Object json;
+    try {
+      json = new JSONParser().parse(body);
+    }
+    catch (ParseException e) {
+      throw new IllegalArgumentException("Invalid JSON: " + e);
+    }
+    if (!(json instanceof List)) {
+      throw new IllegalArgumentException("Expected a list of documents.");
+    }
+
+    final List<Document> documents = new ArrayList<Document>();
+    for (final Object item : (List<?>) json) {
+      if (!(item instanceof Map)) {
+        throw new IllegalArgumentException("Expected a document object.");
+      }
+      final Object id = ((Map<?, ?>) item).get(KEY_ID);
+      final Object text = ((Map<?, ?>) item).get(KEY_TEXT);
+      if (id == null || !(text instanceof String)
+          || ((String) text).length() == 0) {
+        throw new IllegalArgumentException(String.format(
+            "Documents must have '%s' and a non-empty '%s'.",
+            KEY_ID, KEY_TEXT));
+      }
+      documents.add(new Document(new DocumentRef(collection, id.toString()),
+                                 (String) text));
+    }
+    return documents;
+  }
+
+
+  private static final Logger log = LoggerFactory.getLogger(Updater.class);
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String INIT_PARAM_CONFIG = "config";
+  static final String PARAM_NAMESPACE = "namespace";
+  static final String PARAM_COLLECTION = "collection";
+  private static final String KEY_ID = "id";
+  private static final String KEY_TEXT = "text";
+  private static final String KEY_ASSIGNED = "assigned";
+  private static final String KEY_UNASSIGNED = "unassigned";
+
+  private Assigner assigner_;
+
+}
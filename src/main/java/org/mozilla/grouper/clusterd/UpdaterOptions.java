@@ -0,0 +1,95 @@
+package org.mozilla.grouper.clusterd;
+
+import org.mozilla.grouper.conf.Conf;
+import org.mozilla.grouper.conf.OptionalKeys;
+import org.mozilla.grouper.jobs.textcluster.TextClusterOptions;
+
+
+/**
+ * Settings of the updater service.
+ *
+ * All values are optional in the Grouperfish configuration (given as
+ * strings). Defaults are used for missing keys.
+ */
+public class UpdaterOptions {
+
+  /** Use the defaults. */
+  public
+  UpdaterOptions() { }
+
+
+  /** Read options from the Grouperfish configuration. */
+  public
+  UpdaterOptions(final Conf conf) {
+    assignThreshold(new TextClusterOptions(conf).assignThreshold());
+    refreshMillis(SECOND * OptionalKeys.intValue(
+        conf, CONF_REFRESH, (int) (refreshMillis_ / SECOND)));
+    batchSize(OptionalKeys.intValue(conf, CONF_BATCH_SIZE, batchSize_));
+    flushMillis(OptionalKeys.intValue(conf, CONF_FLUSH, (int) flushMillis_));
+  }
+
+
+  /** @see TextClusterOptions#assignThreshold() */
+  public
+  double assignThreshold() { return assignThreshold_; }
+
+
+  public
+  UpdaterOptions assignThreshold(final double assignThreshold) {
+    assignThreshold_ = assignThreshold;
+    return this;
+  }
+
+
+  /**
+   * How long an in-memory index is used before checking whether the
+   * collection was rebuilt in the meantime. Configured in seconds.
+   */
+  public
+  long refreshMillis() { return refreshMillis_; }
+
+
+  public
+  UpdaterOptions refreshMillis(final long refreshMillis) {
+    refreshMillis_ = Math.max(0, refreshMillis);
+    return this;
+  }
+
+
+  /** Number of documents after which pending writes are flushed. */
+  public
+  int batchSize() { return batchSize_; }
+
+
+  public
+  UpdaterOptions batchSize(final int batchSize) {
+    batchSize_ = Math.max(1, batchSize);
+    return this;
+  }
+
+
+  /** Maximum time that writes are held back to be batched. */
+  public
+  long flushMillis() { return flushMillis_; }
+
+
+  public
+  UpdaterOptions flushMillis(final long flushMillis) {
+    flushMillis_ = Math.max(1, flushMillis);
+    return this;
+  }
+
+
+  private static final String CONF_REFRESH =
+    "worker:clusterd:refresh-seconds";
+  private static final String CONF_BATCH_SIZE = "worker:clusterd:batch-size";
+  private static final String CONF_FLUSH = "worker:clusterd:flush-ms";
+
+  private static final long SECOND = 1000;
+
+  private double assignThreshold_ = new TextClusterOptions().assignThreshold();
+  private long refreshMillis_ = 60 * SECOND;
+  private int batchSize_ = 500;
+  private long flushMillis_ = 200;
+
+}
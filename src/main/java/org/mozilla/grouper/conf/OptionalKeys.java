@@ -0,0 +1,49 @@
+package org.mozilla.grouper.conf;
+
+
+/**
+ * Lookups of settings that may be missing from the configuration, in which
+ * case a default is used. Composite configurations consider missing keys
+ * fatal, so optional settings must be looked up here.
+ */
+public final class OptionalKeys {
+
+  /** @return The value of the key, or <tt>null</tt> if it is missing. */
+  public static
+  String get(final Conf conf, final String key) {
+    try {
+      return conf.get(key);
+    }
+    catch (IllegalStateException missing) {
+      return null;
+    }
+  }
+
+
+  public static
+  boolean booleanValue(final Conf conf, final String key,
+                       final boolean defaultValue) {
+    final String value = get(conf, key);
+    return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+  }
+
+
+  public static
+  double doubleValue(final Conf conf, final String key,
+                     final double defaultValue) {
+    final String value = get(conf, key);
+    return value == null ? defaultValue : Double.parseDouble(value.trim());
+  }
+
+
+  public static
+  int intValue(final Conf conf, final String key, final int defaultValue) {
+    final String value = get(conf, key);
+    return value == null ? defaultValue : Integer.parseInt(value.trim());
+  }
+
+
+  private
+  OptionalKeys() { }
+
+}
@@ -1,13 +1,20 @@
 package org.mozilla.grouper.hbase;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.Vector;
 import org.mozilla.grouper.base.Assert;
 import org.mozilla.grouper.hbase.Schema.Clusters;
 import org.mozilla.grouper.hbase.Schema.Documents;
 import org.mozilla.grouper.model.Cluster;
+import org.mozilla.grouper.model.ClusterRef;
 import org.mozilla.grouper.model.Collection;
 import org.mozilla.grouper.model.CollectionRef;
 import org.mozilla.grouper.model.Document;
@@ -86,9 +93,48 @@ class Adapters {
       return factory_.keys().key(cluster);
     }
 
+    /**
+     * Vectors are not stored with clusters: Medoid and members are
+     * represented by empty named vectors, that only carry the document ids.
+     */
     @Override public
     Cluster read(Result next) {
-      return Assert.unreachable(Cluster.class, "Not implemented.");
+      final String namespace = string(next, Clusters.Main.NAMESPACE.qualifier);
+      final String key = string(next, Clusters.Main.KEY.qualifier);
+      final long rebuildTs = Bytes.toLong(
+          next.getValue(Clusters.Main.FAMILY,
+                        Clusters.Main.TIMESTAMP.qualifier));
+      final String label = string(next, Clusters.Main.LABEL.qualifier);
+      final ClusterRef ref =
+        new ClusterRef(new CollectionRef(namespace, key), rebuildTs, label);
+
+      // The medoid is the document used as label.
+      Vector medoid = null;
+      final List<Vector> related = new ArrayList<Vector>();
+      final List<Double> similarities = new ArrayList<Double>();
+      final Map<byte[], byte[]> documents =
+        next.getFamilyMap(Clusters.Documents.FAMILY);
+      for (final Map.Entry<byte[], byte[]> doc : documents.entrySet()) {
+        final String id = Bytes.toString(doc.getKey());
+        if (id.equals(label)) {
+          medoid = document(id);
+          continue;
+        }
+        related.add(document(id));
+        similarities.add(Double.valueOf(Bytes.toString(doc.getValue())));
+      }
+      if (medoid == null) medoid = document(label);
+      return new Cluster(ref, medoid, related, similarities);
+    }
+
+    private static
+    String string(final Result row, final byte[] qualifier) {
+      return Bytes.toString(row.getValue(Clusters.Main.FAMILY, qualifier));
+    }
+
+    private static
+    Vector document(final String id) {
+      return new NamedVector(new DenseVector(0), id);
     }
   }
 
@@ -126,7 +172,16 @@ class Adapters {
 
     @Override public
     Document read(Result next) {
-      return Assert.unreachable(Document.class, "Not implemented.");
+      final CollectionRef owner = new CollectionRef(
+          Bytes.toString(next.getValue(Documents.Main.FAMILY,
+                                       Documents.Main.NAMESPACE.qualifier)),
+          Bytes.toString(next.getValue(Documents.Main.FAMILY,
+                                       Documents.Main.COLLECTION_KEY.qualifier)));
+      final String id = Bytes.toString(
+          next.getValue(Documents.Main.FAMILY, Documents.Main.ID.qualifier));
+      final String text = Bytes.toString(
+          next.getValue(Documents.Main.FAMILY, Documents.Main.TEXT.qualifier));
+      return new Document(new DocumentRef(owner, id), text);
     }
   }
 }
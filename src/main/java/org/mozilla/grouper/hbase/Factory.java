@@ -1,21 +1,33 @@
 package org.mozilla.grouper.hbase;
 
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableFactory;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.HTableInterfaceFactory;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.mozilla.grouper.base.Assert;
 import org.mozilla.grouper.conf.Conf;
+import org.mozilla.grouper.hbase.Schema.Collections.Processing;
 import org.mozilla.grouper.hbase.keys.Keys;
 import org.mozilla.grouper.hbase.keys.ReversePartsKeys;
 import org.mozilla.grouper.hbase.keys.SimpleKeys;
 import org.mozilla.grouper.model.Cluster;
 import org.mozilla.grouper.model.Collection;
+import org.mozilla.grouper.model.CollectionRef;
 import org.mozilla.grouper.model.Document;
 import org.mozilla.grouper.model.Model;
 
@@ -62,6 +74,153 @@ public class Factory {
     return new Source<T>(this, model);
   }
 
+
+  /** Reads the model objects matched by a scan (e.g. by key prefix). */
+  public <T extends Model>
+  Iterable<T> source(Class<T> model, Scan scan) {
+    return new Source<T>(this, model, scan);
+  }
+
+
+  /** @return The model object with the given key, or <tt>null</tt>. */
+  public <T extends Model>
+  T get(Class<T> model, String key) throws IOException {
+    final HTableInterface table = table(model);
+    try {
+      final Result result = table.get(new Get(Bytes.toBytes(key)));
+      if (result.isEmpty()) return null;
+      return Adapters.create(this, model).read(result);
+    }
+    finally {
+      release(table);
+    }
+  }
+
+  /**
+   * Stores processing data of a collection (for example its dictionary),
+   * as of the given time: Each rebuild has its own version of the cell.
+   */
+  public
+  void putProcessing(final CollectionRef collection,
+                     final Processing column,
+                     final long timestamp,
+                     final byte[] value) throws IOException {
+    final HTableInterface table = table(Collection.class);
+    try {
+      table.put(new Put(Bytes.toBytes(keys().key(collection)))
+                .add(Processing.FAMILY, column.qualifier, timestamp, value));
+    }
+    finally {
+      release(table);
+    }
+  }
+
+
+  /**
+   * @return The latest processing data stored up to the given time (see
+   *         {@link #putProcessing}), or <tt>null</tt>. The timestamp of the
+   *         cell tells which rebuild stored it.
+   */
+  public
+  KeyValue getProcessing(final CollectionRef collection,
+                         final Processing column,
+                         final long timestamp) throws IOException {
+    final HTableInterface table = table(Collection.class);
+    try {
+      final Get get = new Get(Bytes.toBytes(keys().key(collection)));
+      get.addColumn(Processing.FAMILY, column.qualifier);
+      get.setTimeRange(0, timestamp + 1);
+      final Result result = table.get(get);
+      if (result.isEmpty()) return null;
+      return result.getColumnLatest(Processing.FAMILY, column.qualifier);
+    }
+    finally {
+      release(table);
+    }
+  }
+
+
+  /**
+   * Scans the rows of a model, including columns that the model does not
+   * know about (such as processing data). Close the scanner when done,
+   * which also releases its table.
+   */
+  public
+  ResultScanner scanner(final Class<?> model, final Scan scan)
+      throws IOException {
+    final HTableInterface table = table(model);
+    final ResultScanner scanner;
+    try {
+      scanner = table.getScanner(scan);
+    }
+    catch (IOException e) {
+      release(table);
+      throw e;
+    }
+    return new ResultScanner() {
+      @Override public
+      Result next() throws IOException {
+        return scanner.next();
+      }
+
+      @Override public
+      Result[] next(final int nbRows) throws IOException {
+        return scanner.next(nbRows);
+      }
+
+      @Override public
+      Iterator<Result> iterator() {
+        return scanner.iterator();
+      }
+
+      @Override public
+      void close() {
+        if (closed_) return;
+        closed_ = true;
+        try {
+          scanner.close();
+        }
+        finally {
+          release(table);
+        }
+      }
+
+      private boolean closed_ = false;
+    };
+  }
+
+
+  /**
+   * Writes columns that the model does not know about (such as processing
+   * data) to the table of a model.
+   */
+  public
+  void put(final Class<?> model, final List<Put> puts) throws IOException {
+    final HTableInterface table = table(model);
+    try {
+      table.put(puts);
+      table.flushCommits();
+    }
+    finally {
+      release(table);
+    }
+  }
+
+
+  /** Deletes cells (for example processing data) of the rows of a model. */
+  public
+  void delete(final Class<?> model, final List<Delete> deletes)
+      throws IOException {
+    final HTableInterface table = table(model);
+    try {
+      table.delete(deletes);
+    }
+    finally {
+      release(table);
+    }
+  }
+
+
   /** Row keys that must be in sync with those used by the REST service. */
   public
   Keys keys() {
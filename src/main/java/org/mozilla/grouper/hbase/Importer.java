@@ -75,6 +75,32 @@ public class Importer<T extends Model> {
   }
 
 
+  /**
+   * Writes a small batch from the calling thread, without starting workers.
+   * Returns once the batch has been flushed. Items without a row (such as
+   * documents without text) are skipped.
+   */
+  public
+  void put(List<T> items) throws IOException {
+    if (items.isEmpty()) return;
+    final RowAdapter<T> adapter = Adapters.create(factory_, model_);
+    final List<Put> batch = new ArrayList<Put>(items.size());
+    for (T item : items) {
+      final Put put = adapter.put(item);
+      if (put != null) batch.add(put);
+    }
+    if (batch.isEmpty()) return;
+    final HTableInterface table = factory_.table(model_);
+    try {
+      table.put(batch);
+      table.flushCommits();
+    }
+    finally {
+      factory_.release(table);
+    }
+  }
+
+
   /**
    * So there is this factory where all workers do is running and then relax at
    * the pool, and where all clients must wait in a queue.
@@ -156,7 +182,8 @@ public class Importer<T extends Model> {
       if (items_.size() == 0) return;
       List<Put> batch = new ArrayList<Put>(items_.size());
       for (T item : items_) {
-        batch.add(adapter_.put(item));
+        final Put put = adapter_.put(item);
+        if (put != null) batch.add(put);
       }
       try {
         table_.get().put(batch);
@@ -173,7 +200,8 @@ public class Importer<T extends Model> {
 
   private static final Logger log = LoggerFactory.getLogger(Importer.class);
 
-  private static final int BATCH_SIZE = 1000;
+  /** Number of rows that are written at once. */
+  public static final int BATCH_SIZE = 1000;
 
   private final Factory factory_;
   private final Class<T> model_;
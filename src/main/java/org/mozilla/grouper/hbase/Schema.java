@@ -33,7 +33,9 @@ public abstract class Schema {
     public static
     enum Processing {
       ID,
+      /** Term counts, that the IDF is applied to. */
       VECTOR_IDF,
+      /** The normalized tf-idf vector. */
       VECTOR_TFIDF;
 
       public byte[] qualifier = asQualifier(this);
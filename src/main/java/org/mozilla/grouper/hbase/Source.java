@@ -20,9 +20,16 @@ public class Source<T extends Model> implements Iterable<T> {
 
   public
   Source(final Factory factory, final Class<T> model) {
+    this(factory, model, new Scan());
+  }
+
+
+  public
+  Source(final Factory factory, final Class<T> model, final Scan scan) {
     model_ = model;
     factory_ = factory;
     table_ = factory.table(model);
+    scan_ = scan;
   }
 
 
@@ -30,7 +37,7 @@ public class Source<T extends Model> implements Iterable<T> {
   Iterator<T> iterator() {
     try {
       return new ModelIterator<T>(Adapters.create(factory_, model_),
-                                 table_.getScanner(new Scan()));
+                                 table_.getScanner(scan_));
     }
     catch (IOException e) {
       e.printStackTrace();
@@ -71,5 +78,6 @@ public class Source<T extends Model> implements Iterable<T> {
   private final Factory factory_;
   private final Class<T> model_;
   private final HTableInterface table_;
+  private final Scan scan_;
 
 }
@@ -27,7 +27,8 @@ public abstract class Keys {
 
   public
   String clustersPrefix(String ns, String ck, long rebuildTS) {
-    return cluster(ns, ck, rebuildTS, null) + '/';
+    // An empty label leaves the trailing separator.
+    return cluster(ns, ck, rebuildTS, "");
   }
 
 
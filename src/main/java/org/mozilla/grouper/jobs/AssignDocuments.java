@@ -0,0 +1,90 @@
+package org.mozilla.grouper.jobs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.mozilla.grouper.conf.Conf;
+import org.mozilla.grouper.hbase.Factory;
+import org.mozilla.grouper.jobs.textcluster.TextClusterOptions;
+import org.mozilla.grouper.model.Cluster;
+import org.mozilla.grouper.model.Collection;
+import org.mozilla.grouper.model.Collection.Attribute;
+import org.mozilla.grouper.model.CollectionRef;
+import org.mozilla.grouper.model.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Incremental processing: Assigns the documents that were added since the
+ * collection was last processed to the clusters of the last rebuild.
+ *
+ * Documents are vectorized with the dictionary of the last rebuild, and
+ * added to the cluster with the most similar medoid. Documents that are not
+ * similar enough to any cluster are left for the next rebuild.
+ */
+public class AssignDocuments extends AbstractCollectionTool {
+
+  public
+  AssignDocuments(Conf conf, Configuration hadoopConf) {
+    super(conf, hadoopConf);
+  }
+
+
+  @Override public
+  String name() { return NAME; }
+
+
+  @Override public
+  int run(CollectionRef collection, long timestamp) throws Exception {
+    final Factory factory = new Factory(conf_);
+    final Collection c =
+      factory.get(Collection.class, factory.keys().key(collection));
+    if (c == null || c.get(Attribute.REBUILT) == null) {
+      log.error("Collection {} must be rebuilt first.", collection.key());
+      return 1;
+    }
+    final Long processed = c.get(Attribute.PROCESSED);
+    final long since = processed != null ? processed.longValue()
+                                         : c.get(Attribute.REBUILT).longValue();
+
+    final TextClusterOptions options = new TextClusterOptions(conf_);
+    final ClusterIndex index = ClusterIndex.load(conf_, getConf(), collection,
+                                                 options.assignThreshold());
+    if (index == null) return 1;
+
+    // Documents (re-)written since the last processing.
+    final String prefix = factory.keys().documentPrefix(collection);
+    final Scan scan = new Scan(Bytes.toBytes(prefix));
+    scan.setFilter(new PrefixFilter(Bytes.toBytes(prefix)));
+    scan.setMaxVersions(1);
+    scan.setTimeRange(since, timestamp);
+
+    final long ts = System.currentTimeMillis();
+    final List<Document> rest = new ArrayList<Document>();
+    final List<Cluster> additions =
+      index.assign(factory.source(Document.class, scan), rest);
+    int assigned = 0;
+    for (final Cluster cluster : additions) assigned += cluster.size();
+    log.info(String.format(
+        "Assigned %d documents to %d clusters, %d left for the next " +
+        "rebuild. Took %dms.", assigned, additions.size(), rest.size(),
+        System.currentTimeMillis() - ts));
+
+    factory.importer(Cluster.class).load(additions);
+    factory.importer(Collection.class).load(
+        new Collection(collection).set(Attribute.PROCESSED, timestamp));
+    return 0;
+  }
+
+
+  private static final Logger log =
+    LoggerFactory.getLogger(AssignDocuments.class);
+
+  public static final String NAME = "assign_documents";
+
+}
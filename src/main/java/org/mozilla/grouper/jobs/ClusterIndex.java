@@ -0,0 +1,174 @@
+package org.mozilla.grouper.jobs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.Vector;
+import org.mozilla.grouper.conf.Conf;
+import org.mozilla.grouper.hbase.Factory;
+import org.mozilla.grouper.jobs.textcluster.IndexClusterer;
+import org.mozilla.grouper.jobs.textcluster.MedoidIndex;
+import org.mozilla.grouper.model.Cluster;
+import org.mozilla.grouper.model.ClusterRef;
+import org.mozilla.grouper.model.Collection;
+import org.mozilla.grouper.model.Collection.Attribute;
+import org.mozilla.grouper.model.CollectionRef;
+import org.mozilla.grouper.model.Document;
+import org.mozilla.grouper.model.DocumentRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The clusters of the last rebuild of a collection, with everything needed
+ * to assign new documents to them: The dictionary to vectorize documents,
+ * and an index over the cluster medoids.
+ *
+ * Instances are thread safe.
+ */
+public class ClusterIndex {
+
+  /**
+   * @param clusters The clusters (only their refs are used).
+   * @param medoids The tf-idf vectors of the medoids (one per cluster).
+   * @param threshold Minimum similarity of documents to a medoid.
+   */
+  public
+  ClusterIndex(final Dictionary dictionary,
+               final List<ClusterRef> clusters,
+               final List<? extends Vector> medoids,
+               final double threshold) {
+    dictionary_ = dictionary;
+    clusters_ = clusters;
+    medoids_ = new MedoidIndex(medoids);
+    threshold_ = threshold;
+  }
+
+
+  /**
+   * Loads the clusters of the last rebuild, and vectorizes their medoids.
+   * @return <tt>null</tt> if the collection has not been rebuilt yet.
+   */
+  public static
+  ClusterIndex load(final Conf conf,
+                    final Configuration hadoopConf,
+                    final CollectionRef collection,
+                    final double threshold) throws IOException {
+    return load(conf, new DictionaryLoader(conf, hadoopConf, 1), collection,
+                threshold);
+  }
+
+
+  /**
+   * Like {@link #load(Conf, Configuration, CollectionRef, double)}, with
+   * dictionaries from the given (caching) loader.
+   */
+  public static
+  ClusterIndex load(final Conf conf,
+                    final DictionaryLoader dictionaries,
+                    final CollectionRef collection,
+                    final double threshold) throws IOException {
+    final long ts = System.currentTimeMillis();
+    final Factory factory = new Factory(conf);
+    final Collection c =
+      factory.get(Collection.class, factory.keys().key(collection));
+    if (c == null || c.get(Attribute.REBUILT) == null) return null;
+    final long rebuilt = c.get(Attribute.REBUILT).longValue();
+
+    final Dictionary dictionary = dictionaries.load(collection, rebuilt);
+
+    final String prefix = factory.keys().clustersPrefix(
+        collection.namespace(), collection.key(), rebuilt);
+    final Scan scan = new Scan(Bytes.toBytes(prefix));
+    scan.setFilter(new PrefixFilter(Bytes.toBytes(prefix)));
+
+    final List<ClusterRef> clusters = new ArrayList<ClusterRef>();
+    final List<Vector> medoids = new ArrayList<Vector>();
+    for (final Cluster cluster : factory.source(Cluster.class, scan)) {
+      final DocumentRef medoid = cluster.representativeDoc();
+      final Document doc =
+        factory.get(Document.class, factory.keys().key(medoid));
+      if (doc == null) {
+        log.warn("Medoid {} of cluster {} not found.",
+                 medoid.id(), cluster.ref().label());
+        continue;
+      }
+      clusters.add(cluster.ref());
+      medoids.add(dictionary.vectorize(medoid.id(), doc.text()));
+    }
+
+    log.info(String.format(
+        "Loaded %d clusters of collection %s/%s (rebuilt %d). Took %dms.",
+        clusters.size(), collection.namespace(), collection.key(), rebuilt,
+        System.currentTimeMillis() - ts));
+    return new ClusterIndex(dictionary, clusters, medoids, threshold);
+  }
+
+
+  public
+  Dictionary dictionary() {
+    return dictionary_;
+  }
+
+
+  /** The number of clusters. */
+  public
+  int size() {
+    return clusters_.size();
+  }
+
+
+  /**
+   * Vectorizes documents and assigns them to the cluster of the most similar
+   * medoid.
+   *
+   * @param rest Receives the documents that are not similar enough to any
+   *             cluster. These are left for the next rebuild.
+   * @return The new members, as one (partial) cluster per affected cluster,
+   *         ready to be imported: Storing them adds the members to the
+   *         existing clusters.
+   */
+  public
+  List<Cluster> assign(final Iterable<Document> documents,
+                       final List<Document> rest) {
+    final Cluster[] additions = new Cluster[clusters_.size()];
+    final List<Cluster> result = new ArrayList<Cluster>();
+    for (final Document doc : documents) {
+      final NamedVector vector =
+        dictionary_.vectorize(doc.ref().id(), doc.text());
+      final MedoidIndex.Assignment nearest =
+        vector.getNumNondefaultElements() < IndexClusterer.MIN_DOCUMENT_LENGTH
+        ? null : medoids_.nearest(vector);
+      if (nearest == null || nearest.similarity() < threshold_) {
+        rest.add(doc);
+        continue;
+      }
+
+      final int i = nearest.index();
+      if (additions[i] == null) {
+        additions[i] = new Cluster(clusters_.get(i), nearest.medoid(),
+                                   new ArrayList<Vector>(),
+                                   new ArrayList<Double>());
+        result.add(additions[i]);
+      }
+      additions[i].related().add(vector);
+      additions[i].similarities().add(Double.valueOf(nearest.similarity()));
+    }
+    return result;
+  }
+
+
+  private static final Logger log = LoggerFactory.getLogger(ClusterIndex.class);
+
+  private final Dictionary dictionary_;
+  private final List<ClusterRef> clusters_;
+  private final MedoidIndex medoids_;
+  private final double threshold_;
+
+}
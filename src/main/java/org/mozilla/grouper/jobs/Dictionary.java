@@ -0,0 +1,457 @@
+package org.mozilla.grouper.jobs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermAttribute;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.apache.mahout.vectorizer.DefaultAnalyzer;
+import org.apache.mahout.vectorizer.TFIDF;
+import org.mozilla.grouper.base.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The dictionary and document frequencies of a collection, as computed by
+ * {@link VectorizeDocuments}. Vectorizes single documents the same way the
+ * Map/Reduce vectorization does, so that new documents can be compared to
+ * the vectors of the last rebuild.
+ *
+ * With feature hashing (see {@link #hashed}), there are no terms: Tokens
+ * are hashed to a fixed number of dimensions, and document frequencies are
+ * those of the dimensions.
+ *
+ * Instances are immutable (and thread safe).
+ */
+public class Dictionary {
+
+  public
+  Dictionary(final Map<String, Integer> terms,
+             final Map<Integer, Long> documentFrequencies,
+             final long numDocuments) {
+    this(terms, 0, documentFrequencies, numDocuments);
+  }
+
+
+  /**
+   * @param dimensions The number of dimensions that tokens are hashed to
+   *                   (see {@link #hash}).
+   */
+  public static
+  Dictionary hashed(final int dimensions,
+                    final Map<Integer, Long> documentFrequencies,
+                    final long numDocuments) {
+    Assert.check(dimensions > 0);
+    return new Dictionary(null, dimensions, documentFrequencies,
+                          numDocuments);
+  }
+
+
+  private
+  Dictionary(final Map<String, Integer> terms,
+             final int dimensions,
+             final Map<Integer, Long> documentFrequencies,
+             final long numDocuments) {
+    terms_ = terms;
+    dimensions_ = dimensions;
+    documentFrequencies_ = documentFrequencies;
+    numDocuments_ = numDocuments;
+  }
+
+
+  /**
+   * The dimension of a token with feature hashing. Only depends on the
+   * token (not on the JVM), so documents can be vectorized anywhere.
+   */
+  public static
+  int hash(final String token, final int dimensions) {
+    int h = token.hashCode();
+    // Spread the high bits, so that all of them count for any dimensions.
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return (h & Integer.MAX_VALUE) % dimensions;
+  }
+
+
+  /**
+   * Reads the dictionary from the output of {@link VectorizeDocuments}.
+   * @param vectorizeDir The output directory of the vectorization job.
+   */
+  public static
+  Dictionary read(final Configuration hadoopConf, final Path vectorizeDir)
+      throws IOException {
+    final Map<String, Integer> terms = new HashMap<String, Integer>();
+    final Map<Integer, Long> frequencies = new HashMap<Integer, Long>();
+    long numDocuments = 0;
+
+    final FileSystem fs = vectorizeDir.getFileSystem(hadoopConf);
+    final int dimensions = readDimensions(hadoopConf, vectorizeDir);
+    final Text term = new Text();
+    final IntWritable index = new IntWritable();
+    for (final Path p : parts(fs, new Path(vectorizeDir, DICTIONARY_FILES))) {
+      final SequenceFile.Reader reader =
+        new SequenceFile.Reader(fs, p, hadoopConf);
+      try {
+        while (reader.next(term, index)) {
+          terms.put(term.toString(), Integer.valueOf(index.get()));
+        }
+      }
+      finally {
+        IOUtils.closeStream(reader);
+      }
+    }
+
+    final IntWritable key = new IntWritable();
+    final LongWritable count = new LongWritable();
+    for (final Path p : parts(fs, new Path(vectorizeDir, FREQUENCY_FILES))) {
+      final SequenceFile.Reader reader =
+        new SequenceFile.Reader(fs, p, hadoopConf);
+      try {
+        while (reader.next(key, count)) {
+          // Mahout stores the number of documents with the key -1.
+          if (key.get() == -1) numDocuments = count.get();
+          else frequencies.put(Integer.valueOf(key.get()),
+                               Long.valueOf(count.get()));
+        }
+      }
+      finally {
+        IOUtils.closeStream(reader);
+      }
+    }
+
+    if (dimensions > 0) {
+      log.info(String.format("Read hashed dictionary of %d dimensions " +
+                             "(%d documents) from %s",
+                             dimensions, numDocuments, vectorizeDir));
+      return hashed(dimensions, frequencies, numDocuments);
+    }
+    log.info(String.format("Read dictionary of %d terms (%d documents) " +
+                           "from %s", terms.size(), numDocuments, vectorizeDir));
+    return new Dictionary(terms, frequencies, numDocuments);
+  }
+
+
+  /**
+   * Marks the output of a vectorization as hashed, instead of writing the
+   * terms (which are not known).
+   */
+  static
+  void writeDimensions(final Configuration hadoopConf,
+                       final Path vectorizeDir,
+                       final int dimensions) throws IOException {
+    final FileSystem fs = vectorizeDir.getFileSystem(hadoopConf);
+    final SequenceFile.Writer writer = SequenceFile.createWriter(
+        fs, hadoopConf, new Path(vectorizeDir, DIMENSIONS_FILE),
+        Text.class, IntWritable.class);
+    try {
+      writer.append(new Text(DIMENSIONS_FILE), new IntWritable(dimensions));
+    }
+    finally {
+      IOUtils.closeStream(writer);
+    }
+  }
+
+
+  /** @return The number of hashed dimensions, or 0 for a term dictionary. */
+  private static
+  int readDimensions(final Configuration hadoopConf, final Path vectorizeDir)
+      throws IOException {
+    final FileSystem fs = vectorizeDir.getFileSystem(hadoopConf);
+    final Path path = new Path(vectorizeDir, DIMENSIONS_FILE);
+    if (!fs.exists(path)) return 0;
+    final SequenceFile.Reader reader =
+      new SequenceFile.Reader(fs, path, hadoopConf);
+    try {
+      final Text key = new Text();
+      final IntWritable dimensions = new IntWritable();
+      return reader.next(key, dimensions) ? dimensions.get() : 0;
+    }
+    finally {
+      IOUtils.closeStream(reader);
+    }
+  }
+
+
+  /**
+   * A compact binary form of the dictionary, to be stored with the
+   * collection (see {@link DictionaryLoader}): Terms ordered by index, and
+   * the document frequencies, as variable length integers, deflated.
+   */
+  public
+  byte[] toBytes() {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      final DataOutputStream out =
+        new DataOutputStream(new DeflaterOutputStream(bytes));
+      out.writeByte(FORMAT_VERSION);
+      WritableUtils.writeVLong(out, numDocuments_);
+      WritableUtils.writeVInt(out, dimensions_);
+      if (dimensions_ == 0) {
+        final List<Map.Entry<String, Integer>> terms =
+          new ArrayList<Map.Entry<String, Integer>>(terms_.entrySet());
+        Collections.sort(terms, new Comparator<Map.Entry<String, Integer>>() {
+          @Override public
+          int compare(final Map.Entry<String, Integer> a,
+                      final Map.Entry<String, Integer> b) {
+            return a.getValue().compareTo(b.getValue());
+          }
+        });
+        WritableUtils.writeVInt(out, terms.size());
+        int previous = 0;
+        for (final Map.Entry<String, Integer> e : terms) {
+          WritableUtils.writeVInt(out, e.getValue().intValue() - previous);
+          Text.writeString(out, e.getKey());
+          previous = e.getValue().intValue();
+        }
+      }
+      final List<Integer> keys =
+        new ArrayList<Integer>(documentFrequencies_.keySet());
+      Collections.sort(keys);
+      WritableUtils.writeVInt(out, keys.size());
+      int previous = 0;
+      for (final Integer key : keys) {
+        WritableUtils.writeVInt(out, key.intValue() - previous);
+        WritableUtils.writeVLong(out,
+                                 documentFrequencies_.get(key).longValue());
+        previous = key.intValue();
+      }
+      out.close();
+    }
+    catch (IOException e) {
+      // Cannot happen when writing to memory.
+      throw new RuntimeException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+
+  /** Reads a dictionary that was stored using {@link #toBytes()}. */
+  public static
+  Dictionary fromBytes(final byte[] bytes) throws IOException {
+    final DataInputStream in = new DataInputStream(
+        new InflaterInputStream(new ByteArrayInputStream(bytes)));
+    final int version = in.readByte();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unknown dictionary format: " + version);
+    }
+    final long numDocuments = WritableUtils.readVLong(in);
+    final int dimensions = WritableUtils.readVInt(in);
+    Map<String, Integer> terms = null;
+    if (dimensions == 0) {
+      final int size = WritableUtils.readVInt(in);
+      terms = new HashMap<String, Integer>(2 * size);
+      int index = 0;
+      for (int i = 0; i < size; ++i) {
+        index += WritableUtils.readVInt(in);
+        terms.put(Text.readString(in), Integer.valueOf(index));
+      }
+    }
+    final int size = WritableUtils.readVInt(in);
+    final Map<Integer, Long> frequencies = new HashMap<Integer, Long>(2 * size);
+    int key = 0;
+    for (int i = 0; i < size; ++i) {
+      key += WritableUtils.readVInt(in);
+      frequencies.put(Integer.valueOf(key),
+                      Long.valueOf(WritableUtils.readVLong(in)));
+    }
+    return new Dictionary(terms, dimensions, frequencies, numDocuments);
+  }
+
+
+  /** The number of terms, which is the cardinality of the vectors. */
+  public
+  int size() {
+    return dimensions_ > 0 ? dimensions_ : terms_.size();
+  }
+
+
+  /** Tokenizes a text and vectorizes it. */
+  public
+  NamedVector vectorize(final String id, final String text) {
+    return vectorize(id, tokenize(text));
+  }
+
+
+  /**
+   * Creates the normalized tf-idf vector from a list of tokens. Unknown
+   * terms and terms that are too frequent to be useful are skipped.
+   */
+  public
+  NamedVector vectorize(final String id, final List<String> tokens) {
+    return vectorize(id, termFrequencies(tokens));
+  }
+
+
+  /**
+   * The term frequencies of a list of tokens (that the IDF is applied to).
+   * Unknown terms are skipped.
+   */
+  public
+  Vector termFrequencies(final List<String> tokens) {
+    final Vector tf = new RandomAccessSparseVector(size());
+    for (final String token : tokens) {
+      if (dimensions_ > 0) {
+        final int term = hash(token, dimensions_);
+        tf.setQuick(term, tf.getQuick(term) + 1);
+        continue;
+      }
+      final Integer term = terms_.get(token);
+      if (term == null) continue;
+      tf.setQuick(term.intValue(), tf.getQuick(term.intValue()) + 1);
+    }
+    return tf;
+  }
+
+
+  /** Creates the normalized tf-idf vector from term frequencies. */
+  public
+  NamedVector vectorize(final String id, final Vector tf) {
+    final long maxDf = MAX_DF_PERCENT * numDocuments_ / 100;
+    final Vector tfidf = new RandomAccessSparseVector(size());
+    final Iterator<Element> it = tf.iterateNonZero();
+    while (it.hasNext()) {
+      final Element e = it.next();
+      final Long frequency = documentFrequencies_.get(e.index());
+      if (frequency == null) continue;
+      long df = frequency.longValue();
+      if (df > maxDf) continue;
+      if (df < MIN_DF) df = MIN_DF;
+      tfidf.setQuick(e.index(), weight_.calculate((int) e.get(), (int) df,
+                                                  size(), (int) numDocuments_));
+    }
+
+    final Vector normalized =
+      LOG_NORMALIZE ? tfidf.logNormalize(NORM) : tfidf.normalize(NORM);
+    return new NamedVector(new SequentialAccessSparseVector(normalized), id);
+  }
+
+
+  /**
+   * How far the IDF of the terms has drifted, if the collection now has the
+   * given document frequencies (indexed by term): The largest relative
+   * change of the IDF of any term. In small collections, the IDF of a term
+   * may be 0 or negative (see {@link #idf}), so the change is relative to
+   * its magnitude.
+   */
+  public
+  double drift(final long[] documentFrequencies, final long numDocuments) {
+    Assert.check(documentFrequencies.length == size());
+    double drift = 0;
+    for (int term = 0; term < size(); ++term) {
+      final Long frequency = documentFrequencies_.get(term);
+      final long df = frequency == null ? 0 : frequency.longValue();
+      if (df == 0 && documentFrequencies[term] == 0) continue;
+      final double idf = idf(df, numDocuments_);
+      final double current = idf(documentFrequencies[term], numDocuments);
+      if (current == idf) continue;
+      if (idf == 0) return Double.POSITIVE_INFINITY;
+      drift = Math.max(drift, Math.abs(current - idf) / Math.abs(idf));
+    }
+    return drift;
+  }
+
+
+  /**
+   * The IDF part of the weight, with the same bounds as the weights. Below
+   * {@link VectorizeDocuments#MIN_DF} documents, that is
+   * <tt>log(numDocuments / (MIN_DF + 1)) + 1</tt>, which can be negative.
+   */
+  private
+  double idf(final long df, final long numDocuments) {
+    return weight_.calculate(1, (int) Math.max(df, MIN_DF), size(),
+                             (int) numDocuments);
+  }
+
+
+  /** Tokens of a text, as produced by the analyzer of the vectorization. */
+  public static
+  List<String> tokenize(final String text) {
+    return tokenize(new DefaultAnalyzer(), text);
+  }
+
+
+  /**
+   * Tokenizes a text with the given instance of the analyzer of the
+   * vectorization, for callers that tokenize many texts.
+   */
+  public static
+  List<String> tokenize(final Analyzer analyzer, final String text) {
+    final List<String> tokens = new ArrayList<String>();
+    try {
+      final TokenStream stream =
+        analyzer.tokenStream(TOKEN_FIELD, new StringReader(text));
+      final TermAttribute term = stream.addAttribute(TermAttribute.class);
+      while (stream.incrementToken()) {
+        if (term.termLength() > 0) tokens.add(term.term());
+      }
+      stream.close();
+    }
+    catch (IOException e) {
+      // Cannot happen when reading from a string.
+      throw new RuntimeException(e);
+    }
+    return tokens;
+  }
+
+
+  private static
+  Path[] parts(final FileSystem fs, final Path pattern) throws IOException {
+    final FileStatus[] statuses = fs.globStatus(pattern);
+    if (statuses == null) return new Path[0];
+    return FileUtil.stat2Paths(statuses);
+  }
+
+
+  private static final Logger log = LoggerFactory.getLogger(Dictionary.class);
+
+  private static final String DICTIONARY_FILES = "dictionary.file-*";
+  private static final String FREQUENCY_FILES = "frequency.file-*";
+  private static final String DIMENSIONS_FILE = "dictionary.dimensions";
+  private static final String TOKEN_FIELD = "text";
+  private static final int FORMAT_VERSION = 1;
+
+  private static final float NORM = VectorizeDocuments.NORM;
+  private static final boolean LOG_NORMALIZE = VectorizeDocuments.LOG_NORMALIZE;
+  private static final int MIN_DF = VectorizeDocuments.MIN_DF;
+  private static final int MAX_DF_PERCENT = VectorizeDocuments.MAX_DF_PERCENT;
+
+  /** <tt>null</tt> with feature hashing. */
+  private final Map<String, Integer> terms_;
+  /** 0 without feature hashing. */
+  private final int dimensions_;
+  private final Map<Integer, Long> documentFrequencies_;
+  private final long numDocuments_;
+  private final TFIDF weight_ = new TFIDF();
+
+}
@@ -0,0 +1,125 @@
+package org.mozilla.grouper.jobs;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.mozilla.grouper.conf.Conf;
+import org.mozilla.grouper.hbase.Factory;
+import org.mozilla.grouper.hbase.Schema.Collections.Processing;
+import org.mozilla.grouper.model.CollectionRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Stores the dictionary of each rebuild with its collection (see
+ * {@link Dictionary#toBytes()}), and loads it again, so that new documents
+ * can be vectorized without reading the output of the vectorization.
+ *
+ * Keeps the most recently used dictionaries in memory. Instances are thread
+ * safe.
+ */
+public class DictionaryLoader {
+
+  /** Number of dictionaries that are kept in memory by default. */
+  public static final int CACHE_SIZE = 64;
+
+
+  public
+  DictionaryLoader(final Conf conf, final Configuration hadoopConf) {
+    this(conf, hadoopConf, CACHE_SIZE);
+  }
+
+
+  public
+  DictionaryLoader(final Conf conf, final Configuration hadoopConf,
+                   final int cacheSize) {
+    conf_ = conf;
+    hadoopConf_ = hadoopConf;
+    factory_ = new Factory(conf);
+    cache_ = new LinkedHashMap<String, Dictionary>(16, .75f, true) {
+      @Override protected
+      boolean removeEldestEntry(final Map.Entry<String, Dictionary> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+
+  /** Stores the dictionary of the rebuild at <tt>timestamp</tt>. */
+  public
+  void store(final CollectionRef collection,
+             final long timestamp,
+             final Dictionary dictionary) throws IOException {
+    final byte[] bytes = dictionary.toBytes();
+    factory_.putProcessing(collection, Processing.DICTIONARY, timestamp,
+                           bytes);
+    log.info(String.format(
+        "Stored dictionary of %d terms for %s/%s (%d KB).",
+        dictionary.size(), collection.namespace(), collection.key(),
+        bytes.length / 1024));
+    synchronized (cache_) {
+      cache_.put(key(collection, timestamp), dictionary);
+    }
+  }
+
+
+  /**
+   * The dictionary of the rebuild at <tt>rebuilt</tt>. Rebuilds from before
+   * dictionaries were stored with the collection are read from the output
+   * of their vectorization.
+   */
+  public
+  Dictionary load(final CollectionRef collection, final long rebuilt)
+      throws IOException {
+    final String key = key(collection, rebuilt);
+    synchronized (cache_) {
+      final Dictionary cached = cache_.get(key);
+      if (cached != null) return cached;
+    }
+
+    final long ts = System.currentTimeMillis();
+    // Incremental rebuilds keep using the dictionary of the last full one.
+    final KeyValue stored =
+      factory_.getProcessing(collection, Processing.DICTIONARY, rebuilt);
+    final Dictionary dictionary;
+    if (stored != null) {
+      dictionary = Dictionary.fromBytes(stored.getValue());
+      log.info(String.format(
+          "Loaded dictionary of %d terms for %s/%s. Took %dms.",
+          dictionary.size(), collection.namespace(), collection.key(),
+          System.currentTimeMillis() - ts));
+    }
+    else {
+      final Path vectorizeDir = new Util(conf_).outputDir(
+          collection, rebuilt, new VectorizeDocuments(conf_, hadoopConf_));
+      dictionary = Dictionary.read(hadoopConf_, vectorizeDir);
+    }
+
+    synchronized (cache_) {
+      cache_.put(key, dictionary);
+    }
+    return dictionary;
+  }
+
+
+  private static
+  String key(final CollectionRef collection, final long timestamp) {
+    return collection.namespace() + '/' + collection.key() + '@' + timestamp;
+  }
+
+
+  private static final Logger log =
+    LoggerFactory.getLogger(DictionaryLoader.class);
+
+  private final Conf conf_;
+  private final Configuration hadoopConf_;
+  private final Factory factory_;
+  /** Most recently used last. */
+  private final Map<String, Dictionary> cache_;
+
+}
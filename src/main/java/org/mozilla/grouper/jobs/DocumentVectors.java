@@ -0,0 +1,137 @@
+package org.mozilla.grouper.jobs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.mozilla.grouper.hbase.Schema.Documents.Processing;
+
+
+/**
+ * The vectors of a document, as stored with the document by the
+ * vectorization: Its term counts in <tt>processing:vector_idf</tt>, and its
+ * tf-idf vector in <tt>processing:vector_tfidf</tt>. The cells are versioned
+ * by the rebuild that computed them (see {@link IncrementalVectorizer}).
+ *
+ * The encoding is compact: The number of elements, then the index of each
+ * element as the gap to the previous one, followed by its count (both as
+ * variable length integers) or by its weight (as a float). The cardinality
+ * is that of the dictionary, and is not stored.
+ */
+public class DocumentVectors {
+
+  /** Encodes term counts (see {@link Dictionary#termFrequencies}). */
+  public static
+  byte[] encodeCounts(final Vector tf) {
+    return encode(tf, false);
+  }
+
+
+  /** Encodes a tf-idf vector (see {@link Dictionary#vectorize}). */
+  public static
+  byte[] encodeWeights(final Vector tfidf) {
+    return encode(tfidf, true);
+  }
+
+
+  public static
+  Vector decodeCounts(final byte[] bytes, final int cardinality)
+      throws IOException {
+    return decode(bytes, cardinality, false);
+  }
+
+
+  public static
+  Vector decodeWeights(final byte[] bytes, final int cardinality)
+      throws IOException {
+    return decode(bytes, cardinality, true);
+  }
+
+
+  /**
+   * The cells of the vectors of a document, as of the rebuild at
+   * <tt>timestamp</tt>. Either vector may be <tt>null</tt>.
+   */
+  public static
+  Put put(final byte[] row, final long timestamp,
+          final Vector tf, final Vector tfidf) {
+    final Put put = new Put(row);
+    if (tf != null) {
+      put.add(Processing.FAMILY, Processing.VECTOR_IDF.qualifier, timestamp,
+              encodeCounts(tf));
+    }
+    if (tfidf != null) {
+      put.add(Processing.FAMILY, Processing.VECTOR_TFIDF.qualifier, timestamp,
+              encodeWeights(tfidf));
+    }
+    return put;
+  }
+
+
+  private static
+  byte[] encode(final Vector vector, final boolean weights) {
+    final Vector sequential = vector.isSequentialAccess()
+                              ? vector
+                              : new SequentialAccessSparseVector(vector);
+    // The number of elements is that of the elements actually written:
+    // Dense vectors, and sparse vectors with explicit zeros, report more.
+    final ByteArrayOutputStream elements = new ByteArrayOutputStream();
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      final DataOutputStream elementsOut = new DataOutputStream(elements);
+      int size = 0;
+      int previous = 0;
+      final Iterator<Element> it = sequential.iterateNonZero();
+      while (it.hasNext()) {
+        final Element e = it.next();
+        if (e.get() == 0) continue;
+        WritableUtils.writeVInt(elementsOut, e.index() - previous);
+        if (weights) elementsOut.writeFloat((float) e.get());
+        else WritableUtils.writeVInt(elementsOut, (int) e.get());
+        previous = e.index();
+        ++size;
+      }
+      elementsOut.close();
+
+      final DataOutputStream out = new DataOutputStream(bytes);
+      WritableUtils.writeVInt(out, size);
+      elements.writeTo(out);
+      out.close();
+    }
+    catch (IOException e) {
+      // Cannot happen when writing to memory.
+      throw new RuntimeException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+
+  private static
+  Vector decode(final byte[] bytes, final int cardinality,
+                final boolean weights) throws IOException {
+    final DataInputStream in =
+      new DataInputStream(new ByteArrayInputStream(bytes));
+    final int size = WritableUtils.readVInt(in);
+    final Vector vector = new SequentialAccessSparseVector(cardinality, size);
+    int index = 0;
+    for (int i = 0; i < size; ++i) {
+      index += WritableUtils.readVInt(in);
+      if (index >= cardinality) {
+        throw new IOException(String.format(
+            "Element %d beyond the cardinality %d", index, cardinality));
+      }
+      vector.setQuick(index, weights ? in.readFloat()
+                                     : WritableUtils.readVInt(in));
+    }
+    return vector;
+  }
+
+}
@@ -14,6 +14,9 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.mahout.common.StringTuple;
+import org.apache.mahout.vectorizer.DefaultAnalyzer;
 import org.mozilla.grouper.conf.Conf;
 import org.mozilla.grouper.hbase.Factory;
 import org.mozilla.grouper.hbase.Schema.Documents;
@@ -22,9 +25,13 @@ import org.mozilla.grouper.model.Document;
 
 
 /**
- * Export all documents into a directory, one file per map-task.
+ * Export the tokens of all documents into a directory, one file per
+ * map-task.
  *
  * This is part of the full rebuild and a prerequisite for vectorization.
+ * Documents are tokenized right here (like Mahout's
+ * <tt>DocumentProcessor</tt> would do, see {@link Dictionary#tokenize}), so
+ * that their text is not written to and read from HDFS just to be tokenized.
  *
  * TODO: We want a better partitioner so that regions are only looked at by a
  *       mapper if they overlap with our prefix.
@@ -34,7 +41,7 @@ public class ExportDocuments extends AbstractCollectionTool {
   final static String NAME = "export_documents";
 
 
-  static class ExportMapper extends TableMapper<Text, Text> {
+  static class ExportMapper extends TableMapper<Text, StringTuple> {
     public static enum Counters {
       ROWS_USED
     }
@@ -50,8 +57,12 @@ public class ExportDocuments extends AbstractCollectionTool {
                             Documents.Main.ID.qualifier).getValue();
       KeyValue text = row.getColumnLatest(Documents.Main.FAMILY,
                                           Documents.Main.TEXT.qualifier);
-      context.write(new Text(documentID), new Text(text.getValue()));
+      final StringTuple tokens = new StringTuple(
+          Dictionary.tokenize(analyzer_, Bytes.toString(text.getValue())));
+      context.write(new Text(documentID), tokens);
     };
+
+    private final Analyzer analyzer_ = new DefaultAnalyzer();
   }
 
 
@@ -75,7 +86,7 @@ public class ExportDocuments extends AbstractCollectionTool {
     job.setNumReduceTasks(0);
     job.setOutputFormatClass(SequenceFileOutputFormat.class);
     job.setOutputKeyClass(Text.class);
-    job.setOutputValueClass(Text.class);
+    job.setOutputValueClass(StringTuple.class);
     FileOutputFormat.setOutputPath(job, outputDir);
 
     // Set optional scan parameters
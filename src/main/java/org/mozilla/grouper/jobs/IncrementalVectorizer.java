@@ -0,0 +1,343 @@
+package org.mozilla.grouper.jobs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.apache.mahout.math.VectorWritable;
+import org.apache.mahout.vectorizer.tfidf.TFIDFConverter;
+import org.mozilla.grouper.conf.Conf;
+import org.mozilla.grouper.conf.OptionalKeys;
+import org.mozilla.grouper.hbase.Factory;
+import org.mozilla.grouper.hbase.Importer;
+import org.mozilla.grouper.hbase.Schema.Collections;
+import org.mozilla.grouper.hbase.Schema.Documents;
+import org.mozilla.grouper.model.Collection;
+import org.mozilla.grouper.model.Collection.Attribute;
+import org.mozilla.grouper.model.CollectionRef;
+import org.mozilla.grouper.model.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Vectorizes a collection for a rebuild, reusing the vectors that earlier
+ * rebuilds stored with the documents (see {@link DocumentVectors}). Only
+ * documents whose text changed since then are vectorized again, with the
+ * dictionary of the last full vectorization.
+ *
+ * The tf-idf vectors are written where {@link VectorizeDocuments} would
+ * write them, so that the clustering reads them as usual (streaming, or
+ * distributed if configured).
+ *
+ * That is only good as long as the dictionary still fits the collection:
+ * If the IDF of any term has drifted by more than
+ * <tt>worker:rebuild:idf-tolerance</tt> (relative, see
+ * {@link Dictionary#drift}), or if most of the documents changed, the
+ * collection must be vectorized from scratch. New terms are only picked up
+ * by full vectorizations, so collections that change their vocabulary
+ * without changing the IDF of the old terms should use a smaller tolerance
+ * (0 to always vectorize from scratch).
+ */
+public class IncrementalVectorizer {
+
+  public
+  IncrementalVectorizer(final Conf conf, final Configuration hadoopConf) {
+    conf_ = conf;
+    hadoopConf_ = hadoopConf;
+  }
+
+
+  /** Receives the tf-idf vectors of all documents. */
+  static
+  interface VectorSink {
+    void write(NamedVector vector) throws IOException;
+  }
+
+
+  /** Stores the vectors of changed documents, a batch at a time. */
+  static
+  interface ChangeSink {
+    void write(List<Put> changes) throws IOException;
+  }
+
+
+  /**
+   * Writes the tf-idf vectors of all documents (named by document id) to
+   * the output of the vectorization, and stores the vectors of changed
+   * documents, as of <tt>timestamp</tt>.
+   *
+   * @return <tt>false</tt> if the collection must be vectorized from scratch
+   *         (anything written is removed again then).
+   */
+  public
+  boolean vectorize(final CollectionRef collection, final long timestamp)
+      throws IOException {
+    if (tolerance() <= 0) return false;
+
+    // The latest dictionary, even if the rebuild that stored it failed to
+    // cluster: Its vectors may have been stored already.
+    final Factory factory = new Factory(conf_);
+    final KeyValue version = factory.getProcessing(
+        collection, Collections.Processing.DICTIONARY, timestamp);
+    if (version == null) return false;
+    final Dictionary dictionary = Dictionary.fromBytes(version.getValue());
+    final Collection c =
+      factory.get(Collection.class, factory.keys().key(collection));
+    final Long size = c == null ? null : c.get(Attribute.SIZE);
+
+    final String prefix = factory.keys().documentPrefix(collection);
+    final Scan scan = new Scan(Bytes.toBytes(prefix));
+    scan.setFilter(new PrefixFilter(Bytes.toBytes(prefix)));
+    scan.setMaxVersions(1);
+    scan.addColumn(Documents.Main.FAMILY, Documents.Main.ID.qualifier);
+    scan.addColumn(Documents.Main.FAMILY, Documents.Main.TEXT.qualifier);
+    scan.addFamily(Documents.Processing.FAMILY);
+
+    final Path outputDir = new Util(conf_).outputDir(
+        collection, timestamp, new VectorizeDocuments(conf_, hadoopConf_));
+    final FileSystem fs = outputDir.getFileSystem(hadoopConf_);
+    final SequenceFile.Writer writer = SequenceFile.createWriter(
+        fs, hadoopConf_,
+        new Path(outputDir, TFIDFConverter.DOCUMENT_VECTOR_OUTPUT_FOLDER
+                            + "/" + PART_FILE),
+        Text.class, VectorWritable.class);
+    final VectorSink sink = new VectorSink() {
+      @Override public
+      void write(final NamedVector vector) throws IOException {
+        writer.append(new Text(vector.getName()), new VectorWritable(vector));
+      }
+    };
+
+    // Stored right away, so they are not held in memory. If the
+    // collection must be vectorized from scratch after all, they were
+    // computed with the wrong dictionary, and are removed again.
+    final boolean[] stored = {false};
+    final ChangeSink changes = new ChangeSink() {
+      @Override public
+      void write(final List<Put> puts) throws IOException {
+        stored[0] = true;
+        factory.put(Document.class, puts);
+      }
+    };
+
+    final long ts = System.currentTimeMillis();
+    final ResultScanner scanner = factory.scanner(Document.class, scan);
+    boolean done = false;
+    try {
+      done = vectorize(dictionary, version.getTimestamp(), scanner, size,
+                       timestamp, sink, changes, Importer.BATCH_SIZE);
+    }
+    finally {
+      scanner.close();
+      IOUtils.closeStream(writer);
+      if (!done) {
+        fs.delete(outputDir, true);
+        if (stored[0]) discard(factory, prefix, timestamp);
+      }
+    }
+    if (!done) return false;
+
+    log.info(String.format("Took %dms.", System.currentTimeMillis() - ts));
+    return true;
+  }
+
+
+  /** Removes the vectors that were stored as of <tt>timestamp</tt>. */
+  private
+  void discard(final Factory factory, final String prefix,
+               final long timestamp) throws IOException {
+    final Scan scan = new Scan(Bytes.toBytes(prefix));
+    scan.setFilter(new PrefixFilter(Bytes.toBytes(prefix)));
+    scan.setTimeRange(timestamp, timestamp + 1);
+    scan.addColumn(Documents.Processing.FAMILY,
+                   Documents.Processing.VECTOR_IDF.qualifier);
+    scan.addColumn(Documents.Processing.FAMILY,
+                   Documents.Processing.VECTOR_TFIDF.qualifier);
+
+    final List<Delete> deletes = new ArrayList<Delete>(Importer.BATCH_SIZE);
+    int discarded = 0;
+    final ResultScanner scanner = factory.scanner(Document.class, scan);
+    try {
+      for (final Result row : scanner) {
+        final Delete delete = new Delete(row.getRow());
+        delete.deleteColumn(Documents.Processing.FAMILY,
+                            Documents.Processing.VECTOR_IDF.qualifier,
+                            timestamp);
+        delete.deleteColumn(Documents.Processing.FAMILY,
+                            Documents.Processing.VECTOR_TFIDF.qualifier,
+                            timestamp);
+        deletes.add(delete);
+        ++discarded;
+        if (deletes.size() == Importer.BATCH_SIZE) {
+          factory.delete(Document.class, deletes);
+          deletes.clear();
+        }
+      }
+    }
+    finally {
+      scanner.close();
+    }
+    if (!deletes.isEmpty()) factory.delete(Document.class, deletes);
+    log.info(String.format("Discarded the vectors of %d documents.",
+                           discarded));
+  }
+
+
+  /**
+   * Vectorizes the documents of a collection, given their rows (with id,
+   * text and stored vectors).
+   *
+   * @param vectorized When the dictionary was stored. Vectors stored before
+   *                   that were computed with another dictionary.
+   * @param size The recorded size of the collection (if known), to give up
+   *             early if most documents changed.
+   * @param sink Receives the tf-idf vectors of all documents.
+   * @param changes Receives the vectors of changed documents, to be stored,
+   *                in batches of up to <tt>batchSize</tt>.
+   * @return <tt>false</tt> if the collection must be vectorized from scratch.
+   */
+  boolean vectorize(final Dictionary dictionary,
+                    final long vectorized,
+                    final Iterable<Result> rows,
+                    final Long size,
+                    final long timestamp,
+                    final VectorSink sink,
+                    final ChangeSink changes,
+                    final int batchSize) throws IOException {
+    final long[] frequencies = new long[dictionary.size()];
+    final List<Put> batch = new ArrayList<Put>(batchSize);
+    int changed = 0;
+    int total = 0;
+    for (final Result row : rows) {
+      final byte[] id =
+        row.getValue(Documents.Main.FAMILY, Documents.Main.ID.qualifier);
+      final KeyValue text = row.getColumnLatest(
+          Documents.Main.FAMILY, Documents.Main.TEXT.qualifier);
+      if (id == null || text == null) continue;
+      ++total;
+      final KeyValue counts = row.getColumnLatest(
+          Documents.Processing.FAMILY,
+          Documents.Processing.VECTOR_IDF.qualifier);
+      final KeyValue weights = row.getColumnLatest(
+          Documents.Processing.FAMILY,
+          Documents.Processing.VECTOR_TFIDF.qualifier);
+
+      if (isCurrent(counts, text, vectorized)
+          && isCurrent(weights, text, vectorized)) {
+        count(DocumentVectors.decodeCounts(counts.getValue(),
+                                           dictionary.size()), frequencies);
+        sink.write(new NamedVector(
+            DocumentVectors.decodeWeights(weights.getValue(),
+                                          dictionary.size()),
+            Bytes.toString(id)));
+        continue;
+      }
+
+      final Vector tf = dictionary.termFrequencies(
+          Dictionary.tokenize(Bytes.toString(text.getValue())));
+      final NamedVector tfidf = dictionary.vectorize(Bytes.toString(id), tf);
+      count(tf, frequencies);
+      sink.write(tfidf);
+      ++changed;
+      if (size != null && changed > MAX_CHANGED * size) {
+        log.info(String.format(
+            "At least %d of %d documents changed, vectorizing from scratch.",
+            changed, size));
+        return false;
+      }
+      batch.add(DocumentVectors.put(row.getRow(), timestamp, tf, tfidf));
+      if (batch.size() == batchSize) {
+        changes.write(batch);
+        batch.clear();
+      }
+    }
+
+    if (total == 0) return false;
+    if (changed > MAX_CHANGED * total) {
+      log.info(String.format(
+          "%d of %d documents changed, vectorizing from scratch.",
+          changed, total));
+      return false;
+    }
+    final double drift = dictionary.drift(frequencies, total);
+    if (drift > tolerance()) {
+      log.info(String.format(
+          "IDF drifted by %.3f (tolerance %.3f), vectorizing from scratch.",
+          drift, tolerance()));
+      return false;
+    }
+    if (!batch.isEmpty()) changes.write(batch);
+    log.info(String.format(
+        "Vectorized %d of %d documents again (IDF drift %.3f).",
+        changed, total, drift));
+    return true;
+  }
+
+
+  /** Counts the terms of a document towards the document frequencies. */
+  private static
+  void count(final Vector tf, final long[] documentFrequencies) {
+    final Iterator<Element> it = tf.iterateNonZero();
+    while (it.hasNext()) ++documentFrequencies[it.next().index()];
+  }
+
+
+  /**
+   * Whether a stored vector belongs to the current dictionary, and was
+   * computed from the current text.
+   */
+  private static
+  boolean isCurrent(final KeyValue vector, final KeyValue text,
+                    final long vectorized) {
+    return vector != null
+           && vector.getTimestamp() >= vectorized
+           && vector.getTimestamp() >= text.getTimestamp();
+  }
+
+
+  private
+  double tolerance() {
+    return OptionalKeys.doubleValue(conf_, CONF_IDF_TOLERANCE, IDF_TOLERANCE);
+  }
+
+
+  private static final Logger log =
+    LoggerFactory.getLogger(IncrementalVectorizer.class);
+
+  /** Relative IDF drift up to which stored vectors are reused by default. */
+  private static final double IDF_TOLERANCE = .05;
+
+  /**
+   * Fraction of changed documents above which vectorizing from scratch is
+   * cheaper anyway (and picks up new terms).
+   */
+  private static final double MAX_CHANGED = .5;
+
+  private static final String PART_FILE = "part-r-00000";
+
+  private static final String CONF_IDF_TOLERANCE =
+    "worker:rebuild:idf-tolerance";
+
+  private final Conf conf_;
+  private final Configuration hadoopConf_;
+
+}
@@ -0,0 +1,229 @@
+package org.mozilla.grouper.jobs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+
+
+/**
+ * Vectorizes a collection in memory, the way {@link VectorizeDocuments}
+ * does with Map/Reduce: Same analyzer, same dictionary (terms that occur
+ * at least {@link VectorizeDocuments#MIN_SUPPORT} times, numbered in
+ * lexical order), same tf-idf weighting (see {@link Dictionary}).
+ *
+ * For small collections, where starting the four vectorization jobs takes
+ * much longer than the vectorization itself. Documents are kept as term
+ * counts until all of them have been added, so memory use grows with the
+ * collection (see {@link Rebuild} for the size limit).
+ *
+ * With feature hashing, tokens are hashed right away, and the document
+ * frequencies of the dimensions are counted as documents are added.
+ *
+ * Instances are not thread safe.
+ */
+public class LocalVectorizer {
+
+  public
+  LocalVectorizer() {
+    this(0);
+  }
+
+
+  /**
+   * @param hashDimensions The number of dimensions for feature hashing (see
+   *                       {@link Dictionary#hashed}), 0 for a dictionary.
+   */
+  public
+  LocalVectorizer(final int hashDimensions) {
+    hashDimensions_ = hashDimensions;
+    hashedFrequencies_ = hashDimensions > 0 ? new long[hashDimensions] : null;
+  }
+
+
+  /**
+   * Tokenizes a document and counts its terms (or, with feature hashing,
+   * its dimensions).
+   */
+  public
+  void add(final String id, final String text) {
+    counts_.clear();
+    for (final String token : Dictionary.tokenize(text)) {
+      if (hashDimensions_ > 0) {
+        count(Integer.valueOf(Dictionary.hash(token, hashDimensions_)));
+        continue;
+      }
+      Integer term = ids_.get(token);
+      if (term == null) {
+        term = Integer.valueOf(tokens_.size());
+        ids_.put(token, term);
+        tokens_.add(token);
+        if (term.intValue() == totals_.length) {
+          totals_ = Arrays.copyOf(totals_, 2 * totals_.length);
+        }
+      }
+      count(term);
+    }
+
+    final int[] terms = new int[counts_.size()];
+    final int[] counts = new int[counts_.size()];
+    int i = 0;
+    for (final Map.Entry<Integer, Integer> e : counts_.entrySet()) {
+      terms[i] = e.getKey().intValue();
+      counts[i] = e.getValue().intValue();
+      if (hashDimensions_ > 0) ++hashedFrequencies_[terms[i]];
+      else totals_[terms[i]] += counts[i];
+      ++i;
+    }
+    documentIds_.add(id);
+    documentTerms_.add(terms);
+    documentCounts_.add(counts);
+    dictionary_ = null;
+  }
+
+
+  /** The number of documents added so far. */
+  public
+  int size() {
+    return documentIds_.size();
+  }
+
+
+  /** The dictionary and document frequencies of the documents so far. */
+  public
+  Dictionary dictionary() {
+    if (dictionary_ != null) return dictionary_;
+    if (hashDimensions_ > 0) {
+      final Map<Integer, Long> documentFrequencies =
+        new HashMap<Integer, Long>();
+      for (int term = 0; term < hashDimensions_; ++term) {
+        if (hashedFrequencies_[term] == 0) continue;
+        documentFrequencies.put(Integer.valueOf(term),
+                                Long.valueOf(hashedFrequencies_[term]));
+      }
+      dictionary_ = Dictionary.hashed(hashDimensions_, documentFrequencies,
+                                      size());
+      return dictionary_;
+    }
+
+    final List<String> frequent = new ArrayList<String>();
+    for (int term = 0; term < tokens_.size(); ++term) {
+      if (totals_[term] >= VectorizeDocuments.MIN_SUPPORT) {
+        frequent.add(tokens_.get(term));
+      }
+    }
+    Collections.sort(frequent);
+    dictionaryIds_ = new int[tokens_.size()];
+    Arrays.fill(dictionaryIds_, NONE);
+    final Map<String, Integer> terms = new HashMap<String, Integer>();
+    for (int id = 0; id < frequent.size(); ++id) {
+      final String token = frequent.get(id);
+      terms.put(token, Integer.valueOf(id));
+      dictionaryIds_[ids_.get(token).intValue()] = id;
+    }
+
+    final long[] frequencies = new long[frequent.size()];
+    for (final int[] document : documentTerms_) {
+      for (final int term : document) {
+        if (dictionaryIds_[term] != NONE) ++frequencies[dictionaryIds_[term]];
+      }
+    }
+    final Map<Integer, Long> documentFrequencies =
+      new HashMap<Integer, Long>();
+    for (int id = 0; id < frequencies.length; ++id) {
+      documentFrequencies.put(Integer.valueOf(id),
+                              Long.valueOf(frequencies[id]));
+    }
+
+    dictionary_ = new Dictionary(terms, documentFrequencies, size());
+    return dictionary_;
+  }
+
+
+  /**
+   * The tf-idf vectors of all documents so far (named by document id), in
+   * the order they were added.
+   */
+  public
+  List<Vector> vectors() {
+    final Dictionary dictionary = dictionary();
+    final List<Vector> tfs = termFrequencies();
+    final List<Vector> vectors = new ArrayList<Vector>(size());
+    for (int doc = 0; doc < size(); ++doc) {
+      vectors.add(dictionary.vectorize(documentIds_.get(doc), tfs.get(doc)));
+    }
+    return vectors;
+  }
+
+
+  /**
+   * The term frequencies of all documents so far, in the order they were
+   * added. Terms are those of the {@link #dictionary()}.
+   */
+  public
+  List<Vector> termFrequencies() {
+    final Dictionary dictionary = dictionary();
+    final List<Vector> tfs = new ArrayList<Vector>(size());
+    for (int doc = 0; doc < size(); ++doc) {
+      final int[] terms = documentTerms_.get(doc);
+      final int[] counts = documentCounts_.get(doc);
+      final Vector tf = new RandomAccessSparseVector(dictionary.size());
+      for (int i = 0; i < terms.length; ++i) {
+        final int id =
+          hashDimensions_ > 0 ? terms[i] : dictionaryIds_[terms[i]];
+        if (id != NONE) tf.setQuick(id, counts[i]);
+      }
+      tfs.add(tf);
+    }
+    return tfs;
+  }
+
+
+  /** The id of a document, by the order it was added in. */
+  public
+  String id(final int doc) {
+    return documentIds_.get(doc);
+  }
+
+
+  private
+  void count(final Integer term) {
+    final Integer count = counts_.get(term);
+    counts_.put(term, Integer.valueOf(count == null ? 1
+                                                    : count.intValue() + 1));
+  }
+
+
+  private static final int NONE = -1;
+
+  private final int hashDimensions_;
+  /** With feature hashing, the document frequencies of the dimensions. */
+  private final long[] hashedFrequencies_;
+
+  /**
+   * All tokens seen so far (without feature hashing), numbered in order of
+   * appearance.
+   */
+  private final Map<String, Integer> ids_ = new HashMap<String, Integer>();
+  private final List<String> tokens_ = new ArrayList<String>();
+  /** For each token, its number of occurrences. */
+  private int[] totals_ = new int[1024];
+
+  private final List<String> documentIds_ = new ArrayList<String>();
+  private final List<int[]> documentTerms_ = new ArrayList<int[]>();
+  private final List<int[]> documentCounts_ = new ArrayList<int[]>();
+
+  /** The counts of the current document (reused). */
+  private final Map<Integer, Integer> counts_ =
+    new HashMap<Integer, Integer>();
+
+  /** Computed when needed. Maps token numbers to dictionary terms. */
+  private Dictionary dictionary_ = null;
+  private int[] dictionaryIds_ = null;
+
+}
@@ -1,9 +1,24 @@
 package org.mozilla.grouper.jobs;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.mahout.math.Vector;
 import org.mozilla.grouper.conf.Conf;
+import org.mozilla.grouper.conf.OptionalKeys;
+import org.mozilla.grouper.hbase.Factory;
 import org.mozilla.grouper.jobs.textcluster.TextClusterTool;
+import org.mozilla.grouper.model.Collection;
+import org.mozilla.grouper.model.Collection.Attribute;
 import org.mozilla.grouper.model.CollectionRef;
+import org.mozilla.grouper.model.Document;
+import org.mozilla.grouper.model.DocumentRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,6 +26,14 @@ import org.slf4j.LoggerFactory;
 /**
  * Completely rebuilds a collection using the appropriate algorithm for every
  * configured clustering configuration.
+ *
+ * Small collections (up to <tt>worker:rebuild:local-max-documents</tt>, by
+ * their recorded size) are vectorized and clustered in this process, where
+ * starting the Map/Reduce jobs would take longer than the work itself.
+ *
+ * If the last rebuild stored the vectors of the documents, and the
+ * collection has not changed too much since, only the changed documents are
+ * vectorized (see {@link IncrementalVectorizer}).
  */
 public class Rebuild extends AbstractCollectionTool {
 
@@ -21,6 +44,15 @@ public class Rebuild extends AbstractCollectionTool {
 
   @Override public
   int run(CollectionRef collection, long timestamp) throws Exception {
+    // Mostly unchanged collections: Only vectorize the changed documents,
+    // then cluster the vectors as usual.
+    if (new IncrementalVectorizer(conf_, getConf()).vectorize(collection,
+                                                              timestamp)) {
+      return new TextClusterTool(conf_, getConf()).run(collection, timestamp);
+    }
+
+    if (isSmall(collection)) return runLocally(collection, timestamp);
+
     final CollectionTool[] toolchain = new CollectionTool[]{
         new ExportDocuments(conf_, getConf()),
         new VectorizeDocuments(conf_, getConf()),
@@ -37,6 +69,72 @@ public class Rebuild extends AbstractCollectionTool {
   }
 
 
+  /**
+   * Reads the documents straight from HBase, vectorizes them in memory (see
+   * {@link LocalVectorizer}) and clusters the vectors right away.
+   */
+  private
+  int runLocally(CollectionRef collection, long timestamp) throws Exception {
+    final Factory factory = new Factory(conf_);
+    final String prefix = factory.keys().documentPrefix(collection);
+    final Scan scan = new Scan(Bytes.toBytes(prefix));
+    scan.setFilter(new PrefixFilter(Bytes.toBytes(prefix)));
+    scan.setMaxVersions(1);
+
+    final long ts = System.currentTimeMillis();
+    final LocalVectorizer vectorizer =
+      new LocalVectorizer(VectorizeDocuments.hashDimensions(conf_));
+    for (final Document doc : factory.source(Document.class, scan)) {
+      vectorizer.add(doc.ref().id(), doc.text());
+    }
+    final Dictionary dictionary = vectorizer.dictionary();
+    log.info(String.format(
+        "Vectorized %d documents locally (%d terms). Took %dms.",
+        vectorizer.size(), dictionary.size(),
+        System.currentTimeMillis() - ts));
+
+    // Incremental processing vectorizes new documents with the dictionary
+    // of the rebuild.
+    new DictionaryLoader(conf_, getConf()).store(collection, timestamp,
+                                                 dictionary);
+
+    // The next rebuild only needs to vectorize the changed documents.
+    final List<Vector> vectors = vectorizer.vectors();
+    final List<Vector> tfs = vectorizer.termFrequencies();
+    final List<Put> puts = new ArrayList<Put>(vectors.size());
+    for (int doc = 0; doc < vectors.size(); ++doc) {
+      final String row = factory.keys().key(
+          new DocumentRef(collection, vectorizer.id(doc)));
+      puts.add(DocumentVectors.put(Bytes.toBytes(row), timestamp,
+                                   tfs.get(doc), vectors.get(doc)));
+    }
+    factory.put(Document.class, puts);
+
+    return new TextClusterTool(conf_, getConf())
+      .run(collection, timestamp, vectors);
+  }
+
+
+  /** Whether the collection can be rebuilt without Map/Reduce. */
+  private
+  boolean isSmall(CollectionRef collection) throws IOException {
+    final int maxDocuments = localMaxDocuments();
+    if (maxDocuments == 0) return false;
+    final Factory factory = new Factory(conf_);
+    final Collection c =
+      factory.get(Collection.class, factory.keys().key(collection));
+    final Long size = c == null ? null : c.get(Attribute.SIZE);
+    return size != null && size.longValue() <= maxDocuments;
+  }
+
+
+  private
+  int localMaxDocuments() {
+    return Math.max(0, OptionalKeys.intValue(conf_, CONF_LOCAL_MAX_DOCUMENTS,
+                                             LOCAL_MAX_DOCUMENTS));
+  }
+
+
   @Override public
   String name() {
     return NAME;
@@ -46,4 +144,10 @@ public class Rebuild extends AbstractCollectionTool {
 
   static String NAME = "rebuild";
 
+  /** Collections up to this size are rebuilt locally (0: never). */
+  private static final int LOCAL_MAX_DOCUMENTS = 50000;
+
+  private static final String CONF_LOCAL_MAX_DOCUMENTS =
+    "worker:rebuild:local-max-documents";
+
 }
@@ -34,6 +34,7 @@ public class Util {
     tools_.put(TextClusterTool.NAME,    TextClusterTool.class);
     tools_.put(Rebuild.NAME,            Rebuild.class);
     tools_.put(RebuildAll.NAME,         RebuildAll.class);
+    tools_.put(AssignDocuments.NAME,    AssignDocuments.class);
   }
 
 
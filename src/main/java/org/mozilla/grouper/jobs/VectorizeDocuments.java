@@ -1,15 +1,38 @@
 package org.mozilla.grouper.jobs;
 
+import java.io.IOException;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.mahout.vectorizer.DefaultAnalyzer;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.TableOutputFormat;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.mahout.common.StringTuple;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
 import org.apache.mahout.vectorizer.DictionaryVectorizer;
-import org.apache.mahout.vectorizer.DocumentProcessor;
 import org.apache.mahout.vectorizer.collocations.llr.LLRReducer;
 import org.apache.mahout.vectorizer.tfidf.TFIDFConverter;
+import org.mozilla.grouper.base.Assert;
 import org.mozilla.grouper.conf.Conf;
+import org.mozilla.grouper.conf.OptionalKeys;
+import org.mozilla.grouper.hbase.Factory;
+import org.mozilla.grouper.hbase.keys.Keys;
 import org.mozilla.grouper.model.CollectionRef;
+import org.mozilla.grouper.model.Document;
+import org.mozilla.grouper.model.DocumentRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,6 +41,11 @@ import org.slf4j.LoggerFactory;
  * The functionality here is practically cloned from the Mahout utility
  * <tt>SparseVectorsFromSequenceFiles</tt>, which serves a very similar
  * purpose (but as a command line utility).
+ *
+ * With <tt>worker:vectorize:hash-dimensions</tt>, tokens are hashed to a
+ * fixed number of dimensions instead (see {@link Dictionary#hashed}). This
+ * saves the word count and dictionary jobs, and new documents can be
+ * vectorized without knowing their terms in advance.
  */
 public class VectorizeDocuments extends AbstractCollectionTool {
 
@@ -30,61 +58,209 @@ public class VectorizeDocuments extends AbstractCollectionTool {
   @Override public
   int run(CollectionRef collection, long timestamp)  throws Exception {
     final Configuration hadoopConf = getConf();
-    CollectionTool source = new ExportDocuments(conf_, hadoopConf);
-    final Path inputDir = util_.outputDir(collection, timestamp, source);
     final Path outputDir = util_.outputDir(collection, timestamp, this);
 
-    // 1. Tokenize
-    Class<? extends Analyzer> analyzerClass = DefaultAnalyzer.class;
-    Path tokenizedPath =
-      new Path(outputDir, DocumentProcessor.TOKENIZED_DOCUMENT_OUTPUT_FOLDER);
-
-    DocumentProcessor.tokenizeDocuments(
-        inputDir, analyzerClass, tokenizedPath, hadoopConf
-    );
+    // 1. Tokens, as exported (and tokenized) by the export mapper.
+    CollectionTool source = new ExportDocuments(conf_, hadoopConf);
+    final Path tokenizedPath = util_.outputDir(collection, timestamp, source);
 
     // 2. TF Vectors
     int chunkSize = 200;
-    int minSupport = 10;
+    int minSupport = MIN_SUPPORT;
     int maxNGramSize = 1;
     float minLLRValue = LLRReducer.DEFAULT_MIN_LLR;
     log.info("Minimum LLR value: {}", minLLRValue);
 
-    int reduceTasks = 1;
+    // The clustering reads all part files, so any number of reducers works.
+    int reduceTasks = reduceTasks();
     log.info("Number of reduce tasks: {}", reduceTasks);
 
     boolean namedVectors = true;
     boolean sequentialAccessOutput = true;
 
-    DictionaryVectorizer.createTermFrequencyVectors(
-        tokenizedPath, outputDir, hadoopConf, minSupport, maxNGramSize,
-        minLLRValue, -1.0f, false, reduceTasks, chunkSize,
-        sequentialAccessOutput, namedVectors
-    );
+    final int hashDimensions = hashDimensions(conf_);
+    if (hashDimensions > 0) {
+      // No word count and no dictionary, just one map-only job.
+      if (!hashTermFrequencies(tokenizedPath, outputDir, hashDimensions,
+                               collection, timestamp)) {
+        return 1;
+      }
+      Dictionary.writeDimensions(hadoopConf, outputDir, hashDimensions);
+    }
+    else {
+      DictionaryVectorizer.createTermFrequencyVectors(
+          tokenizedPath, outputDir, hadoopConf, minSupport, maxNGramSize,
+          minLLRValue, -1.0f, false, reduceTasks, chunkSize,
+          sequentialAccessOutput, namedVectors
+      );
+    }
 
 
     // 3. IDF Vectors
 
-    // Matches the similarity model we use with the inverted index later on.
-    float norm = 2.0f;
-    boolean logNormalize = true;
-
-    // minimum number of documents a term appears in for it to be considered
-    int minDf = 10;
-
-    // max percentage of docs before term is considered a stopword
-    int maxDFPercent = 95;
-
     Path tfPath =
       new Path(outputDir, DictionaryVectorizer.DOCUMENT_VECTOR_OUTPUT_FOLDER);
     TFIDFConverter.processTfIdf(
-        tfPath, outputDir, hadoopConf, chunkSize, minDf,
-        maxDFPercent, norm, logNormalize, sequentialAccessOutput, namedVectors,
-        reduceTasks
+        tfPath, outputDir, hadoopConf, chunkSize, MIN_DF,
+        MAX_DF_PERCENT, NORM, LOG_NORMALIZE, sequentialAccessOutput,
+        namedVectors, reduceTasks
     );
 
+    // 4. Keep the dictionary with the collection, for incremental updates.
+    new DictionaryLoader(conf_, hadoopConf).store(
+        collection, timestamp, Dictionary.read(hadoopConf, outputDir));
 
-    return 0;
+    // 5. Keep the vectors with the documents, so that the next rebuild only
+    //    needs to vectorize the changed documents.
+    return storeVectors(outputDir, collection, timestamp) ? 0 : 1;
+  }
+
+
+  /**
+   * Writes the term frequency and tf-idf vectors to the documents (see
+   * {@link DocumentVectors}), as of the rebuild at <tt>timestamp</tt>.
+   */
+  private
+  boolean storeVectors(final Path outputDir,
+                       final CollectionRef collection,
+                       final long timestamp) throws Exception {
+    final Configuration hadoopConf = new Configuration(getConf());
+    new Util(conf_).saveConfToHadoopConf(hadoopConf);
+    hadoopConf.set(HADOOP_NAMESPACE, collection.namespace());
+    hadoopConf.set(HADOOP_COLLECTION_KEY, collection.key());
+    hadoopConf.setLong(HADOOP_TIMESTAMP, timestamp);
+    final Factory factory = new Factory(conf_);
+    hadoopConf.set(TableOutputFormat.OUTPUT_TABLE,
+                   factory.tableName(Document.class));
+
+    final Job job = new Job(hadoopConf,
+                            jobName(collection, timestamp) + " (store)");
+    job.setJarByClass(VectorizeDocuments.class);
+    job.setNumReduceTasks(0);
+    job.setMapperClass(StoreVectorsMapper.class);
+    job.setInputFormatClass(SequenceFileInputFormat.class);
+    job.setOutputFormatClass(TableOutputFormat.class);
+    job.setOutputKeyClass(ImmutableBytesWritable.class);
+    job.setOutputValueClass(Put.class);
+    FileInputFormat.addInputPath(job, new Path(
+        outputDir, DictionaryVectorizer.DOCUMENT_VECTOR_OUTPUT_FOLDER));
+    FileInputFormat.addInputPath(job, new Path(
+        outputDir, TFIDFConverter.DOCUMENT_VECTOR_OUTPUT_FOLDER));
+    return job.waitForCompletion(true);
+  }
+
+
+  /**
+   * Writes the vectors of a document to its row. Tells term frequency
+   * vectors from tf-idf vectors by the directory they were read from.
+   */
+  public static
+  class StoreVectorsMapper
+  extends Mapper<Text, VectorWritable, ImmutableBytesWritable, Put> {
+
+    @Override protected
+    void setup(final Context context) {
+      final Configuration hadoopConf = context.getConfiguration();
+      keys_ = new Factory(Util.fromHadoopConf(hadoopConf)).keys();
+      collection_ = new CollectionRef(hadoopConf.get(HADOOP_NAMESPACE),
+                                      hadoopConf.get(HADOOP_COLLECTION_KEY));
+      timestamp_ = hadoopConf.getLong(HADOOP_TIMESTAMP, 0);
+      Assert.check(timestamp_ > 0);
+      final Path input = ((FileSplit) context.getInputSplit()).getPath();
+      counts_ = DictionaryVectorizer.DOCUMENT_VECTOR_OUTPUT_FOLDER.equals(
+          input.getParent().getName());
+    }
+
+    @Override protected
+    void map(final Text id, final VectorWritable vector,
+             final Context context)
+    throws IOException, InterruptedException {
+      final byte[] row = Bytes.toBytes(
+          keys_.key(new DocumentRef(collection_, id.toString())));
+      final Vector v = vector.get();
+      context.write(new ImmutableBytesWritable(row),
+                    DocumentVectors.put(row, timestamp_, counts_ ? v : null,
+                                        counts_ ? null : v));
+    }
+
+    private Keys keys_;
+    private CollectionRef collection_;
+    private long timestamp_;
+    /** Whether the input are term frequencies (else: tf-idf vectors). */
+    private boolean counts_;
+  }
+
+
+  /**
+   * Feature hashing: Term frequency vectors of the tokenized documents, with
+   * tokens hashed to a fixed number of dimensions (see
+   * {@link Dictionary#hash}).
+   */
+  private
+  boolean hashTermFrequencies(final Path tokenizedPath,
+                              final Path outputDir,
+                              final int dimensions,
+                              final CollectionRef collection,
+                              final long timestamp) throws Exception {
+    final Configuration hadoopConf = new Configuration(getConf());
+    hadoopConf.setInt(HADOOP_HASH_DIMENSIONS, dimensions);
+    final Job job = new Job(hadoopConf,
+                            jobName(collection, timestamp) + " (hashing)");
+    job.setJarByClass(VectorizeDocuments.class);
+    job.setNumReduceTasks(0);
+    job.setMapperClass(HashingMapper.class);
+    job.setInputFormatClass(SequenceFileInputFormat.class);
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(VectorWritable.class);
+    FileInputFormat.addInputPath(job, tokenizedPath);
+    FileOutputFormat.setOutputPath(job, new Path(
+        outputDir, DictionaryVectorizer.DOCUMENT_VECTOR_OUTPUT_FOLDER));
+    return job.waitForCompletion(true);
+  }
+
+
+  /** Hashes the tokens of a document into a term frequency vector. */
+  public static
+  class HashingMapper extends Mapper<Text, StringTuple, Text, VectorWritable> {
+
+    @Override protected
+    void setup(final Context context) {
+      dimensions_ = context.getConfiguration().getInt(HADOOP_HASH_DIMENSIONS,
+                                                      0);
+      Assert.check(dimensions_ > 0);
+    }
+
+    @Override protected
+    void map(final Text id, final StringTuple tokens, final Context context)
+    throws IOException, InterruptedException {
+      final Vector tf = new RandomAccessSparseVector(dimensions_);
+      for (final String token : tokens.getEntries()) {
+        final int term = Dictionary.hash(token, dimensions_);
+        tf.setQuick(term, tf.getQuick(term) + 1);
+      }
+      final Vector vector = new NamedVector(
+          new SequentialAccessSparseVector(tf), id.toString());
+      context.write(id, new VectorWritable(vector));
+    }
+
+    private int dimensions_;
+  }
+
+
+  /**
+   * The number of dimensions for feature hashing, or 0 to build a
+   * dictionary of terms.
+   */
+  static
+  int hashDimensions(final Conf conf) {
+    return Math.max(0, OptionalKeys.intValue(conf, CONF_HASH_DIMENSIONS, 0));
+  }
+
+
+  private
+  int reduceTasks() {
+    return Math.max(1, OptionalKeys.intValue(conf_, CONF_REDUCE_TASKS, 1));
   }
 
 
@@ -99,4 +275,34 @@ public class VectorizeDocuments extends AbstractCollectionTool {
 
   public static final String NAME = "vectorize";
 
+  // The tf-idf parameters are shared with the Dictionary, which vectorizes
+  // documents the same way outside of Map/Reduce.
+
+  /** Matches the similarity model we use with the inverted index later on. */
+  static final float NORM = 2.0f;
+  static final boolean LOG_NORMALIZE = true;
+
+  /** Minimum number of occurrences of a term to be in the dictionary. */
+  static final int MIN_SUPPORT = 10;
+
+  /** Minimum number of documents a term appears in to be considered. */
+  static final int MIN_DF = 10;
+
+  /** Max percentage of docs before a term is considered a stopword. */
+  static final int MAX_DF_PERCENT = 95;
+
+  private static final String CONF_REDUCE_TASKS =
+    "worker:vectorize:reduce-tasks";
+  private static final String CONF_HASH_DIMENSIONS =
+    "worker:vectorize:hash-dimensions";
+
+  private static final String HADOOP_HASH_DIMENSIONS =
+    "org.mozilla.grouperfish.vectorize.hash-dimensions";
+  private static final String HADOOP_NAMESPACE =
+    "org.mozilla.grouperfish.vectorize.namespace";
+  private static final String HADOOP_COLLECTION_KEY =
+    "org.mozilla.grouperfish.vectorize.collection-key";
+  private static final String HADOOP_TIMESTAMP =
+    "org.mozilla.grouperfish.vectorize.timestamp";
+
 }
@@ -0,0 +1,204 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.NamedVector;
+import org.mozilla.grouper.model.BaseCluster;
+
+
+/**
+ * The steps of the distributed clustering (see {@link AllPairsJob}), as
+ * plain functions of the values that reach a reducer.
+ *
+ * Documents are identified by keys that sort like the in-memory clustering
+ * reads them (see {@link #documentKey(int, long, int)}). For a collection
+ * that fits into one block, the result is then the same as that of the
+ * {@link IndexClusterer}, down to rounding: Partial scores are summed in
+ * order of their terms, and best matches are picked in order of documents,
+ * just like stage 1 does it. That is, as long as no term is skipped (see
+ * {@link #pairs}): The in-memory clustering scores all terms.
+ */
+final class AllPairs {
+
+  /** Receives the partial scores of the pairs that share a term. */
+  static
+  interface PairSink {
+    void pair(long first, long second, double product)
+    throws IOException, InterruptedException;
+  }
+
+
+  /** Stage 1 for one document: Its centricity and its best match. */
+  static final
+  class Leader {
+    Leader(final long leader, final double score, final double centricity) {
+      leader_ = leader;
+      score_ = score;
+      centricity_ = centricity;
+    }
+
+    /** The key of the best earlier match, or NO_MATCH. */
+    long leader() { return leader_; }
+    double score() { return score_; }
+    double centricity() { return centricity_; }
+
+    private final long leader_;
+    private final double score_;
+    private final double centricity_;
+  }
+
+
+  /**
+   * The key of a document, from its position in the (sorted) part files.
+   * {@link VectorPartsReader} takes chunks of vectors from the parts in
+   * turn, so documents are ordered by chunk, then by part, then by their
+   * position in the chunk.
+   */
+  static
+  long documentKey(final int part, final long record, final int chunkSize) {
+    final long chunk = record / chunkSize;
+    return (chunk << 40) | ((long) part << 20) | (record % chunkSize);
+  }
+
+
+  /**
+   * Emits the partial score of each pair of documents that share a term,
+   * with the earlier document first.
+   *
+   * @param docs The postings of the term (sorted in place, with weights).
+   * @param maxPostings If the term has more postings (and this is not 0),
+   *                    it is skipped.
+   * @return <tt>false</tt> if the term was skipped.
+   */
+  static
+  boolean pairs(final long[] docs, final double[] weights, final int n,
+                final int maxPostings, final PairSink sink)
+  throws IOException, InterruptedException {
+    if (maxPostings > 0 && n > maxPostings) return false;
+    sort(docs, weights, 0, n - 1);
+    for (int i = 0; i < n; ++i) {
+      for (int j = i + 1; j < n; ++j) {
+        sink.pair(docs[i], docs[j], weights[i] * weights[j]);
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * The similarity of a pair of documents: The sum of its partial scores.
+   * @param terms The term of each partial score (sorted in place).
+   */
+  static
+  double score(final long[] terms, final double[] products, final int n) {
+    sort(terms, products, 0, n - 1);
+    double score = 0;
+    for (int i = 0; i < n; ++i) score += products[i];
+    return score;
+  }
+
+
+  /**
+   * Stage 1 for a document: Sums up its centricity, and picks the best
+   * match among the earlier documents.
+   *
+   * @param others The documents that the document is similar to (sorted in
+   *               place, with scores).
+   */
+  static
+  Leader leader(final long doc, final long[] others, final double[] scores,
+                final int n, final double reassignThreshold) {
+    sort(others, scores, 0, n - 1);
+    long leader = IndexClusterer.NO_MATCH;
+    double leaderScore = 0;
+    double centricity = 0;
+    for (int i = 0; i < n; ++i) {
+      centricity += scores[i];
+      if (others[i] >= doc) continue;
+      if (leader != IndexClusterer.NO_MATCH) {
+        if (scores[i] < reassignThreshold || leaderScore > scores[i]) continue;
+      }
+      leader = others[i];
+      leaderScore = scores[i];
+    }
+    return new Leader(leader, leaderScore, centricity);
+  }
+
+
+  /**
+   * Stages 2 and 3, for the best matches of all documents that have any.
+   * The resulting clusters only carry the names of their documents.
+   *
+   * @param leaders The best match of each document, by key.
+   */
+  static
+  List<BaseCluster> clusters(final long[] docs,
+                             final String[] names,
+                             final long[] leaders,
+                             final double[] leaderScores,
+                             final double[] centricities,
+                             final int n) {
+    final Integer[] order = new Integer[n];
+    for (int i = 0; i < n; ++i) order[i] = Integer.valueOf(i);
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override public
+      int compare(final Integer a, final Integer b) {
+        final long diff = docs[a.intValue()] - docs[b.intValue()];
+        return diff == 0 ? 0 : (diff < 0 ? -1 : 1);
+      }
+    });
+
+    final long[] sorted = new long[n];
+    for (int idx = 0; idx < n; ++idx) sorted[idx] = docs[order[idx]];
+
+    final VectorStore vectors = new VectorStore();
+    final int[] leader = new int[n];
+    final double[] leaderScore = new double[n];
+    final double[] centricity = new double[n];
+    final List<Integer> used = new ArrayList<Integer>(n);
+    for (int idx = 0; idx < n; ++idx) {
+      final int i = order[idx].intValue();
+      vectors.add(new NamedVector(new DenseVector(0), names[i]));
+      leader[idx] = leaders[i] == IndexClusterer.NO_MATCH
+        ? IndexClusterer.NO_MATCH : Arrays.binarySearch(sorted, leaders[i]);
+      leaderScore[idx] = leaderScores[i];
+      centricity[idx] = centricities[i];
+      used.add(Integer.valueOf(idx));
+    }
+    return IndexClusterer.assemble(vectors, leader, leaderScore, centricity,
+                                   used);
+  }
+
+
+  /** Sorts the range [left, right] by key (quicksort, keys are distinct). */
+  private static
+  void sort(final long[] keys, final double[] values,
+            final int left, final int right) {
+    if (left >= right) return;
+    final long pivot = keys[(left + right) >>> 1];
+    int i = left;
+    int j = right;
+    while (i <= j) {
+      while (keys[i] < pivot) ++i;
+      while (keys[j] > pivot) --j;
+      if (i <= j) {
+        final long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        final double value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+        ++i;
+        --j;
+      }
+    }
+    sort(keys, values, left, j);
+    sort(keys, values, i, right);
+  }
+
+}
@@ -0,0 +1,689 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.apache.mahout.math.VectorWritable;
+import org.mozilla.grouper.jobs.AbstractCollectionTool;
+import org.mozilla.grouper.model.BaseCluster;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Stage 1 of the clustering for all pairs of documents of a collection,
+ * as a chain of Map/Reduce jobs (no blocks, see {@link IndexClusterer}):
+ *
+ *   1. postings: (term) -> (doc, weight)*, reduced to partial scores
+ *                (doc, doc) -> (term, weight * weight)
+ *   2. pairs:    (doc, doc) -> (term, product)*, reduced to the similarity
+ *                of each pair, emitted to both documents if it is above the
+ *                threshold: (doc) -> (other doc, score)
+ *   3. leaders:  (doc) -> (other doc, score)*, reduced to the centricity and
+ *                best match of each document: (doc) -> (name, leader, ...)
+ *
+ * The driver then creates the clusters from the best matches (stages 2 and
+ * 3 are linear in the number of documents). The reducers leave the actual
+ * work to {@link AllPairs}.
+ *
+ * The number of partial scores of a term grows with the square of its
+ * postings. Terms of more than {@link TextClusterOptions#maxPostings()}
+ * documents are skipped (they are counted, see {@link Counters}). The
+ * in-memory clustering scores them, so the clusters are only the same as
+ * its clusters (see {@link AllPairs}) if no term is skipped.
+ */
+final class AllPairsJob {
+
+  public static enum Counters {
+    SKIPPED_TERMS,
+    SKIPPED_POSTINGS,
+    PARTIAL_SCORES,
+    MATCHES,
+    UNMATCHED_DOCUMENTS
+  }
+
+
+  /**
+   * @param vectors The part files of the tf-idf vectors (a glob pattern).
+   * @param outputDir Receives the output of each job in a subdirectory.
+   */
+  AllPairsJob(final Configuration hadoopConf,
+              final Path vectors,
+              final Path outputDir,
+              final String jobName,
+              final TextClusterOptions options) {
+    hadoopConf_ = hadoopConf;
+    vectors_ = vectors;
+    outputDir_ = outputDir;
+    jobName_ = jobName;
+    options_ = options;
+  }
+
+
+  /**
+   * Runs the jobs, pruning the output of earlier runs. Only the output of
+   * the last job is kept, for {@link #clusters()}.
+   * @return <tt>true</tt> on success.
+   */
+  boolean run() throws IOException, InterruptedException,
+                       ClassNotFoundException {
+    final FileSystem fs = outputDir_.getFileSystem(hadoopConf_);
+    if (fs.exists(outputDir_)) {
+      log.warn("Output dir {} already exists! Pruning.", outputDir_);
+      fs.delete(outputDir_, true);
+    }
+
+    final Job postings = postings();
+    log.info("Running job: {}", postings.getJobName());
+    if (!postings.waitForCompletion(true)) return false;
+    if (!finish()) return false;
+
+    fs.delete(new Path(outputDir_, POSTINGS), true);
+    fs.delete(new Path(outputDir_, PAIRS), true);
+    return true;
+  }
+
+
+  /** The first job. */
+  private
+  Job postings() throws IOException {
+    final Job job = job(POSTINGS, vectorParts());
+    job.setInputFormatClass(VectorPartsInputFormat.class);
+    job.setMapperClass(PostingsMapper.class);
+    job.setMapOutputKeyClass(IntWritable.class);
+    job.setMapOutputValueClass(Posting.class);
+    job.setReducerClass(PostingsReducer.class);
+    job.setOutputKeyClass(Pair.class);
+    job.setOutputValueClass(Partial.class);
+    job.getConfiguration().setInt(CONF_MAX_POSTINGS, options_.maxPostings());
+    return job;
+  }
+
+
+  /**
+   * Runs the remaining jobs, once the postings job has completed.
+   * @return <tt>true</tt> on success.
+   */
+  private
+  boolean finish() throws IOException, InterruptedException,
+                          ClassNotFoundException {
+    final Job pairs = job(PAIRS, new Path(outputDir_, POSTINGS));
+    pairs.setInputFormatClass(SequenceFileInputFormat.class);
+    pairs.setMapperClass(Mapper.class);
+    pairs.setMapOutputKeyClass(Pair.class);
+    pairs.setMapOutputValueClass(Partial.class);
+    pairs.setReducerClass(PairsReducer.class);
+    pairs.setOutputKeyClass(LongWritable.class);
+    pairs.setOutputValueClass(Match.class);
+    log.info("Running job: {}", pairs.getJobName());
+    if (!pairs.waitForCompletion(true)) return false;
+
+    final Path[] inputs = Arrays.copyOf(vectorParts(),
+                                        vectorParts().length + 1);
+    inputs[inputs.length - 1] = new Path(outputDir_, PAIRS);
+    final Job leaders = job(LEADERS, inputs);
+    leaders.setInputFormatClass(VectorPartsInputFormat.class);
+    leaders.setMapperClass(LeadersMapper.class);
+    leaders.setMapOutputKeyClass(LongWritable.class);
+    leaders.setMapOutputValueClass(Match.class);
+    leaders.setReducerClass(LeadersReducer.class);
+    leaders.setOutputKeyClass(LongWritable.class);
+    leaders.setOutputValueClass(Best.class);
+    log.info("Running job: {}", leaders.getJobName());
+    if (!leaders.waitForCompletion(true)) return false;
+
+    // Skipped terms are counted by the postings job.
+    log.info(String.format(
+        "%d matches, %d documents without any.",
+        counter(pairs, Counters.MATCHES),
+        counter(leaders, Counters.UNMATCHED_DOCUMENTS)));
+    return true;
+  }
+
+
+  /** Reads the best matches, and creates the clusters (stages 2 and 3). */
+  List<BaseCluster> clusters() throws IOException {
+    final Path pattern = new Path(outputDir_, LEADERS + "/part-*");
+    final FileSystem fs = pattern.getFileSystem(hadoopConf_);
+    final FileStatus[] statuses = fs.globStatus(pattern);
+    final Path[] parts = statuses == null ? new Path[0]
+                                          : FileUtil.stat2Paths(statuses);
+
+    int n = 0;
+    long[] docs = new long[INITIAL_CAPACITY];
+    String[] names = new String[INITIAL_CAPACITY];
+    long[] leaders = new long[INITIAL_CAPACITY];
+    double[] scores = new double[INITIAL_CAPACITY];
+    double[] centricities = new double[INITIAL_CAPACITY];
+    final LongWritable doc = new LongWritable();
+    final Best best = new Best();
+    for (final Path part : parts) {
+      final SequenceFile.Reader reader =
+        new SequenceFile.Reader(fs, part, hadoopConf_);
+      try {
+        while (reader.next(doc, best)) {
+          if (n == docs.length) {
+            docs = Arrays.copyOf(docs, 2 * n);
+            names = Arrays.copyOf(names, 2 * n);
+            leaders = Arrays.copyOf(leaders, 2 * n);
+            scores = Arrays.copyOf(scores, 2 * n);
+            centricities = Arrays.copyOf(centricities, 2 * n);
+          }
+          docs[n] = doc.get();
+          names[n] = best.name_;
+          leaders[n] = best.leader_;
+          scores[n] = best.score_;
+          centricities[n] = best.centricity_;
+          ++n;
+        }
+      }
+      finally {
+        IOUtils.closeStream(reader);
+      }
+    }
+    log.info("Read the best matches of {} documents.", n);
+    return AllPairs.clusters(docs, names, leaders, scores, centricities, n);
+  }
+
+
+  private
+  Job job(final String name, final Path... inputs) throws IOException {
+    final Job job = new Job(hadoopConf_, jobName_ + " " + name);
+    job.setJarByClass(AbstractCollectionTool.class);
+    job.getConfiguration().setStrings(CONF_VECTOR_PARTS, vectorPartNames());
+    job.getConfiguration().setInt(CONF_TOP_TERMS, options_.topTerms());
+    job.getConfiguration().set(CONF_L2_MASS,
+                               Double.toString(options_.l2Mass()));
+    for (final Path input : inputs) FileInputFormat.addInputPath(job, input);
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    FileOutputFormat.setOutputPath(job, new Path(outputDir_, name));
+    return job;
+  }
+
+
+  private static
+  long counter(final Job job, final Counters counter) throws IOException {
+    return job.getCounters().findCounter(counter).getValue();
+  }
+
+
+  /** The part files of the vectors, sorted like the in-memory version. */
+  private
+  Path[] vectorParts() throws IOException {
+    if (vectorParts_ != null) return vectorParts_;
+    final FileStatus[] statuses =
+      vectors_.getFileSystem(hadoopConf_).globStatus(vectors_);
+    vectorParts_ = statuses == null ? new Path[0]
+                                    : FileUtil.stat2Paths(statuses);
+    Arrays.sort(vectorParts_);
+    return vectorParts_;
+  }
+
+
+  private
+  String[] vectorPartNames() throws IOException {
+    final Path[] parts = vectorParts();
+    final String[] names = new String[parts.length];
+    for (int i = 0; i < parts.length; ++i) names[i] = name(parts[i]);
+    return names;
+  }
+
+
+  /** Without scheme and authority, which may be given differently. */
+  private static
+  String name(final Path path) {
+    return path.toUri().getPath();
+  }
+
+
+  /**
+   * Vector part files are not split: The position of a vector in its part
+   * determines the key of its document (see AllPairs#documentKey).
+   */
+  public static
+  class VectorPartsInputFormat extends SequenceFileInputFormat<Writable,
+                                                               Writable> {
+    @Override protected
+    boolean isSplitable(final JobContext context, final Path filename) {
+      return part(context.getConfiguration(), filename) == -1;
+    }
+  }
+
+
+  /** @return The index of a vector part file, or -1 for other files. */
+  static
+  int part(final Configuration conf, final Path path) {
+    final String[] parts = conf.getStrings(CONF_VECTOR_PARTS);
+    if (parts == null) return -1;
+    return Arrays.asList(parts).indexOf(name(path));
+  }
+
+
+  /** Sparsifies like the in-memory version (<tt>null</tt>: disabled). */
+  static
+  Sparsifier sparsifier(final Configuration conf) {
+    return Sparsifier.create(new TextClusterOptions()
+        .topTerms(conf.getInt(CONF_TOP_TERMS, 0))
+        .l2Mass(Double.parseDouble(conf.get(CONF_L2_MASS, "1"))));
+  }
+
+
+  /**
+   * Numbers the vectors of a part file, as {@link VectorPartsReader} does.
+   * @return The key of the vector's document, or -1 if it is too short to
+   *         be clustered.
+   */
+  static
+  long documentKey(final int part, final long record, final Vector vector) {
+    if (vector.getNumNondefaultElements() < IndexClusterer.MIN_DOCUMENT_LENGTH)
+      return -1;
+    return AllPairs.documentKey(part, record, VectorPartsReader.CHUNK_SIZE);
+  }
+
+
+  /** Job 1, map: Inverts the document vectors. */
+  public static
+  class PostingsMapper extends Mapper<Writable, VectorWritable,
+                                      IntWritable, Posting> {
+    @Override protected
+    void setup(final Context context) {
+      final InputSplit split = context.getInputSplit();
+      part_ = part(context.getConfiguration(), ((FileSplit) split).getPath());
+      sparsifier_ = sparsifier(context.getConfiguration());
+    }
+
+    @Override protected
+    void map(final Writable key, final VectorWritable value,
+             final Context context)
+    throws IOException, InterruptedException {
+      Vector vector = value.get();
+      if (sparsifier_ != null) vector = sparsifier_.apply(vector);
+      final long doc = documentKey(part_, record_++, vector);
+      if (doc == -1) return;
+      posting_.doc_ = doc;
+      final Iterator<Element> it = vector.iterateNonZero();
+      while (it.hasNext()) {
+        final Element e = it.next();
+        term_.set(e.index());
+        posting_.weight_ = e.get();
+        context.write(term_, posting_);
+      }
+    }
+
+    private int part_;
+    private Sparsifier sparsifier_;
+    private long record_ = 0;
+    private final IntWritable term_ = new IntWritable();
+    private final Posting posting_ = new Posting();
+  }
+
+
+  /** Job 1, reduce: The partial scores of all pairs that share a term. */
+  public static
+  class PostingsReducer extends Reducer<IntWritable, Posting,
+                                        Pair, Partial> {
+    @Override protected
+    void setup(final Context context) {
+      maxPostings_ = context.getConfiguration().getInt(CONF_MAX_POSTINGS, 0);
+    }
+
+    @Override protected
+    void reduce(final IntWritable term, final Iterable<Posting> postings,
+                final Context context)
+    throws IOException, InterruptedException {
+      // Once a term is known to be skipped, its postings are only counted.
+      int n = 0;
+      int stored = 0;
+      for (final Posting posting : postings) {
+        ++n;
+        if (maxPostings_ > 0 && stored > maxPostings_) continue;
+        if (stored == docs_.length) {
+          docs_ = Arrays.copyOf(docs_, 2 * stored);
+          weights_ = Arrays.copyOf(weights_, 2 * stored);
+        }
+        docs_[stored] = posting.doc_;
+        weights_[stored] = posting.weight_;
+        ++stored;
+      }
+
+      partial_.term_ = term.get();
+      final boolean used = AllPairs.pairs(
+          docs_, weights_, stored, maxPostings_,
+          new AllPairs.PairSink() {
+            @Override public
+            void pair(final long first, final long second,
+                      final double product)
+            throws IOException, InterruptedException {
+              pair_.first_ = first;
+              pair_.second_ = second;
+              partial_.product_ = product;
+              context.write(pair_, partial_);
+            }
+          });
+      if (used) {
+        context.getCounter(Counters.PARTIAL_SCORES)
+          .increment((long) n * (n - 1) / 2);
+      }
+      else {
+        context.getCounter(Counters.SKIPPED_TERMS).increment(1);
+        context.getCounter(Counters.SKIPPED_POSTINGS).increment(n);
+      }
+    }
+
+    private int maxPostings_;
+    private long[] docs_ = new long[INITIAL_CAPACITY];
+    private double[] weights_ = new double[INITIAL_CAPACITY];
+    private final Pair pair_ = new Pair();
+    private final Partial partial_ = new Partial();
+  }
+
+
+  /**
+   * Job 2, reduce: Sums up the similarity of a pair, and emits it to both
+   * documents if it is high enough.
+   */
+  public static
+  class PairsReducer extends Reducer<Pair, Partial, LongWritable, Match> {
+    @Override protected
+    void reduce(final Pair pair, final Iterable<Partial> partials,
+                final Context context)
+    throws IOException, InterruptedException {
+      int n = 0;
+      for (final Partial partial : partials) {
+        if (n == terms_.length) {
+          terms_ = Arrays.copyOf(terms_, 2 * n);
+          products_ = Arrays.copyOf(products_, 2 * n);
+        }
+        terms_[n] = partial.term_;
+        products_[n] = partial.product_;
+        ++n;
+      }
+
+      final double score = AllPairs.score(terms_, products_, n);
+      if (score < IndexClusterer.SIMILARITY_THRESHOLD) return;
+      context.getCounter(Counters.MATCHES).increment(1);
+      match_.score_ = score;
+      doc_.set(pair.first_);
+      match_.other_ = pair.second_;
+      context.write(doc_, match_);
+      doc_.set(pair.second_);
+      match_.other_ = pair.first_;
+      context.write(doc_, match_);
+    }
+
+    private long[] terms_ = new long[INITIAL_CAPACITY];
+    private double[] products_ = new double[INITIAL_CAPACITY];
+    private final LongWritable doc_ = new LongWritable();
+    private final Match match_ = new Match();
+  }
+
+
+  /**
+   * Job 3, map: Passes on the matches, and adds the name of each document
+   * (from the vectors).
+   */
+  public static
+  class LeadersMapper extends Mapper<Writable, Writable, LongWritable, Match> {
+    @Override protected
+    void setup(final Context context) {
+      final InputSplit split = context.getInputSplit();
+      part_ = part(context.getConfiguration(), ((FileSplit) split).getPath());
+      sparsifier_ = sparsifier(context.getConfiguration());
+    }
+
+    @Override protected
+    void map(final Writable key, final Writable value, final Context context)
+    throws IOException, InterruptedException {
+      if (part_ == -1) {
+        context.write((LongWritable) key, (Match) value);
+        return;
+      }
+      Vector vector = ((VectorWritable) value).get();
+      if (sparsifier_ != null) vector = sparsifier_.apply(vector);
+      final long doc = documentKey(part_, record_++, vector);
+      if (doc == -1) return;
+      doc_.set(doc);
+      name_.other_ = Match.NAME;
+      name_.name_ = ((NamedVector) vector).getName();
+      context.write(doc_, name_);
+    }
+
+    private int part_;
+    private Sparsifier sparsifier_;
+    private long record_ = 0;
+    private final LongWritable doc_ = new LongWritable();
+    private final Match name_ = new Match();
+  }
+
+
+  /** Job 3, reduce: The centricity and best match of a document. */
+  public static
+  class LeadersReducer extends Reducer<LongWritable, Match,
+                                       LongWritable, Best> {
+    @Override protected
+    void reduce(final LongWritable doc, final Iterable<Match> matches,
+                final Context context)
+    throws IOException, InterruptedException {
+      int n = 0;
+      String name = null;
+      for (final Match match : matches) {
+        if (match.other_ == Match.NAME) {
+          name = match.name_;
+          continue;
+        }
+        if (n == others_.length) {
+          others_ = Arrays.copyOf(others_, 2 * n);
+          scores_ = Arrays.copyOf(scores_, 2 * n);
+        }
+        others_[n] = match.other_;
+        scores_[n] = match.score_;
+        ++n;
+      }
+
+      final AllPairs.Leader leader =
+        AllPairs.leader(doc.get(), others_, scores_, n,
+                        IndexClusterer.REASSIGN_THRESHOLD);
+      if (leader.centricity() <= 0) {
+        context.getCounter(Counters.UNMATCHED_DOCUMENTS).increment(1);
+        return;
+      }
+      best_.name_ = name;
+      best_.leader_ = leader.leader();
+      best_.score_ = leader.score();
+      best_.centricity_ = leader.centricity();
+      context.write(doc, best_);
+    }
+
+    private long[] others_ = new long[INITIAL_CAPACITY];
+    private double[] scores_ = new double[INITIAL_CAPACITY];
+    private final Best best_ = new Best();
+  }
+
+
+  /** A document and the weight of a term in it. */
+  public static
+  class Posting implements Writable {
+    @Override public
+    void write(final DataOutput out) throws IOException {
+      out.writeLong(doc_);
+      out.writeDouble(weight_);
+    }
+
+    @Override public
+    void readFields(final DataInput in) throws IOException {
+      doc_ = in.readLong();
+      weight_ = in.readDouble();
+    }
+
+    long doc_;
+    double weight_;
+  }
+
+
+  /** Two documents, the earlier one first. */
+  public static
+  class Pair implements WritableComparable<Pair> {
+    @Override public
+    void write(final DataOutput out) throws IOException {
+      out.writeLong(first_);
+      out.writeLong(second_);
+    }
+
+    @Override public
+    void readFields(final DataInput in) throws IOException {
+      first_ = in.readLong();
+      second_ = in.readLong();
+    }
+
+    @Override public
+    int compareTo(final Pair other) {
+      if (first_ != other.first_) return first_ < other.first_ ? -1 : 1;
+      if (second_ != other.second_) return second_ < other.second_ ? -1 : 1;
+      return 0;
+    }
+
+    @Override public
+    boolean equals(final Object other) {
+      return other instanceof Pair && compareTo((Pair) other) == 0;
+    }
+
+    /** Used to partition the pairs, so it must not depend on the JVM. */
+    @Override public
+    int hashCode() {
+      final long h = first_ * 31 + second_;
+      return (int) (h ^ (h >>> 32));
+    }
+
+    long first_;
+    long second_;
+  }
+
+
+  /** The product of the weights of a term in a pair of documents. */
+  public static
+  class Partial implements Writable {
+    @Override public
+    void write(final DataOutput out) throws IOException {
+      out.writeLong(term_);
+      out.writeDouble(product_);
+    }
+
+    @Override public
+    void readFields(final DataInput in) throws IOException {
+      term_ = in.readLong();
+      product_ = in.readDouble();
+    }
+
+    long term_;
+    double product_;
+  }
+
+
+  /**
+   * Another document that the key document is similar to, or the name of
+   * the key document (if other is {@link #NAME}).
+   */
+  public static
+  class Match implements Writable {
+    static final long NAME = -1;
+
+    @Override public
+    void write(final DataOutput out) throws IOException {
+      out.writeLong(other_);
+      if (other_ == NAME) out.writeUTF(name_);
+      else out.writeDouble(score_);
+    }
+
+    @Override public
+    void readFields(final DataInput in) throws IOException {
+      other_ = in.readLong();
+      if (other_ == NAME) name_ = in.readUTF();
+      else score_ = in.readDouble();
+    }
+
+    long other_;
+    double score_;
+    String name_;
+  }
+
+
+  /** Name, best match and centricity of a document. */
+  public static
+  class Best implements Writable {
+    @Override public
+    void write(final DataOutput out) throws IOException {
+      out.writeUTF(name_);
+      out.writeLong(leader_);
+      out.writeDouble(score_);
+      out.writeDouble(centricity_);
+    }
+
+    @Override public
+    void readFields(final DataInput in) throws IOException {
+      name_ = in.readUTF();
+      leader_ = in.readLong();
+      score_ = in.readDouble();
+      centricity_ = in.readDouble();
+    }
+
+    String name_;
+    long leader_;
+    double score_;
+    double centricity_;
+  }
+
+
+  private static final Logger log = LoggerFactory.getLogger(AllPairsJob.class);
+
+  private static final String POSTINGS = "postings";
+  private static final String PAIRS = "pairs";
+  private static final String LEADERS = "leaders";
+
+  private static final String CONF_VECTOR_PARTS =
+    "org.mozilla.grouperfish.textcluster.vector-parts";
+  private static final String CONF_MAX_POSTINGS =
+    "org.mozilla.grouperfish.textcluster.max-postings";
+  private static final String CONF_TOP_TERMS =
+    "org.mozilla.grouperfish.textcluster.top-terms";
+  private static final String CONF_L2_MASS =
+    "org.mozilla.grouperfish.textcluster.l2-mass";
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final Configuration hadoopConf_;
+  private final Path vectors_;
+  private final Path outputDir_;
+  private final String jobName_;
+  private final TextClusterOptions options_;
+
+  private Path[] vectorParts_;
+
+}
@@ -0,0 +1,174 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.mahout.math.Vector;
+import org.mozilla.grouper.model.BaseCluster;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Clusters blocks of vectors in the background while the caller keeps
+ * adding (reading) vectors for the next block.
+ *
+ * Up to {@link TextClusterOptions#blockParallelism()} blocks are clustered
+ * at the same time, each by its own {@link IndexClusterer}. One more block
+ * is filled by the caller meanwhile: {@link #add(Vector)} blocks while all
+ * clusterers are busy, which bounds the number of blocks in memory.
+ *
+ * Clusters and rest are collected in block order, so the results are the
+ * same as when adding all vectors to a single clusterer.
+ */
+final class BlockPipeline {
+
+  BlockPipeline(final int dictSize, final TextClusterOptions options) {
+    final int parallelism = options.blockParallelism();
+    executor_ = Executors.newFixedThreadPool(parallelism);
+    free_ = new ArrayBlockingQueue<IndexClusterer>(parallelism + 1);
+    for (int i = 0; i < parallelism + 1; ++i) {
+      free_.add(new IndexClusterer(dictSize, options));
+    }
+  }
+
+
+  /** Adds a vector, waiting for a free clusterer if necessary. */
+  void add(final Vector vector) {
+    add(vector, 1);
+  }
+
+
+  /** @see IndexClusterer#fill(Vector, int) */
+  void add(final Vector vector, final int count) {
+    if (current().fill(vector, count)) submit();
+  }
+
+
+  /**
+   * Clusters the last block and waits for all blocks.
+   * @return The clusters of all blocks, in order of the blocks.
+   */
+  List<BaseCluster> finish() {
+    // The last block can be empty if the one before was just full.
+    if (current_ != null || pending_.isEmpty()) {
+      current();
+      submit();
+    }
+
+    final List<BaseCluster> clusters = new ArrayList<BaseCluster>();
+    try {
+      for (final Future<Block> pending : pending_) {
+        final Block block = pending.get();
+        clusters.addAll(block.clusters_);
+        rest_.addAll(block.rest_);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    finally {
+      close();
+    }
+    return clusters;
+  }
+
+
+  /** Documents of all blocks that could not be clustered (after finish). */
+  List<Vector> rest() {
+    return rest_;
+  }
+
+
+  /** The number of blocks submitted for clustering so far. */
+  int blocks() {
+    return pending_.size();
+  }
+
+
+  /** Stops clustering (needed if {@link #finish()} is not reached). */
+  void close() {
+    executor_.shutdownNow();
+  }
+
+
+  private
+  IndexClusterer current() {
+    if (current_ == null) {
+      try {
+        current_ = free_.take();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+    return current_;
+  }
+
+
+  private
+  void submit() {
+    log.info(String.format("Submitting block %d for clustering.",
+                           pending_.size()));
+    pending_.add(executor_.submit(new BlockTask(current_)));
+    current_ = null;
+  }
+
+
+  /** The clustering of one block. */
+  private static final
+  class Block {
+    Block(final List<BaseCluster> clusters, final List<Vector> rest) {
+      clusters_ = clusters;
+      rest_ = rest;
+    }
+    final List<BaseCluster> clusters_;
+    final List<Vector> rest_;
+  }
+
+
+  /** Clusters a filled block, then returns the clusterer to the pool. */
+  private
+  class BlockTask implements Callable<Block> {
+
+    BlockTask(final IndexClusterer clusterer) {
+      clusterer_ = clusterer;
+    }
+
+    @Override public
+    Block call() {
+      try {
+        final List<BaseCluster> clusters = clusterer_.flush();
+        return new Block(clusters, clusterer_.takeRest());
+      }
+      finally {
+        free_.add(clusterer_);
+      }
+    }
+
+    private final IndexClusterer clusterer_;
+  }
+
+
+  private static final Logger log =
+    LoggerFactory.getLogger(BlockPipeline.class);
+
+  private final ExecutorService executor_;
+  private final BlockingQueue<IndexClusterer> free_;
+  private final List<Future<Block>> pending_ = new ArrayList<Future<Block>>();
+  private final List<Vector> rest_ = new ArrayList<Vector>();
+  private IndexClusterer current_ = null;
+
+}
@@ -0,0 +1,172 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.mozilla.grouper.model.BaseCluster;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Meta-clustering: Merges the clusters of independently clustered blocks.
+ */
+final class ClusterMerger {
+
+  ClusterMerger(final TextClusterOptions options) {
+    options_ = options;
+  }
+
+
+  /**
+   * Merges similar clusters by clustering their medoids, level by level:
+   * The medoids of a level are clustered in groups (blocks of the
+   * IndexClusterer), several groups in parallel. As the number of clusters
+   * shrinks, clusters from different groups meet in the groups of the next
+   * level. This stops once everything fits into a single group, or when a
+   * level does not reduce the number of clusters.
+   *
+   * Finally, members that ended up with a different medoid are rescored.
+   */
+  List<BaseCluster> merge(List<BaseCluster> result) {
+    if (result.size() <= 1) return result;
+    log.info("Starting meta-clustering...");
+    final int cardinality = result.get(0).medoid().size();
+    List<BaseCluster> level = result;
+    for (int depth = 1; level.size() > 1; ++depth) {
+      final long ts = System.currentTimeMillis();
+      final BlockPipeline pipeline = new BlockPipeline(cardinality, options_);
+      final List<BaseCluster> next;
+      try {
+        next = mergeLevel(level, pipeline);
+      }
+      finally {
+        pipeline.close();
+      }
+      log.info(String.format(
+          "Meta-clustering level %d: %d -> %d clusters (%d groups). " +
+          "Took %dms.", depth, level.size(), next.size(), pipeline.blocks(),
+          System.currentTimeMillis() - ts));
+
+      final boolean shrunk = next.size() < level.size();
+      level = next;
+      if (!shrunk || pipeline.blocks() == 1) break;
+    }
+    rescore(level);
+    return level;
+  }
+
+
+  /** One level of the merge tree. */
+  private
+  List<BaseCluster> mergeLevel(List<BaseCluster> clusters,
+                               BlockPipeline merger) {
+    // Medoids are identified by instance (equal vectors can be distinct).
+    final Map<Vector, BaseCluster> sources =
+      new IdentityHashMap<Vector, BaseCluster>(clusters.size());
+    for (BaseCluster c : clusters) {
+      sources.put(c.medoid(), c);
+      merger.add(c.medoid());
+    }
+    final List<BaseCluster> metaClusters = merger.finish();
+
+    List<BaseCluster> flatClusters = new ArrayList<BaseCluster>();
+    for (final BaseCluster meta : metaClusters) {
+      final Vector medoid = meta.medoid();
+      final List<Vector> related = new ArrayList<Vector>();
+      final List<Double> similarities = new ArrayList<Double>();
+      related.addAll(sources.get(medoid).related());
+      similarities.addAll(sources.get(medoid).similarities());
+      sources.remove(medoid);
+
+      int i = 0;
+      for (final Vector substitue : meta.related()) {
+        related.add(substitue);
+        similarities.add(meta.similarities().get(i));
+        // Their similarities to the new medoid are computed in the end.
+        related.addAll(sources.get(substitue).related());
+        for (int k = 0; k < sources.get(substitue).size(); ++k) {
+          similarities.add(UNSCORED);
+        }
+        sources.remove(substitue);
+        ++i;
+      }
+
+      flatClusters.add(new BaseCluster(medoid, related, similarities));
+    }
+
+    // Clusters that were not merged are kept as they are.
+    for (BaseCluster c : clusters) {
+      if (sources.containsKey(c.medoid())) flatClusters.add(c);
+    }
+    return flatClusters;
+  }
+
+
+  /**
+   * Computes the missing similarities of members to their medoids. Each
+   * medoid is copied into a dense array once, so every member costs time
+   * proportional to its own number of non-zero elements.
+   */
+  private
+  void rescore(final List<BaseCluster> clusters) {
+    final long ts = System.currentTimeMillis();
+    double[] medoid = null;
+    int rescored = 0;
+    for (final BaseCluster c : clusters) {
+      final List<Double> similarities = c.similarities();
+      boolean loaded = false;
+      for (int i = 0; i < c.size(); ++i) {
+        if (!similarities.get(i).isNaN()) continue;
+        if (!loaded) {
+          if (medoid == null) medoid = new double[c.medoid().size()];
+          copy(c.medoid(), medoid, true);
+          loaded = true;
+        }
+        similarities.set(i, Double.valueOf(dot(medoid, c.related().get(i))));
+        ++rescored;
+      }
+      if (loaded) copy(c.medoid(), medoid, false);
+    }
+    log.info(String.format("Rescored %d reassigned members. Took %dms.",
+                           rescored, System.currentTimeMillis() - ts));
+  }
+
+
+  /** Copies the elements of a vector into (or clears them from) an array. */
+  private static
+  void copy(final Vector vector, final double[] dense, final boolean set) {
+    final Iterator<Element> it = vector.iterateNonZero();
+    while (it.hasNext()) {
+      final Element e = it.next();
+      dense[e.index()] = set ? e.get() : 0;
+    }
+  }
+
+
+  private static
+  double dot(final double[] dense, final Vector vector) {
+    double dot = 0;
+    final Iterator<Element> it = vector.iterateNonZero();
+    while (it.hasNext()) {
+      final Element e = it.next();
+      dot += dense[e.index()] * e.get();
+    }
+    return dot;
+  }
+
+
+  /** Placeholder for similarities that are yet to be computed. */
+  private static final Double UNSCORED = Double.valueOf(Double.NaN);
+
+  private static final Logger log =
+    LoggerFactory.getLogger(ClusterMerger.class);
+
+  private final TextClusterOptions options_;
+
+}
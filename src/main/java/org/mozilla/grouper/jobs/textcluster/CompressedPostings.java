@@ -0,0 +1,156 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.Arrays;
+
+
+/**
+ * Inverted index like {@link Postings}, in about a quarter of the memory,
+ * for large blocks.
+ *
+ * The postings of each term are stored in one byte stream, highest document
+ * first: The gap to the previous document (starting from the block size) as
+ * a variable-byte integer (7 bits per byte, the high bit is set on all but
+ * the last byte), then the weight quantized to 16 bits, relative to the
+ * largest weight of the term. Most gaps take one or two bytes, so a posting
+ * takes 3-4 bytes instead of 12.
+ *
+ * Scoring walks postings from the highest document down to the query (see
+ * {@link #walk}), which is the order of the stream, so decoding is a single
+ * forward pass over each term that stops at the query. Quantized weights are
+ * accurate to about 1/32767 of the term's largest weight, so scores can be
+ * off by that much.
+ */
+final class CompressedPostings {
+
+  /** Estimated bytes per posting (see IndexClusterer#blockBytes). */
+  static final int POSTING_BYTES = 4;
+
+
+  /**
+   * Compresses the postings of all terms of a block.
+   *
+   * @param head Terms that are not to be indexed (may be <tt>null</tt>).
+   */
+  CompressedPostings(final VectorStore vectors, final HeadColumns head) {
+    final int n = vectors.size();
+    final int numTerms = vectors.numTerms();
+    final int[] terms = vectors.terms();
+    final double[] weights = vectors.weights();
+    numDocs_ = n;
+    offsets_ = new int[numTerms + 1];
+    factors_ = new double[numTerms];
+
+    // First pass: The size of each term's stream, and its largest weight.
+    final int[] previous = new int[numTerms];
+    Arrays.fill(previous, n);
+    for (int doc = n - 1; doc >= 0; --doc) {
+      for (int i = vectors.start(doc); i < vectors.end(doc); ++i) {
+        final int term = terms[i];
+        if (head != null && head.has(term)) continue;
+        offsets_[term] += gapBytes(previous[term] - doc) + WEIGHT_BYTES;
+        previous[term] = doc;
+        factors_[term] = Math.max(factors_[term], Math.abs(weights[i]));
+        ++size_;
+      }
+    }
+    int position = 0;
+    for (int term = 0; term < numTerms; ++term) {
+      final int bytes = offsets_[term];
+      offsets_[term] = position;
+      position += bytes;
+      factors_[term] /= Short.MAX_VALUE;
+    }
+    offsets_[numTerms] = position;
+    bytes_ = new byte[position];
+
+    // Second pass: Write the streams. While filling, offsets_[t] serves as
+    // the write position for term t (as in Postings).
+    Arrays.fill(previous, n);
+    for (int doc = n - 1; doc >= 0; --doc) {
+      for (int i = vectors.start(doc); i < vectors.end(doc); ++i) {
+        final int term = terms[i];
+        if (head != null && head.has(term)) continue;
+        int p = offsets_[term];
+        int gap = previous[term] - doc;
+        while (gap >= 0x80) {
+          bytes_[p++] = (byte) (gap | 0x80);
+          gap >>>= 7;
+        }
+        bytes_[p++] = (byte) gap;
+        final int q = factors_[term] == 0
+          ? 0 : (int) Math.round(weights[i] / factors_[term]);
+        bytes_[p++] = (byte) (q >> 8);
+        bytes_[p++] = (byte) q;
+        offsets_[term] = p;
+        previous[term] = doc;
+      }
+    }
+    System.arraycopy(offsets_, 0, offsets_, 1, numTerms);
+    offsets_[0] = 0;
+  }
+
+
+  /**
+   * Adds <tt>weight</tt> times the weight of each posting of <tt>term</tt>
+   * with a document above <tt>query</tt> to the accumulator.
+   *
+   * @return The number of postings walked.
+   */
+  int walk(final int term, final int query, final double weight,
+           final ScoreAccumulator similars) {
+    final byte[] bytes = bytes_;
+    final int end = offsets_[term + 1];
+    final double factor = weight * factors_[term];
+    int p = offsets_[term];
+    int doc = numDocs_;
+    int walked = 0;
+    while (p < end) {
+      int b = bytes[p++];
+      int gap = b & 0x7f;
+      for (int shift = 7; b < 0; shift += 7) {
+        b = bytes[p++];
+        gap |= (b & 0x7f) << shift;
+      }
+      doc -= gap;
+      if (doc <= query) break;
+      final int q = (bytes[p] << 8) | (bytes[p + 1] & 0xff);
+      p += WEIGHT_BYTES;
+      similars.add(doc, factor * q);
+      ++walked;
+    }
+    return walked;
+  }
+
+
+  /** Total number of postings. */
+  int size() {
+    return size_;
+  }
+
+
+  /** Size of the encoded postings, in bytes. */
+  int bytes() {
+    return bytes_.length;
+  }
+
+
+  private static
+  int gapBytes(final int gap) {
+    if (gap < 1 << 7) return 1;
+    if (gap < 1 << 14) return 2;
+    if (gap < 1 << 21) return 3;
+    if (gap < 1 << 28) return 4;
+    return 5;
+  }
+
+
+  private static final int WEIGHT_BYTES = 2;
+
+  private final int numDocs_;
+  private final int[] offsets_;
+  /** For each term, the weight of a quantization step. */
+  private final double[] factors_;
+  private final byte[] bytes_;
+  private int size_ = 0;
+
+}
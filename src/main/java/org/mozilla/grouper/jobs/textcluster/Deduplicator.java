@@ -0,0 +1,155 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.mozilla.grouper.model.BaseCluster;
+
+
+/**
+ * Collapses identical and near-identical vectors before clustering, and
+ * expands them again in the resulting clusters.
+ *
+ * Feedback contains lots of short, identical texts ("crashes", "too slow").
+ * Each of them would be indexed and scored separately, although they all
+ * end up in the same cluster. Instead, the first of each group of
+ * duplicates is clustered as their representative (with the number of
+ * documents it stands for, see {@link IndexClusterer#fill(Vector, int)}).
+ *
+ * Vectors are duplicates if they have the same terms, and their weights are
+ * equal after rounding to {@link #QUANTUM}.
+ */
+final class Deduplicator {
+
+  /** Precision of weights when comparing vectors. */
+  static final double QUANTUM = .01;
+
+
+  /** @return <tt>true</tt> if the vector is new (not a duplicate). */
+  boolean add(final Vector vector) {
+    ++size_;
+    final Key key = new Key(vector);
+    final Vector representative = representativeByKey_.get(key);
+    if (representative == null) {
+      representativeByKey_.put(key, vector);
+      representatives_.add(vector);
+      return true;
+    }
+    List<Vector> duplicates = duplicates_.get(representative);
+    if (duplicates == null) {
+      duplicates = new ArrayList<Vector>(1);
+      duplicates_.put(representative, duplicates);
+    }
+    duplicates.add(vector);
+    return false;
+  }
+
+
+  /** The number of vectors added. */
+  int size() {
+    return size_;
+  }
+
+
+  /** One vector per group of duplicates, in order of addition. */
+  List<Vector> representatives() {
+    return representatives_;
+  }
+
+
+  /** The number of vectors that a representative stands for. */
+  int count(final Vector representative) {
+    return 1 + duplicates(representative).size();
+  }
+
+
+  /** The vectors collapsed into a representative (without itself). */
+  List<Vector> duplicates(final Vector representative) {
+    final List<Vector> duplicates = duplicates_.get(representative);
+    if (duplicates == null) return new ArrayList<Vector>(0);
+    return duplicates;
+  }
+
+
+  /**
+   * Adds the collapsed duplicates of medoids and members to their clusters.
+   * Duplicates of the medoid have a similarity of 1, those of a member the
+   * similarity of the member.
+   */
+  List<BaseCluster> expand(final List<BaseCluster> clusters) {
+    final List<BaseCluster> expanded =
+      new ArrayList<BaseCluster>(clusters.size());
+    for (final BaseCluster cluster : clusters) {
+      final List<Vector> related = new ArrayList<Vector>(cluster.size());
+      final List<Double> similarities = new ArrayList<Double>(cluster.size());
+      for (final Vector duplicate : duplicates(cluster.medoid())) {
+        related.add(duplicate);
+        similarities.add(Double.valueOf(1.));
+      }
+      for (int i = 0; i < cluster.size(); ++i) {
+        final Vector member = cluster.related().get(i);
+        final Double similarity = cluster.similarities().get(i);
+        related.add(member);
+        similarities.add(similarity);
+        for (final Vector duplicate : duplicates(member)) {
+          related.add(duplicate);
+          similarities.add(similarity);
+        }
+      }
+      expanded.add(new BaseCluster(cluster.medoid(), related, similarities));
+    }
+    return expanded;
+  }
+
+
+  /** The sorted terms and rounded weights of a vector. */
+  private static final
+  class Key {
+
+    Key(final Vector vector) {
+      elements_ = new long[vector.getNumNondefaultElements()];
+      int i = 0;
+      final Iterator<Element> it = vector.iterateNonZero();
+      while (it.hasNext()) {
+        final Element e = it.next();
+        final long weight = Math.round(e.get() / QUANTUM);
+        elements_[i++] = ((long) e.index() << 32) | (weight & 0xffffffffL);
+      }
+      Arrays.sort(elements_, 0, i);
+      if (i < elements_.length) elements_ = Arrays.copyOf(elements_, i);
+      hash_ = Arrays.hashCode(elements_);
+    }
+
+    @Override public
+    int hashCode() {
+      return hash_;
+    }
+
+    @Override public
+    boolean equals(final Object other) {
+      return other instanceof Key
+          && Arrays.equals(elements_, ((Key) other).elements_);
+    }
+
+    private long[] elements_;
+    private final int hash_;
+  }
+
+
+  private final Map<Key, Vector> representativeByKey_ =
+    new HashMap<Key, Vector>();
+  private final List<Vector> representatives_ = new ArrayList<Vector>();
+
+  /** Vectors are compared by identity (they are the documents). */
+  private final Map<Vector, List<Vector>> duplicates_ =
+    new IdentityHashMap<Vector, List<Vector>>();
+  private int size_ = 0;
+
+}
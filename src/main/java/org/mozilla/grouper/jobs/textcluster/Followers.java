@@ -0,0 +1,86 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.Arrays;
+
+
+/**
+ * The followers of each document of a block, as intrusive linked lists over
+ * int arrays: Each document is a member of at most one list, so a single
+ * "next" pointer per document suffices.
+ *
+ * Appending a document along with all of its own followers to another list
+ * (splicing) takes constant time, no matter how large the lists are.
+ */
+final class Followers {
+
+  static final int NONE = -1;
+
+
+  /** @param n The number of documents. */
+  Followers(final int n) {
+    head_ = new int[n];
+    tail_ = new int[n];
+    next_ = new int[n];
+    size_ = new int[n];
+    Arrays.fill(head_, NONE);
+    Arrays.fill(tail_, NONE);
+    Arrays.fill(next_, NONE);
+  }
+
+
+  /**
+   * Makes <tt>doc</tt> a follower of <tt>leader</tt>. The followers of
+   * <tt>doc</tt> are moved to <tt>leader</tt> (after <tt>doc</tt>).
+   *
+   * @return <tt>true</tt> if the followers of <tt>doc</tt> were spliced.
+   */
+  boolean follow(final int leader, final int doc) {
+    append(leader, doc, doc, 1);
+    if (head_[doc] == NONE) return false;
+    append(leader, head_[doc], tail_[doc], size_[doc]);
+    head_[doc] = NONE;
+    tail_[doc] = NONE;
+    size_[doc] = 0;
+    return true;
+  }
+
+
+  boolean has(final int leader) {
+    return head_[leader] != NONE;
+  }
+
+
+  int size(final int leader) {
+    return size_[leader];
+  }
+
+
+  /** The first follower of <tt>leader</tt>, or {@link #NONE}. */
+  int first(final int leader) {
+    return head_[leader];
+  }
+
+
+  /** The follower after <tt>doc</tt> in its list, or {@link #NONE}. */
+  int next(final int doc) {
+    return next_[doc];
+  }
+
+
+  /** Appends the chain <tt>first</tt>...<tt>last</tt> to a list. */
+  private
+  void append(final int leader, final int first, final int last,
+              final int size) {
+    if (head_[leader] == NONE) head_[leader] = first;
+    else next_[tail_[leader]] = first;
+    tail_[leader] = last;
+    size_[leader] += size;
+  }
+
+
+  private final int[] head_;
+  private final int[] tail_;
+  private final int[] next_;
+  private final int[] size_;
+
+}
@@ -0,0 +1,162 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.Arrays;
+
+
+/**
+ * The most common terms of a block, indexed as dense columns (one weight
+ * per document, zero if the document does not contain the term) instead of
+ * postings.
+ *
+ * In feedback, a few hundred terms appear in a large share of documents,
+ * and walking their postings is most of the work of stage 1. A column is
+ * walked with a tight loop over one array (see
+ * {@link ScoreAccumulator#addColumn}), which pays off once a term is in
+ * enough documents that the zeros cost less than the indirection through
+ * postings: see {@link #cutover(int)}. The less common (tail) terms stay in
+ * the postings.
+ *
+ * Scores are summed up in the same order either way, so clusters do not
+ * depend on which terms are head terms.
+ */
+final class HeadColumns {
+
+  /**
+   * Walking an entry of a column costs about this share of walking a
+   * posting (measured with HeadColumnsBenchmark, where the columns break
+   * even at a document frequency of about 10%).
+   */
+  static final double DENSE_COST = .15;
+
+  /** Smaller blocks are cheap to score either way. */
+  static final int MIN_BLOCK_SIZE = 1000;
+
+  /**
+   * Columns may take up to this many times the memory of the postings they
+   * replace (a column has 8 bytes per document, a posting 12).
+   */
+  static final int MAX_MEMORY_FACTOR = 4;
+
+  /** The memory of a column, per document. */
+  static final int BYTES_PER_DOCUMENT = 8;
+
+
+  /**
+   * The document frequency from which a term of a block with <tt>n</tt>
+   * documents becomes a head term: Where a column is cheaper to walk than
+   * the postings, and does not take too much memory.
+   */
+  static
+  int cutover(final int n) {
+    final double byCost = n * DENSE_COST;
+    final double byMemory =
+      (double) BYTES_PER_DOCUMENT * n / (12. * MAX_MEMORY_FACTOR);
+    return (int) Math.ceil(Math.max(byCost, byMemory));
+  }
+
+
+  /**
+   * @return <tt>null</tt> if the block is small, or has no terms that are
+   *         common enough.
+   */
+  static
+  HeadColumns create(final VectorStore vectors) {
+    final int n = vectors.size();
+    if (n < MIN_BLOCK_SIZE) return null;
+    return create(vectors, cutover(n));
+  }
+
+
+  /**
+   * The number of head terms that {@link #create(VectorStore)} would find
+   * in the vectors so far. Each takes {@link #BYTES_PER_DOCUMENT} per
+   * document of the block.
+   */
+  static
+  int count(final VectorStore vectors) {
+    final int n = vectors.size();
+    if (n < MIN_BLOCK_SIZE) return 0;
+    final int cutover = cutover(n);
+    final int[] termCounts = vectors.termCounts();
+    int size = 0;
+    for (int term = 0; term < vectors.numTerms(); ++term) {
+      if (termCounts[term] >= cutover) ++size;
+    }
+    return size;
+  }
+
+
+  /** With the given cutover (for benchmarks and tests). */
+  static
+  HeadColumns create(final VectorStore vectors, final int cutover) {
+    final int[] termCounts = vectors.termCounts();
+    final int numTerms = vectors.numTerms();
+    final int[] columnOf = new int[numTerms];
+    int size = 0;
+    for (int term = 0; term < numTerms; ++term) {
+      columnOf[term] = termCounts[term] >= cutover ? size++ : NONE;
+    }
+    if (size == 0) return null;
+    return new HeadColumns(vectors, columnOf, size, cutover);
+  }
+
+
+  private
+  HeadColumns(final VectorStore vectors, final int[] columnOf,
+              final int size, final int cutover) {
+    columnOf_ = columnOf;
+    cutover_ = cutover;
+    columns_ = new double[size][vectors.size()];
+
+    final int[] terms = vectors.terms();
+    final double[] weights = vectors.weights();
+    tailCounts_ = Arrays.copyOf(vectors.termCounts(), columnOf.length);
+    for (int term = 0; term < columnOf.length; ++term) {
+      if (columnOf[term] != NONE) tailCounts_[term] = 0;
+    }
+    for (int doc = 0; doc < vectors.size(); ++doc) {
+      for (int i = vectors.start(doc); i < vectors.end(doc); ++i) {
+        final int column = columnOf[terms[i]];
+        if (column != NONE) columns_[column][doc] = weights[i];
+      }
+    }
+  }
+
+
+  /** Whether a term is a head term. */
+  boolean has(final int term) {
+    return columnOf_[term] != NONE;
+  }
+
+
+  /** The column of a head term. */
+  double[] column(final int term) {
+    return columns_[columnOf_[term]];
+  }
+
+
+  /** For each term, the number of postings it needs (zero for head terms). */
+  int[] tailCounts() {
+    return tailCounts_;
+  }
+
+
+  /** The number of head terms. */
+  int size() {
+    return columns_.length;
+  }
+
+
+  int cutover() {
+    return cutover_;
+  }
+
+
+  private static final int NONE = -1;
+
+  private final int[] columnOf_;
+  private final double[][] columns_;
+  private final int[] tailCounts_;
+  private final int cutover_;
+
+}
@@ -3,13 +3,17 @@ package org.mozilla.grouper.jobs.textcluster;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.mahout.math.Vector;
-import org.apache.mahout.math.Vector.Element;
 import org.mozilla.grouper.jobs.Histogram;
 import org.mozilla.grouper.model.BaseCluster;
 import org.slf4j.Logger;
@@ -34,17 +38,17 @@ import org.slf4j.LoggerFactory;
  * The original paper on canopy clustering already suggests using an inverted
  * index for high dimensions. This roughly builds on that idea.
  *
- * Sketch for full Map/Reduce parallelization without using chunks:
+ * Full Map/Reduce parallelization without using chunks (see AllPairsJob):
  *   1. Build the inverted index in the map stage (term) -> (doc, weight)
  *   2. From reducer, emit partial cosine similarity:
  *      (doc, doc, term) -> (weight)
- *          Q: what to do when postings from the mappers become too large?
+ *          Terms with too many postings are skipped (they are stopwords).
  *   3. Remap to the key (doc, doc) and value (score).
- *   4. Reduce: Sum the now sorted partial scores, use the top score and emit
- *              the entries with lower id to the left (normalization). These
- *              are our cluster members.
- *          Q: Can we use the followers/splicing with that (not triggered all
- *             that often anyways)?
+ *   4. Reduce: Sum the now sorted partial scores, and emit each match to
+ *              both documents.
+ *   5. Reduce per document: centricity and best match (as in stage 1).
+ *   The followers/splicing (stages 2 and 3) is linear, and done by the
+ *   driver.
  */
 public class IndexClusterer {
 
@@ -57,8 +61,29 @@ public class IndexClusterer {
   public static final double REASSIGN_THRESHOLD = .3;
   public static final int MIN_DOCUMENT_LENGTH = 2;
 
-  /** The tf-idf vectors from the input documents. */
-  private List<Vector> vectors_;
+  /**
+   * Estimated memory use of a block: For each non-zero element, its
+   * packed copy and its posting (12 bytes each), plus the storage in the
+   * original vector. For each document, the vector object, its position
+   * and the per-document arrays of the clustering stages. For each
+   * document and thread, the slot in the thread's score accumulator.
+   */
+  private static final int ELEMENT_BYTES = 48;
+  private static final int POSTING_BYTES = 12;
+  private static final int DOCUMENT_BYTES = 128;
+  private static final int DOCUMENT_BYTES_PER_THREAD = 12;
+
+  /** Best match of a document that has none (yet). */
+  static final int NO_MATCH = -1;
+
+  /** How often the head columns of a growing block are counted. */
+  private static final int HEAD_COUNT_INTERVAL = 500;
+
+  /** Number of documents that are scored together (by one thread). */
+  private static final int SCORING_CHUNK_SIZE = 500;
+
+  /** The tf-idf vectors from the input documents (of the current block). */
+  private final VectorStore vectors_;
 
   /**
    * Documents that could not be clustered are collected here,
@@ -67,27 +92,73 @@ public class IndexClusterer {
   private final List<Vector> rest_ = new java.util.ArrayList<Vector>();
 
   /**
-   * Inverted index that maps: term-index --> (doc-index --> weight)
-   *
-   * We do not use a sparse structure because we assume the load factor to be
-   * roughly 0.5 to 1 (depending on the collection size).
+   * Inverted index that maps: term-index --> (doc-index, weight)*
+   * Built from the vectors once the block is complete.
    */
-  private final List<Map<Integer, Double>> index_;
+  private Postings index_;
+
+  /** When pruning, the index only has some postings (see PrunedIndex). */
+  private PrunedIndex prunedIndex_;
+
+  /** With the MinHash engine, buckets replace the inverted index. */
+  private LshIndex lsh_;
+
+  /** Replaces index_ if postings are compressed. */
+  private CompressedPostings compressed_;
+
+  /** Common terms of the block, which are not in the postings. */
+  private HeadColumns head_;
+
+  /**
+   * The number of head columns the block is expected to have, for the
+   * memory estimate. Counted every HEAD_COUNT_INTERVAL documents.
+   */
+  private int headColumns_;
+
+  /**
+   * Metrics: Postings walked while scoring, and postings that an exhaustive
+   * scan would have walked on top of that (across all blocks).
+   */
+  private long scanned_ = 0;
+  private long skipped_ = 0;
 
   private final double minTreshold_ = SIMILARITY_THRESHOLD;
   private final double reassignTreshold_ = REASSIGN_THRESHOLD;
-  private final int blockSize_ = BLOCK_SIZE;
+  private final int blockSize_;
+  private final long memoryBudget_;
+  private final int threads_;
+  private final boolean pruning_;
+  private final boolean denseHead_;
+  private final boolean compress_;
+  private final TextClusterOptions.Engine engine_;
+  private final int lshBands_;
+  private final int lshRows_;
   private int n_;
-  private int dictSize_;
 
 
   /** the size of the term dictionary = maximum vector length = index size */
   public
   IndexClusterer(int dictSize) {
-    log.info(String.format("Creating index clusterer. Dictionary size: %d",
-                           dictSize));
-    dictSize_ = dictSize;
-    index_ = new java.util.ArrayList<Map<Integer, Double>>(dictSize);
+    this(dictSize, new TextClusterOptions());
+  }
+
+
+  public
+  IndexClusterer(int dictSize, TextClusterOptions options) {
+    log.info(String.format(
+        "Creating index clusterer. Dictionary size: %d, threads: %d, " +
+        "pruning: %s, engine: %s", dictSize, options.threads(),
+        options.pruning(), options.engine()));
+    threads_ = options.threads();
+    pruning_ = options.pruning();
+    denseHead_ = options.denseHead();
+    compress_ = options.compressedPostings();
+    engine_ = options.engine();
+    lshBands_ = options.lshBands();
+    lshRows_ = options.lshRows();
+    blockSize_ = options.blockSize();
+    memoryBudget_ = options.memoryBudget();
+    vectors_ = new VectorStore();
     reset();
   }
 
@@ -95,31 +166,56 @@ public class IndexClusterer {
   private
   void reset() {
     n_ = 0;
-    for (int i = 0; i < index_.size(); ++i)
-      index_.set(i, new java.util.HashMap<Integer, Double>());
-    for (int i = index_.size(); i < dictSize_; ++i)
-      index_.add(new java.util.HashMap<Integer, Double>());
-    vectors_ = new java.util.LinkedList<Vector>();
+    index_ = null;
+    prunedIndex_ = null;
+    lsh_ = null;
+    compressed_ = null;
+    head_ = null;
+    headColumns_ = 0;
+    vectors_.clear();
   }
 
 
   /**
-   * Returns <tt>null</tt> until BLOCK_SIZE vectors have been added.
+   * Returns <tt>null</tt> until the block is full: Either the configured
+   * block size (by default BLOCK_SIZE) has been reached, or the estimated
+   * memory use has reached the configured budget.
    * Then, compute and return a clustering and reset the internal state.
    */
   public
   List<BaseCluster> add(Vector next) {
-    if (next.getNumNondefaultElements() < MIN_DOCUMENT_LENGTH) return null;
+    if (!fill(next)) return null;
+    return flush();
+  }
+
+
+  /**
+   * Adds a vector to the current block without clustering it.
+   * @return <tt>true</tt> if the block is full and should be flushed.
+   */
+  boolean fill(Vector next) {
+    return fill(next, 1);
+  }
+
+
+  /**
+   * Adds a vector that stands for <tt>count</tt> identical documents (see
+   * {@link Deduplicator}). It is clustered once, but weighs as much as all
+   * of its documents when choosing medoids.
+   */
+  boolean fill(Vector next, int count) {
+    if (next.getNumNondefaultElements() < MIN_DOCUMENT_LENGTH) return false;
     ++n_;
-    vectors_.add(next);
-    if (next.size() > dictSize_) {
-      for (int i = dictSize_; i < next.size(); ++i)
-        index_.add(new java.util.HashMap<Integer, Double>());
-      dictSize_ = next.size();
+    vectors_.add(next, count);
+    if (hasHead() && n_ % HEAD_COUNT_INTERVAL == 0) {
+      headColumns_ = HeadColumns.count(vectors_);
     }
+    return blockFull();
+  }
 
-    if (n_ < blockSize_) return null;
 
+  /** Clusters the current block (full or not) and starts the next one. */
+  List<BaseCluster> flush() {
     createIndex();
     List<BaseCluster> clusters = createClusters();
     reset();
@@ -141,26 +237,266 @@ public class IndexClusterer {
     return rest_;
   }
 
+
+  /** Returns the documents that could not be clustered, and forgets them. */
+  List<Vector> takeRest() {
+    final List<Vector> rest = new ArrayList<Vector>(rest_);
+    rest_.clear();
+    return rest;
+  }
+
+
+  /**
+   * The number of postings that were walked while scoring so far. Head
+   * columns (see {@link HeadColumns}) and LSH buckets are not postings, and
+   * not counted.
+   */
+  public long scannedPostings() {
+    return scanned_;
+  }
+
+
+  /**
+   * The number of postings that an exhaustive scan would have walked in
+   * addition to {@link #scannedPostings()}, but pruning skipped.
+   */
+  public long skippedPostings() {
+    return skipped_;
+  }
+
+
+  private
+  boolean blockFull() {
+    if (n_ >= blockSize_) return true;
+    return memoryBudget_ > 0 && blockBytes() >= memoryBudget_;
+  }
+
+
+  /**
+   * Estimated memory use of the current block (see ELEMENT_BYTES), with a
+   * dense column per head term (the postings they save are not subtracted).
+   */
+  long blockBytes() {
+    final int lshBytes = engine_ == TextClusterOptions.Engine.MINHASH
+      ? lshBands_ * LshIndex.BYTES_PER_BAND : 0;
+    final int elementBytes = compress_ && !pruning_
+      ? ELEMENT_BYTES - POSTING_BYTES + CompressedPostings.POSTING_BYTES
+      : ELEMENT_BYTES;
+    return (long) elementBytes * vectors_.elements()
+      + (long) (DOCUMENT_BYTES + threads_ * DOCUMENT_BYTES_PER_THREAD
+                + lshBytes) * n_
+      + (long) HeadColumns.BYTES_PER_DOCUMENT * headColumns_ * n_;
+  }
+
+
+  /** Whether blocks index their most common terms as dense columns. */
+  private
+  boolean hasHead() {
+    return denseHead_ && !pruning_
+           && engine_ != TextClusterOptions.Engine.MINHASH;
+  }
+
+
   /** Builds the inverted index after all vectors have been added. */
   private
   void createIndex() {
 
     final long ts = System.currentTimeMillis();
-    log.info("Creating inverted index...");
-    int doc = 0;
-    for (final Vector v : vectors_) {
-      final Iterator<Element> it = v.iterateNonZero();
-      while (it.hasNext()) {
-        final Element e = it.next();
-        final int term = e.index();
-        final double weight = e.get();
-        index_.get(term).put(doc, weight);
+    if (hasHead()) headColumns_ = HeadColumns.count(vectors_);
+    log.info(String.format(
+        "Creating inverted index for block of %d documents " +
+        "(%d elements, ~%d KB)...",
+        n_, vectors_.elements(), blockBytes() / 1024));
+    if (engine_ == TextClusterOptions.Engine.MINHASH) {
+      lsh_ = new LshIndex(vectors_, lshBands_, lshRows_);
+      log.info(String.format(
+          "LSH buckets created. %d bands of %d rows. Took %d ms.",
+          lshBands_, lshRows_, System.currentTimeMillis() - ts));
+      return;
+    }
+    if (pruning_ && vectors_.hasNegativeWeights()) {
+      log.warn("Negative weights in block, cannot prune the index.");
+    }
+    if (pruning_ && !vectors_.hasNegativeWeights()) {
+      prunedIndex_ = new PrunedIndex(vectors_, minTreshold_);
+      index_ = prunedIndex_.postings();
+    }
+    else {
+      // Without pruning after all, stay with the layout blockBytes() assumed
+      head_ = hasHead() ? HeadColumns.create(vectors_) : null;
+      if (compress_ && !pruning_) {
+        compressed_ = new CompressedPostings(vectors_, head_);
+      }
+      else {
+        index_ = new Postings(head_ == null ? vectors_.termCounts()
+                                            : head_.tailCounts(),
+                              vectors_.numTerms());
+        final int[] terms = vectors_.terms();
+        final double[] weights = vectors_.weights();
+        for (int doc = 0; doc < n_; ++doc) {
+          for (int i = vectors_.start(doc); i < vectors_.end(doc); ++i) {
+            if (head_ != null && head_.has(terms[i])) continue;
+            index_.add(terms[i], doc, weights[i]);
+          }
+        }
+        index_.seal();
+      }
+    }
+
+    log.info(String.format(
+        "Index created. %d postings of %d distinct terms. Took %d ms.",
+        index_ == null ? compressed_.size() : index_.size(),
+        vectors_.numTerms(), System.currentTimeMillis() - ts));
+    if (compressed_ != null) {
+      log.info(String.format(
+          "    Compressed to %d KB.", compressed_.bytes() / 1024));
+    }
+    if (head_ != null) {
+      log.info(String.format(
+          "    %d head terms (in at least %d documents) as dense columns.",
+          head_.size(), head_.cutover()));
+    }
+  }
+
+
+  /**
+   * Scores the query documents <tt>from</tt> (inclusive) to <tt>to</tt>
+   * (exclusive) against all documents with a higher index, and returns those
+   * that are similar enough.
+   *
+   * This only reads the index and the vectors, so it can be run by multiple
+   * threads at once, as long as each uses its own accumulator.
+   *
+   * @param similars Accumulates the partial scores of a query. Drained after
+   *                 each query.
+   */
+  private
+  Matches score(final int from, final int to,
+                final ScoreAccumulator similars) {
+    final Matches matches = new Matches(from, to);
+    final int[] postingDocs = index_ == null ? null : index_.docs();
+    final double[] postingWeights = index_ == null ? null : index_.weights();
+    final int[] terms = vectors_.terms();
+    final double[] weights = vectors_.weights();
+
+    for (int docIdx = from; docIdx < to; ++docIdx) {
+      if (lsh_ != null) {
+        // Counts the candidates scored, as there are no postings.
+        lsh_.candidates(docIdx, similars);
+        matches.addScanned(similars.numTouched());
+        verify(docIdx, similars, matches);
+        matches.endQuery();
+        continue;
+      }
+
+      final int queryStart = vectors_.start(docIdx);
+      final int queryEnd = vectors_.end(docIdx);
+
+      // Iterate search terms, find matches and calculate scores.
+      long scanned = 0;
+      for (int i = queryStart; i < queryEnd; ++i) {
+        final int term = terms[i];
+        final double weight = weights[i];
+
+        if (head_ != null && head_.has(term)) {
+          // Not postings: Left out of the metrics.
+          similars.addColumn(head_.column(term), docIdx + 1, n_, weight);
+          continue;
+        }
+
+        if (compressed_ != null) {
+          scanned += compressed_.walk(term, docIdx, weight, similars);
+          continue;
+        }
+
+        // Walk all documents matching this term. Postings are sorted by
+        // document, so we walk backwards until we reach the documents
+        // that are already complete.
+        final int start = index_.start(term);
+        final int end = index_.end(term);
+        int p = end;
+        while (p-- > start) {
+          final int matchIdx = postingDocs[p];
+          if (matchIdx <= docIdx) break;
+
+          // add score for this term
+          similars.add(matchIdx, weight * postingWeights[p]);
+        }
+        scanned += end - p - 1;
+      }
+      matches.addScanned(scanned);
+
+      if (prunedIndex_ == null) {
+        similars.drainTo(matches, minTreshold_);
+      }
+      else {
+        verify(docIdx, similars, matches);
+      }
+      matches.endQuery();
+    }
+    return matches;
+  }
+
+
+  /**
+   * With a pruned index, accumulated scores are only partial, with LSH they
+   * are just counts of colliding bands. Candidates that might reach the
+   * threshold are checked by computing their exact similarity to the query.
+   */
+  private
+  void verify(final int docIdx,
+              final ScoreAccumulator similars,
+              final Matches matches) {
+    final int[] terms = vectors_.terms();
+    final double[] weights = vectors_.weights();
+    final int queryStart = vectors_.start(docIdx);
+    final int queryEnd = vectors_.end(docIdx);
+
+    similars.loadQuery(terms, weights, queryStart, queryEnd);
+    for (int i = 0; i < similars.numTouched(); ++i) {
+      final int matchIdx = similars.touched(i);
+      final double partial = similars.take(matchIdx);
+      if (prunedIndex_ != null) {
+        final double bound = partial + prunedIndex_.prefixBound(matchIdx);
+        if (bound + PrunedIndex.EPSILON < minTreshold_) continue;
       }
-      ++doc;
+
+      final double score =
+        similars.dotWithQuery(terms, weights,
+                              vectors_.start(matchIdx), vectors_.end(matchIdx));
+      if (score < minTreshold_) continue; // too far off
+      matches.add(matchIdx, score);
     }
+    similars.endQuery();
+    similars.unloadQuery(terms, queryStart, queryEnd);
+  }
+
 
-    log.info(String.format("Index created. Took %d ms.",
-                           dictSize_, System.currentTimeMillis() - ts));
+  /** Scores a chunk of documents with an accumulator from the given pool. */
+  private
+  class ScoringTask implements Callable<Matches> {
+
+    ScoringTask(final int from, final int to,
+                final BlockingQueue<ScoreAccumulator> accumulators) {
+      from_ = from;
+      to_ = to;
+      accumulators_ = accumulators;
+    }
+
+    @Override public
+    Matches call() throws InterruptedException {
+      final ScoreAccumulator similars = accumulators_.take();
+      try {
+        return score(from_, to_, similars);
+      }
+      finally {
+        accumulators_.put(similars);
+      }
+    }
+
+    private final int from_;
+    private final int to_;
+    private final BlockingQueue<ScoreAccumulator> accumulators_;
   }
 
 
@@ -187,15 +523,21 @@ public class IndexClusterer {
     final double[] leaderScore = new double[n_];
     final double[] centricity = new double[n_];
 
-    final int NO_MATCH = -1;
     for (int i = 0; i < n_; ++i) leader[i] = NO_MATCH;
 
+    // A collapsed vector is as similar as can be to the documents it stands
+    // for, and each match counts once per document.
+    for (int i = 0; i < n_; ++i) centricity[i] = vectors_.count(i) - 1;
+
     // List of vectors that are actually used.
     final List<Integer> used = new ArrayList<Integer>(n_);
 
     // Metric: How often could a document be reassigned to a better medoid?
     int reassignments = 0;
 
+    // Metric: How many postings were walked (or LSH candidates scored)?
+    long scanned = 0;
+
 
     // Stage 1:
     //
@@ -205,62 +547,130 @@ public class IndexClusterer {
     //
     // If M is matched by another document B later on for a higher similarity,
     // M is reassigned to B.
+    //
+    // Scoring (finding the matches of each A) is independent for every
+    // document, and can be done in parallel. The resulting updates are
+    // applied in document order, so results do not depend on the number of
+    // threads.
     {
-      final Iterator<Vector> vs = vectors_.listIterator();
-
-      final Map<Integer, Double> similars = new HashMap<Integer, Double>();
-      int docIdx = 0;
-      while (vs.hasNext()) {
-
-        // Iterate search terms, find matches and calculate scores.
-        final Iterator<Element> it = vs.next().iterateNonZero();
-        while (it.hasNext()) {
-          final Element e = it.next();
-          final int term = e.index();
-          final Map<Integer, Double> posting = index_.get(term);
-          final double weight = e.get();
-
-          // Walk all documents matching this term.
-          for (Map.Entry<Integer, Double> match : posting.entrySet()) {
-            final Integer matchIdx = match.getKey();
-            if (matchIdx <= docIdx) continue; // these are already complete
-
-            // add score for this term
-            final double termScore = weight * match.getValue().doubleValue();
-            final Double pairScore = similars.get(matchIdx);
-            if (pairScore == null) similars.put(matchIdx, termScore);
-            else similars.put(matchIdx, pairScore.doubleValue() + termScore);
-          }
-        }
+      final ExecutorService pool =
+        threads_ > 1 ? Executors.newFixedThreadPool(threads_) : null;
+      final LinkedList<Future<Matches>> pending =
+        new LinkedList<Future<Matches>>();
+      final BlockingQueue<ScoreAccumulator> accumulators =
+        new ArrayBlockingQueue<ScoreAccumulator>(threads_);
+      for (int i = 0; i < threads_; ++i) {
+        accumulators.add(new ScoreAccumulator(n_, vectors_.numTerms()));
+      }
 
-        // Check each match for minimum-score and possibly reassign-score.
-        for (Map.Entry<Integer, Double> entry : similars.entrySet()) {
-          double score = entry.getValue();
-          if (score < minTreshold_) continue; // too far off
-          int matchIdx = entry.getKey();
-          if (matchIdx < docIdx) continue; // already computed
-          centricity[docIdx] += score;
-          centricity[matchIdx] += score;
-
-          if (leader[matchIdx] != NO_MATCH) {
-            if (score < reassignTreshold_ || leaderScore[matchIdx] > score)
-              continue;
-            reassignments++;
+      int submitted = 0;
+      try {
+        for (int from = 0; from < n_; from += SCORING_CHUNK_SIZE) {
+          final Matches matches;
+          if (pool == null) {
+            final int to = Math.min(n_, from + SCORING_CHUNK_SIZE);
+            matches = score(from, to, accumulators.peek());
+          }
+          else {
+            // Keep a limited number of chunks in flight, so we do not hold
+            // the matches of the entire block in memory.
+            while (submitted < n_ && pending.size() < 2 * threads_) {
+              final int to = Math.min(n_, submitted + SCORING_CHUNK_SIZE);
+              pending.add(pool.submit(new ScoringTask(submitted, to,
+                                                      accumulators)));
+              submitted = to;
+            }
+            matches = pending.removeFirst().get();
           }
 
-          leader[matchIdx] = docIdx;
-          leaderScore[matchIdx] = score;
+          // Check each match for minimum-score and possibly reassign-score.
+          final int[] matchIdxs = matches.matches();
+          final double[] scores = matches.scores();
+          scanned += matches.scanned();
+          for (int docIdx = matches.from(); docIdx < matches.to(); ++docIdx) {
+            for (int p = matches.start(docIdx); p < matches.end(docIdx); ++p) {
+              final int matchIdx = matchIdxs[p];
+              final double score = scores[p];
+              centricity[docIdx] += score * vectors_.count(matchIdx);
+              centricity[matchIdx] += score * vectors_.count(docIdx);
+
+              if (leader[matchIdx] != NO_MATCH) {
+                if (score < reassignTreshold_ || leaderScore[matchIdx] > score)
+                  continue;
+                reassignments++;
+              }
+
+              leader[matchIdx] = docIdx;
+              leaderScore[matchIdx] = score;
+            }
+
+            if (centricity[docIdx] > 0) used.add(docIdx);
+            else rest_.add(vectors_.vector(docIdx));
+
+            if ((docIdx + 1) % 5000 == 0) log.info("...{}", docIdx + 1);
+          }
         }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+      catch (ExecutionException e) {
+        throw new RuntimeException("Scoring failed.", e.getCause());
+      }
+      finally {
+        if (pool != null) pool.shutdownNow();
+      }
+    }
 
-        if (centricity[docIdx] > 0) used.add(docIdx);
-        else rest_.add(vectors_.get(docIdx));
+    log.info(String.format(
+        "    OK. %d reassignments. Using %d/%d elements. Took %sms.",
+        reassignments, used.size(), n_, System.currentTimeMillis() - ts1)
+    );
 
-        ++docIdx;
-        if (docIdx % 5000 == 0) log.info("...{}", docIdx);
-        similars.clear();
-      }
+    if (lsh_ != null) {
+      // Candidates are pairs of documents, not postings.
+      final long pairs = (long) n_ * (n_ - 1) / 2;
+      log.info(String.format(
+          "    LSH candidates scored: %d of %d pairs (%.1f%%).",
+          scanned, pairs, pairs == 0 ? 0. : 100. * scanned / pairs));
+      return assemble(vectors_, leader, leaderScore, centricity, used);
+    }
+
+    // An exhaustive scan walks each pair of postings of a term once.
+    long exhaustive = 0;
+    final int[] termCounts = vectors_.termCounts();
+    for (int term = 0; term < vectors_.numTerms(); ++term) {
+      if (head_ != null && head_.has(term)) continue;
+      exhaustive += (long) termCounts[term] * (termCounts[term] - 1) / 2;
     }
+    scanned_ += scanned;
+    skipped_ += exhaustive - scanned;
 
+    log.info(String.format(
+        "    Postings scanned: %d, skipped: %d (%.1f%%).",
+        scanned, exhaustive - scanned,
+        exhaustive == 0 ? 0. : 100. * (exhaustive - scanned) / exhaustive)
+    );
+
+    return assemble(vectors_, leader, leaderScore, centricity, used);
+  }
+
+
+  /**
+   * Stages 2 and 3: Turns the best matches of stage 1 into clusters. Also
+   * used by the distributed clustering (see {@link AllPairs}), which does
+   * stage 1 with Map/Reduce.
+   *
+   * @param leader The best match of each document (or NO_MATCH). Modified.
+   * @param used The documents with a positive centricity, ascending.
+   */
+  static
+  List<BaseCluster> assemble(final VectorStore vectors,
+                             final int[] leader,
+                             final double[] leaderScore,
+                             final double[] centricity,
+                             final List<Integer> used) {
     // TODO: maybe make another pass and reassign based on centricity...
 
     // Introduce a total ordering by centricity ASC, index DESC.
@@ -282,23 +692,14 @@ public class IndexClusterer {
       }
     });
 
-    log.info(String.format(
-        "    OK. %d reassignments. Using %d/%d elements. Took %sms.",
-        reassignments, toUse.length, n_, System.currentTimeMillis() - ts1)
-    );
-
-
     // Stage 2:
     // Make all "best match" pointers point into the direction of the sort
     // order we just established. Then merge clusters bottom-up in one pass.
     //
-    // TODO:
-    //   The merging can degenerate to n**2 worst case (everything is in one
-    //   cluster), because the backlinks are copied repeatedly. We need a
-    //   datastructure that has efficient splicing.
+    // Followers are kept in linked lists that can be spliced in constant
+    // time, so this is linear even if everything ends up in one cluster.
 
-    @SuppressWarnings("unchecked")
-    final ArrayList<Integer>[] followers = new ArrayList[n_];
+    final Followers followers = new Followers(vectors.size());
 
     {
       log.info("2/3 Creating followers...");
@@ -320,20 +721,11 @@ public class IndexClusterer {
         final int target = leader[idx];
         if (target == NO_MATCH) continue;
 
-        if (followers[target] == null) {
-          followers[target] = new ArrayList<Integer>();
-        }
-        followers[target].add(docIdx);
-
         // This document is a follower. Move its followers to its leader.
-        if (followers[idx] != null) {
-          splices++;
-          followers[target].addAll(followers[idx]);
-        }
-        followers[idx] = null;
+        if (followers.follow(target, idx)) splices++;
       }
       log.info(String.format("    Backlinks created. Took %sms. Spliced %dx.",
-                             splices, System.currentTimeMillis() - ts2));
+                             System.currentTimeMillis() - ts2, splices));
     }
 
 
@@ -350,15 +742,26 @@ public class IndexClusterer {
 
       for (Integer docIdx : toUse) {
         final int idx = docIdx.intValue();
-        if (followers[idx] == null) continue;
+        if (!followers.has(idx)) {
+          // Collapsed duplicates without other matches form a cluster of
+          // their own (it is filled when the duplicates are expanded).
+          if (leader[idx] == NO_MATCH && vectors.count(idx) > 1) {
+            clusters.add(new BaseCluster(vectors.vector(idx),
+                                         new ArrayList<Vector>(0),
+                                         new ArrayList<Double>(0)));
+          }
+          continue;
+        }
 
         final List<Vector> followersList =
-          new ArrayList<Vector>(followers[idx].size());
+          new ArrayList<Vector>(followers.size(idx));
         final List<Double> similarityList =
-          new ArrayList<Double>(followers[idx].size());
+          new ArrayList<Double>(followers.size(idx));
 
-        for (int followerIdx : followers[idx]) {
-          followersList.add(vectors_.get(followerIdx));
+        for (int followerIdx = followers.first(idx);
+             followerIdx != Followers.NONE;
+             followerIdx = followers.next(followerIdx)) {
+          followersList.add(vectors.vector(followerIdx));
           similarityList.add(Double.valueOf(leaderScore[followerIdx]));
         }
 
@@ -366,7 +769,7 @@ public class IndexClusterer {
           histogram.add(followersList.size());
         }
 
-        clusters.add(new BaseCluster(vectors_.get(idx),
+        clusters.add(new BaseCluster(vectors.vector(idx),
                                      followersList,
                                      similarityList));
       }
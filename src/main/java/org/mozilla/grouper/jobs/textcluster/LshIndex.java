@@ -0,0 +1,165 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Approximate candidate generation for a block: Weighted MinHash signatures
+ * of the documents, hashed into buckets by bands (locality sensitive
+ * hashing).
+ *
+ * Each document gets <tt>bands * rows</tt> MinHash values. Each value is the
+ * term that wins a race of random exponential values, divided by the term
+ * weights (P-MinHash): Heavy terms are picked more often, so documents that
+ * share their important terms collide, while common terms of low weight
+ * rarely matter. The values of each band are combined into a bucket key, and
+ * documents that share a bucket in any band are candidates. Two documents
+ * that pick the same term with probability <tt>J</tt> (their weighted
+ * Jaccard similarity) become candidates with a probability of
+ * <tt>1 - (1 - J^rows)^bands</tt>: Near duplicates are (almost) always found,
+ * pairs that only share a few terms may be missed. Candidates are scored
+ * exactly, so only recall is affected, never the scores.
+ *
+ * For each band, the (bucket, document) pairs are kept as one sorted array,
+ * so the members of a document's bucket that come after the document are
+ * the entries that follow it. To bound the work spent on buckets of very
+ * common terms, documents are compared with at most {@link #MAX_BUCKET_SCAN}
+ * of them. Documents without a term of nonzero weight have no signature:
+ * They are put into {@link #NO_BUCKET}, and are never candidates.
+ *
+ * Read-only once built: Candidates can be generated by multiple threads.
+ */
+final class LshIndex {
+
+  /** Number of later bucket members that a document is compared with. */
+  static final int MAX_BUCKET_SCAN = 1000;
+
+  /** Estimated bytes per document and band (see IndexClusterer). */
+  static final int BYTES_PER_BAND = 12;
+
+  /**
+   * The bucket of documents without a signature. No signature is hashed
+   * into it.
+   */
+  static final long NO_BUCKET = 0xffffffffL;
+
+  /** Fixed, so that the candidates (and clusters) are reproducible. */
+  private static final long SEED = 0x5eed1e55L;
+
+
+  LshIndex(final VectorStore vectors, final int bands, final int rows) {
+    n_ = vectors.size();
+    bands_ = bands;
+    final Random random = new Random(SEED);
+    final long[] seeds = new long[bands * rows];
+    for (int k = 0; k < seeds.length; ++k) seeds[k] = random.nextLong();
+
+    final int[] terms = vectors.terms();
+    final double[] weights = vectors.weights();
+    final double[] minValues = new double[seeds.length];
+    final int[] minTerms = new int[seeds.length];
+    keys_ = new long[bands][n_];
+    for (int doc = 0; doc < n_; ++doc) {
+      Arrays.fill(minValues, Double.POSITIVE_INFINITY);
+      Arrays.fill(minTerms, -1);
+      for (int i = vectors.start(doc); i < vectors.end(doc); ++i) {
+        final double weight = Math.abs(weights[i]);
+        for (int k = 0; k < seeds.length; ++k) {
+          final double value = exponential(terms[i], seeds[k]) / weight;
+          if (value < minValues[k]) {
+            minValues[k] = value;
+            minTerms[k] = terms[i];
+          }
+        }
+      }
+      // Zero (or NaN) weights never win, so either all values are set, or
+      // none.
+      if (minTerms[0] == -1) {
+        for (int band = 0; band < bands; ++band) {
+          keys_[band][doc] = (NO_BUCKET << 32) | doc;
+        }
+        continue;
+      }
+      for (int band = 0; band < bands; ++band) {
+        long bucket = band;
+        for (int row = 0; row < rows; ++row) {
+          bucket = mix(bucket * 31 + minTerms[band * rows + row]);
+        }
+        bucket >>>= 32;
+        if (bucket == NO_BUCKET) --bucket;
+        // Bucket in the upper half, document in the lower half: Sorting
+        // groups the buckets, with their documents in ascending order.
+        keys_[band][doc] = (bucket << 32) | doc;
+      }
+    }
+
+    positions_ = new int[bands][n_];
+    for (int band = 0; band < bands; ++band) {
+      final long[] keys = keys_[band];
+      Arrays.sort(keys);
+      for (int p = 0; p < n_; ++p) positions_[band][(int) keys[p]] = p;
+    }
+  }
+
+
+  int bands() {
+    return bands_;
+  }
+
+
+  /**
+   * Adds the documents after <tt>doc</tt> that share a bucket with it to the
+   * accumulator, with the number of bands in which they collide as score.
+   *
+   * @return The number of bucket entries that were walked.
+   */
+  long candidates(final int doc, final ScoreAccumulator similars) {
+    long scanned = 0;
+    for (int band = 0; band < bands_; ++band) {
+      final long[] keys = keys_[band];
+      final int pos = positions_[band][doc];
+      final long bucket = keys[pos] >>> 32;
+      if (bucket == NO_BUCKET) continue;
+      final int end = (int) Math.min(n_, (long) pos + 1 + MAX_BUCKET_SCAN);
+      int p = pos + 1;
+      for (; p < end && (keys[p] >>> 32) == bucket; ++p) {
+        similars.add((int) keys[p], 1.);
+      }
+      scanned += p - pos - 1;
+    }
+    return scanned;
+  }
+
+
+  /** A pseudo random, exponentially distributed value per term and seed. */
+  private static
+  double exponential(final int term, final long seed) {
+    // 53 random bits, as a uniform value in (0, 1].
+    final double uniform = ((mix(term ^ seed) >>> 11) + 1) * 0x1.0p-53;
+    return -Math.log(uniform);
+  }
+
+
+  /** The finalizer of MurmurHash3 (64 bit). */
+  private static
+  long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+
+  private final int n_;
+  private final int bands_;
+
+  /** Per band: (bucket, document) pairs, sorted. */
+  private final long[][] keys_;
+
+  /** Per band: the position of each document in its keys. */
+  private final int[][] positions_;
+
+}
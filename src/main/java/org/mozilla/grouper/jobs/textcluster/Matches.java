@@ -0,0 +1,143 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.Arrays;
+
+
+/**
+ * Scoring results for a contiguous range of query documents: For each query,
+ * the (match-index, score) pairs of all sufficiently similar documents with
+ * a higher index. Matches of a query are sorted by document index, so that
+ * results do not depend on how the scoring work was split up.
+ */
+final class Matches {
+
+  /**
+   * @param from The first query document (inclusive).
+   * @param to The last query document (exclusive).
+   */
+  Matches(final int from, final int to) {
+    from_ = from;
+    to_ = to;
+    offsets_ = new int[to - from + 1];
+  }
+
+
+  int from() {
+    return from_;
+  }
+
+
+  int to() {
+    return to_;
+  }
+
+
+  /** Adds a match for the current query. */
+  void add(final int match, final double score) {
+    if (size_ == matches_.length) {
+      final int capacity = Math.max(INITIAL_CAPACITY, size_ * 2);
+      matches_ = Arrays.copyOf(matches_, capacity);
+      scores_ = Arrays.copyOf(scores_, capacity);
+    }
+    matches_[size_] = match;
+    scores_[size_] = score;
+    ++size_;
+  }
+
+
+  /** Completes the current query and moves on to the next one. */
+  void endQuery() {
+    sort(offsets_[query_], size_ - 1);
+    ++query_;
+    offsets_[query_] = size_;
+  }
+
+
+  /** Start position of the matches of the given query document. */
+  int start(final int query) {
+    return offsets_[query - from_];
+  }
+
+
+  /** End position (exclusive) of the matches of the given query document. */
+  int end(final int query) {
+    return offsets_[query - from_ + 1];
+  }
+
+
+  /** Counts postings that were walked while scoring. */
+  void addScanned(final long postings) {
+    scanned_ += postings;
+  }
+
+
+  long scanned() {
+    return scanned_;
+  }
+
+
+  int[] matches() {
+    return matches_;
+  }
+
+
+  double[] scores() {
+    return scores_;
+  }
+
+
+  /** Sorts the range [left, right] by match index (quicksort). */
+  private
+  void sort(int left, int right) {
+    while (right - left > INSERTION_SORT_SIZE) {
+      final int pivot = matches_[(left + right) >>> 1];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (matches_[i] < pivot) ++i;
+        while (matches_[j] > pivot) --j;
+        if (i <= j) swap(i++, j--);
+      }
+      // Recurse into the smaller part to bound the stack depth.
+      if (j - left < right - i) {
+        sort(left, j);
+        left = i;
+      }
+      else {
+        sort(i, right);
+        right = j;
+      }
+    }
+    for (int i = left + 1; i <= right; ++i) {
+      for (int j = i; j > left && matches_[j - 1] > matches_[j]; --j) {
+        swap(j, j - 1);
+      }
+    }
+  }
+
+
+  private
+  void swap(final int i, final int j) {
+    final int match = matches_[i];
+    matches_[i] = matches_[j];
+    matches_[j] = match;
+    final double score = scores_[i];
+    scores_[i] = scores_[j];
+    scores_[j] = score;
+  }
+
+
+  private static final int INITIAL_CAPACITY = 64;
+  private static final int INSERTION_SORT_SIZE = 16;
+
+  private final int from_;
+  private final int to_;
+  private final int[] offsets_;
+
+  private long scanned_ = 0;
+  private int query_ = 0;
+  private int size_ = 0;
+  private int[] matches_ = new int[0];
+  private double[] scores_ = new double[0];
+
+}
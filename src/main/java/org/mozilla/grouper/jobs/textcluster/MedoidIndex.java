@@ -0,0 +1,123 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+
+/**
+ * Finds the most similar cluster medoid for new documents, to assign them
+ * to existing clusters without a rebuild.
+ *
+ * The medoids are kept in an inverted index (like the blocks of the
+ * {@link IndexClusterer}), so a lookup only touches the medoids that share
+ * terms with the document. Lookups are thread safe.
+ */
+public final class MedoidIndex {
+
+  /** The result of a lookup. */
+  public static final
+  class Assignment {
+
+    Assignment(final int index, final Vector medoid, final double similarity) {
+      index_ = index;
+      medoid_ = medoid;
+      similarity_ = similarity;
+    }
+
+    /** The position of the medoid in the list the index was created from. */
+    public
+    int index() { return index_; }
+
+    public
+    Vector medoid() { return medoid_; }
+
+    public
+    double similarity() { return similarity_; }
+
+    private final int index_;
+    private final Vector medoid_;
+    private final double similarity_;
+  }
+
+
+  public
+  MedoidIndex(final List<? extends Vector> medoids) {
+    for (final Vector medoid : medoids) medoids_.add(medoid);
+    index_ = new Postings(medoids_.termCounts(), medoids_.numTerms());
+    final int[] terms = medoids_.terms();
+    final double[] weights = medoids_.weights();
+    for (int doc = 0; doc < medoids_.size(); ++doc) {
+      for (int i = medoids_.start(doc); i < medoids_.end(doc); ++i) {
+        index_.add(terms[i], doc, weights[i]);
+      }
+    }
+    index_.seal();
+  }
+
+
+  /** The number of medoids. */
+  public
+  int size() {
+    return medoids_.size();
+  }
+
+
+  public
+  Vector medoid(final int index) {
+    return medoids_.vector(index);
+  }
+
+
+  /**
+   * @return The most similar medoid (on ties the first one), or
+   *         <tt>null</tt> if the document shares no term with any medoid.
+   */
+  public
+  Assignment nearest(final Vector document) {
+    final ScoreAccumulator similars = accumulator_.get();
+    final int[] postingDocs = index_.docs();
+    final double[] postingWeights = index_.weights();
+    final Iterator<Element> it = document.iterateNonZero();
+    while (it.hasNext()) {
+      final Element e = it.next();
+      final int term = medoids_.localTerm(e.index());
+      if (term == -1) continue;
+      final double weight = e.get();
+      for (int p = index_.start(term); p < index_.end(term); ++p) {
+        similars.add(postingDocs[p], weight * postingWeights[p]);
+      }
+    }
+
+    int best = -1;
+    double bestScore = 0;
+    for (int i = 0; i < similars.numTouched(); ++i) {
+      final int medoid = similars.touched(i);
+      final double score = similars.take(medoid);
+      if (best == -1 || score > bestScore
+          || (score == bestScore && medoid < best)) {
+        best = medoid;
+        bestScore = score;
+      }
+    }
+    similars.endQuery();
+    if (best == -1) return null;
+    return new Assignment(best, medoids_.vector(best), bestScore);
+  }
+
+
+  private final VectorStore medoids_ = new VectorStore();
+  private final Postings index_;
+
+  /** Each thread scores with its own accumulator. */
+  private final ThreadLocal<ScoreAccumulator> accumulator_ =
+    new ThreadLocal<ScoreAccumulator>() {
+      @Override protected
+      ScoreAccumulator initialValue() {
+        return new ScoreAccumulator(medoids_.size());
+      }
+    };
+
+}
@@ -0,0 +1,89 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+
+/**
+ * Inverted index that maps: term-index --> (doc-index, weight)*
+ *
+ * The postings of all terms are packed into two parallel arrays (compressed
+ * sparse row layout), so there is no per-term or per-posting object overhead.
+ * The postings of term <tt>t</tt> are found at the positions
+ * <tt>start(t)</tt> (inclusive) to <tt>end(t)</tt> (exclusive).
+ *
+ * Documents must be added in ascending order, so that each posting is
+ * sorted by document index.
+ */
+final class Postings {
+
+  /**
+   * @param termCounts For each term, the number of documents containing it.
+   * @param numTerms The number of terms (entries of <tt>termCounts</tt> to use).
+   */
+  Postings(final int[] termCounts, final int numTerms) {
+    numTerms_ = numTerms;
+    offsets_ = new int[numTerms + 1];
+    int size = 0;
+    for (int term = 0; term < numTerms; ++term) {
+      offsets_[term] = size;
+      size += termCounts[term];
+    }
+    offsets_[numTerms] = size;
+    docs_ = new int[size];
+    weights_ = new double[size];
+  }
+
+
+  /**
+   * Adds a posting. While the index is being filled, <tt>offsets_[t]</tt>
+   * serves as the insert position for term <tt>t</tt>.
+   */
+  void add(final int term, final int doc, final double weight) {
+    final int position = offsets_[term]++;
+    docs_[position] = doc;
+    weights_[position] = weight;
+  }
+
+
+  /**
+   * Must be called after all postings have been added. Each insert position
+   * now points to the start of the next term, so we shift them back.
+   */
+  void seal() {
+    System.arraycopy(offsets_, 0, offsets_, 1, numTerms_);
+    offsets_[0] = 0;
+  }
+
+
+  int start(final int term) {
+    return offsets_[term];
+  }
+
+
+  int end(final int term) {
+    return offsets_[term + 1];
+  }
+
+
+  /** Document indexes of all postings, to be addressed by start/end. */
+  int[] docs() {
+    return docs_;
+  }
+
+
+  /** Weights of all postings, parallel to {@link #docs()}. */
+  double[] weights() {
+    return weights_;
+  }
+
+
+  /** Total number of postings. */
+  int size() {
+    return docs_.length;
+  }
+
+
+  private final int numTerms_;
+  private final int[] offsets_;
+  private final int[] docs_;
+  private final double[] weights_;
+
+}
@@ -0,0 +1,108 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.Arrays;
+
+
+/**
+ * Inverted index for exact all-pairs similarity search with a minimum
+ * similarity, based on prefix filtering as in AllPairs (Bayardo, Ma,
+ * Srikant: "Scaling up all pairs similarity search", WWW 2007).
+ *
+ * For each document, the elements of its most frequent terms are left out
+ * of the index, as long as they cannot reach the threshold by themselves:
+ * Their dot product with any document of the block is bounded by the sum of
+ * their weights times the maximum weight of each term. Any pair of documents
+ * that reaches the threshold hence shares at least one indexed term of the
+ * indexed document, and is found when querying with the full other
+ * document. The skipped frequent terms have the longest postings.
+ *
+ * Querying yields partial scores (over the indexed terms). Adding the
+ * {@link #prefixBound(int)} of a candidate gives an upper bound for its
+ * score, which allows to drop most candidates before computing the exact
+ * dot product.
+ *
+ * This requires non-negative weights (which tf-idf weights are).
+ */
+final class PrunedIndex {
+
+  /**
+   * Scores this close to the threshold are never pruned, so that rounding
+   * errors in the bounds cannot lose any pair.
+   */
+  static final double EPSILON = 1e-9;
+
+
+  PrunedIndex(final VectorStore vectors, final double threshold) {
+    final int n = vectors.size();
+    final int numTerms = vectors.numTerms();
+    final int[] termCounts = vectors.termCounts();
+    final int[] terms = vectors.terms();
+    final double[] weights = vectors.weights();
+
+    final double[] maxWeights = new double[numTerms];
+    for (int i = 0; i < vectors.elements(); ++i) {
+      maxWeights[terms[i]] = Math.max(maxWeights[terms[i]], weights[i]);
+    }
+
+    // Decide for each element whether it goes into the index.
+    final boolean[] indexed = new boolean[vectors.elements()];
+    final int[] indexedCounts = new int[numTerms];
+    prefixBounds_ = new double[n];
+    long[] order = new long[64];
+    for (int doc = 0; doc < n; ++doc) {
+      final int start = vectors.start(doc);
+      final int length = vectors.end(doc) - start;
+      if (order.length < length) order = new long[length];
+
+      // Most frequent terms first (ties in order of terms).
+      for (int k = 0; k < length; ++k) {
+        final long rarity = Integer.MAX_VALUE - termCounts[terms[start + k]];
+        order[k] = (rarity << 32) | k;
+      }
+      Arrays.sort(order, 0, length);
+
+      double bound = 0;
+      int k = 0;
+      for (; k < length; ++k) {
+        final int i = start + (int) order[k];
+        final double next = bound + weights[i] * maxWeights[terms[i]];
+        if (next + EPSILON >= threshold) break;
+        bound = next;
+      }
+      prefixBounds_[doc] = bound;
+      for (; k < length; ++k) {
+        final int i = start + (int) order[k];
+        indexed[i] = true;
+        ++indexedCounts[terms[i]];
+      }
+    }
+
+    postings_ = new Postings(indexedCounts, numTerms);
+    for (int doc = 0; doc < n; ++doc) {
+      for (int i = vectors.start(doc); i < vectors.end(doc); ++i) {
+        if (indexed[i]) postings_.add(terms[i], doc, weights[i]);
+      }
+    }
+    postings_.seal();
+  }
+
+
+  /** The postings of the indexed elements. */
+  Postings postings() {
+    return postings_;
+  }
+
+
+  /**
+   * Upper bound for the dot product of the elements of <tt>doc</tt> that
+   * were left out of the index with any other document of the block.
+   */
+  double prefixBound(final int doc) {
+    return prefixBounds_[doc];
+  }
+
+
+  private final Postings postings_;
+  private final double[] prefixBounds_;
+
+}
@@ -0,0 +1,168 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.Arrays;
+
+
+/**
+ * Collects the partial similarity scores of one query document against all
+ * documents of a block.
+ *
+ * Scores are summed up in a dense array, and the documents that were
+ * touched are remembered so that draining the accumulator costs time
+ * proportional to the number of matches, not to the block size. Apart from
+ * growing the touched list in rare cases, nothing is allocated per query.
+ *
+ * Instances are not thread safe: Each scoring thread uses its own.
+ */
+final class ScoreAccumulator {
+
+  /** @param size The number of documents that can be scored. */
+  ScoreAccumulator(final int size) {
+    this(size, 0);
+  }
+
+
+  /**
+   * @param size The number of documents that can be scored.
+   * @param numTerms Upper bound for term indexes, if a query is to be
+   *                 loaded (see {@link #loadQuery}).
+   */
+  ScoreAccumulator(final int size, final int numTerms) {
+    scores_ = new double[size];
+    touched_ = new int[Math.max(16, size / 8)];
+    numTerms_ = numTerms;
+  }
+
+
+  void add(final int doc, final double score) {
+    // A zero entry means the document was not touched yet for this query.
+    // Should a sum ever come back to zero, the document is listed twice,
+    // which is harmless (see drainTo).
+    if (scores_[doc] == 0) {
+      if (numTouched_ == touched_.length) {
+        touched_ = Arrays.copyOf(touched_, touched_.length * 2);
+      }
+      touched_[numTouched_++] = doc;
+    }
+    scores_[doc] += score;
+  }
+
+
+  /**
+   * Moves all documents scoring at least <tt>threshold</tt> into the given
+   * matches, and resets the accumulator for the next query.
+   */
+  void drainTo(final Matches matches, final double threshold) {
+    for (int doc = denseFrom_; doc < denseTo_; ++doc) {
+      final double score = scores_[doc];
+      if (score == 0) continue;
+      scores_[doc] = 0;
+      if (score < threshold) continue;
+      matches.add(doc, score);
+    }
+    denseFrom_ = Integer.MAX_VALUE;
+    denseTo_ = 0;
+    for (int i = 0; i < numTouched_; ++i) {
+      final int doc = touched_[i];
+      final double score = take(doc);
+      if (score < threshold) continue; // too far off (or a duplicate)
+      matches.add(doc, score);
+    }
+    numTouched_ = 0;
+  }
+
+
+  /**
+   * Adds <tt>weight * column[doc]</tt> for each document from <tt>from</tt>
+   * (inclusive) to <tt>to</tt> (exclusive), given a dense column of weights.
+   *
+   * Without a branch per document, so that the loop is cheap enough for
+   * columns that are mostly zeros. Instead of remembering which documents
+   * were touched, the whole range is scanned when draining (so this is only
+   * for queries that are drained, see {@link #drainTo}). Adding zeros does
+   * not change scores, so they are the same as with postings.
+   */
+  void addColumn(final double[] column, final int from, final int to,
+                 final double weight) {
+    for (int doc = from; doc < to; ++doc) scores_[doc] += weight * column[doc];
+    if (from < denseFrom_) denseFrom_ = from;
+    if (to > denseTo_) denseTo_ = to;
+  }
+
+
+  /** The number of documents touched by the current query. */
+  int numTouched() {
+    return numTouched_;
+  }
+
+
+  /**
+   * The <tt>i</tt>-th document touched by the current query. Once all of
+   * them have been taken, {@link #endQuery()} must be called.
+   */
+  int touched(final int i) {
+    return touched_[i];
+  }
+
+
+  /** Returns the score of a document and resets it to zero. */
+  double take(final int doc) {
+    final double score = scores_[doc];
+    scores_[doc] = 0;
+    return score;
+  }
+
+
+  /** Forgets the touched documents, after their scores have been taken. */
+  void endQuery() {
+    numTouched_ = 0;
+  }
+
+
+  /**
+   * Keeps a dense copy of a query document (in the compressed row format
+   * of {@link VectorStore}) to compute exact dot products with.
+   */
+  void loadQuery(final int[] terms, final double[] weights,
+                 final int from, final int to) {
+    if (query_ == null) query_ = new double[numTerms_];
+    for (int i = from; i < to; ++i) query_[terms[i]] = weights[i];
+  }
+
+
+  /** Must be called with the arguments used for {@link #loadQuery}. */
+  void unloadQuery(final int[] terms, final int from, final int to) {
+    for (int i = from; i < to; ++i) query_[terms[i]] = 0;
+  }
+
+
+  /**
+   * The dot product of the loaded query with the given document.
+   *
+   * The products of common terms are summed up in ascending order of terms,
+   * just like the scores accumulated for the query, so both are identical
+   * to the last bit.
+   */
+  double dotWithQuery(final int[] terms, final double[] weights,
+                      final int from, final int to) {
+    double dot = 0;
+    for (int i = from; i < to; ++i) {
+      final double queryWeight = query_[terms[i]];
+      if (queryWeight != 0) dot += queryWeight * weights[i];
+    }
+    return dot;
+  }
+
+
+  private final double[] scores_;
+  private int[] touched_;
+  private int numTouched_ = 0;
+
+  /** The range of documents touched by columns (empty if none). */
+  private int denseFrom_ = Integer.MAX_VALUE;
+  private int denseTo_ = 0;
+
+  private final int numTerms_;
+  private double[] query_ = null;
+
+}
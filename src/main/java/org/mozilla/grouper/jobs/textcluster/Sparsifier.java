@@ -0,0 +1,174 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+
+/**
+ * Drops the least important terms of document vectors before they are
+ * indexed: Keeps the heaviest {@link TextClusterOptions#topTerms()} terms,
+ * or the fewest terms that make up {@link TextClusterOptions#l2Mass()} of
+ * the squared length, whichever are less. The kept weights are scaled up so
+ * that the vector keeps its length.
+ *
+ * Long documents have hundreds of terms, most of them with tiny weights.
+ * They barely change similarities, but each one is a posting that is
+ * walked whenever another document has the term. Sparsified vectors make a
+ * smaller index, and the number of partial scores (the work of stage 1)
+ * drops with the square of the document frequencies.
+ *
+ * Keeps statistics of what was dropped, see {@link #report()}.
+ */
+final class Sparsifier {
+
+  /** @return <tt>null</tt> if the options keep all terms. */
+  static
+  Sparsifier create(final TextClusterOptions options) {
+    if (options.topTerms() == 0 && options.l2Mass() >= 1) return null;
+    return new Sparsifier(options.topTerms(), options.l2Mass());
+  }
+
+
+  /**
+   * @param topTerms Maximum number of terms per document (0: no limit).
+   * @param l2Mass Share of the squared length to keep (1: everything).
+   */
+  Sparsifier(final int topTerms, final double l2Mass) {
+    topTerms_ = topTerms;
+    l2Mass_ = l2Mass;
+  }
+
+
+  /**
+   * @return The vector itself if nothing is dropped, otherwise a sparser
+   *         copy (named like the original).
+   */
+  Vector apply(final Vector vector) {
+    // An upper bound only: Dense vectors report all of their elements, and
+    // sparse vectors may store zeros.
+    final int capacity = vector.getNumNondefaultElements();
+    if (capacity > terms_.length) {
+      terms_ = new int[Math.max(capacity, 2 * terms_.length)];
+      weights_ = new double[terms_.length];
+      order_ = new Integer[terms_.length];
+    }
+    double total = 0;
+    int i = 0;
+    final Iterator<Element> it = vector.iterateNonZero();
+    while (it.hasNext()) {
+      final Element e = it.next();
+      if (e.get() == 0) continue;
+      terms_[i] = e.index();
+      weights_[i] = e.get();
+      total += e.get() * e.get();
+      order_[i] = Integer.valueOf(i);
+      ++i;
+    }
+    final int n = i;
+    if (total == 0) {
+      ++documents_;
+      return vector;
+    }
+
+    // Heaviest first. Ties by term, so that results are reproducible.
+    Arrays.sort(order_, 0, n, new java.util.Comparator<Integer>() {
+      @Override public
+      int compare(final Integer a, final Integer b) {
+        final double wa = Math.abs(weights_[a.intValue()]);
+        final double wb = Math.abs(weights_[b.intValue()]);
+        if (wa != wb) return wa > wb ? -1 : 1;
+        return terms_[a.intValue()] - terms_[b.intValue()];
+      }
+    });
+
+    int keep = topTerms_ > 0 ? Math.min(n, topTerms_) : n;
+    double kept = 0;
+    for (int k = 0; k < keep; ++k) {
+      final double w = weights_[order_[k].intValue()];
+      kept += w * w;
+      if (kept >= l2Mass_ * total) keep = k + 1;
+    }
+
+    for (int k = 0; k < n; ++k) {
+      final int term = terms_[k];
+      if (term >= dfBefore_.length) grow(term);
+      ++dfBefore_[term];
+    }
+    elementsBefore_ += n;
+    elementsAfter_ += keep;
+    ++documents_;
+
+    if (keep == n) {
+      for (int k = 0; k < n; ++k) ++dfAfter_[terms_[k]];
+      return vector;
+    }
+
+    final int[] keptTerms = new int[keep];
+    for (int k = 0; k < keep; ++k) keptTerms[k] = order_[k].intValue();
+    Arrays.sort(keptTerms);
+    final double scale = Math.sqrt(total / kept);
+    final Vector sparse = new SequentialAccessSparseVector(vector.size(), keep);
+    for (final int k : keptTerms) {
+      sparse.setQuick(terms_[k], weights_[k] * scale);
+      ++dfAfter_[terms_[k]];
+    }
+    ++sparsified_;
+    if (vector instanceof NamedVector) {
+      return new NamedVector(sparse, ((NamedVector) vector).getName());
+    }
+    return sparse;
+  }
+
+
+  /**
+   * What sparsification saved so far: The reduction of index size
+   * (postings), and of scoring work (the partial scores of an exhaustive
+   * scan, from the document frequencies of terms).
+   */
+  String report() {
+    long before = 0;
+    long after = 0;
+    for (int term = 0; term < dfBefore_.length; ++term) {
+      before += (long) dfBefore_[term] * (dfBefore_[term] - 1) / 2;
+      after += (long) dfAfter_[term] * (dfAfter_[term] - 1) / 2;
+    }
+    return String.format(
+        "Sparsified %d of %d documents (top terms: %d, L2 mass: %.2f). " +
+        "Postings: %d -> %d (%.1f%%). Partial scores: %d -> %d (%.1fx less).",
+        sparsified_, documents_, topTerms_, l2Mass_,
+        elementsBefore_, elementsAfter_,
+        elementsBefore_ == 0 ? 0. : 100. * elementsAfter_ / elementsBefore_,
+        before, after, after == 0 ? 0. : (double) before / after);
+  }
+
+
+  private
+  void grow(final int term) {
+    final int capacity = Math.max(term + 1, 2 * dfBefore_.length);
+    dfBefore_ = Arrays.copyOf(dfBefore_, capacity);
+    dfAfter_ = Arrays.copyOf(dfAfter_, capacity);
+  }
+
+
+  private final int topTerms_;
+  private final double l2Mass_;
+
+  /** The elements of the current vector, and their order by weight. */
+  private int[] terms_ = new int[64];
+  private double[] weights_ = new double[64];
+  private Integer[] order_ = new Integer[64];
+
+  /** Document frequencies of terms, before and after sparsification. */
+  private int[] dfBefore_ = new int[1024];
+  private int[] dfAfter_ = new int[1024];
+  private long elementsBefore_ = 0;
+  private long elementsAfter_ = 0;
+  private long documents_ = 0;
+  private long sparsified_ = 0;
+
+}
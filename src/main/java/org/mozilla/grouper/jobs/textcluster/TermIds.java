@@ -0,0 +1,94 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.Arrays;
+
+
+/**
+ * Maps the (global) term indexes of the dictionary to dense local ids
+ * 0, 1, 2, ... in order of their first occurrence. Allocations scale with
+ * the number of distinct terms seen, not with the size of the dictionary.
+ *
+ * Open addressing with linear probing over primitive arrays.
+ */
+final class TermIds {
+
+  TermIds() {
+    keys_ = new int[INITIAL_CAPACITY];
+    Arrays.fill(keys_, EMPTY);
+  }
+
+
+  /** The local id of a term, which is assigned if the term is new. */
+  int local(final int term) {
+    if (2 * (size_ + 1) > keys_.length) grow();
+    final int mask = keys_.length - 1;
+    int slot = hash(term) & mask;
+    while (keys_[slot] != EMPTY) {
+      if (keys_[slot] == term) return ids_[slot];
+      slot = (slot + 1) & mask;
+    }
+    keys_[slot] = term;
+    ids_[slot] = size_;
+    return size_++;
+  }
+
+
+  /** The local id of a term, or -1 if the term has not been seen. */
+  int get(final int term) {
+    final int mask = keys_.length - 1;
+    int slot = hash(term) & mask;
+    while (keys_[slot] != EMPTY) {
+      if (keys_[slot] == term) return ids_[slot];
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+
+  /** The number of distinct terms (upper bound for the local ids). */
+  int size() {
+    return size_;
+  }
+
+
+  /** Forgets all terms, keeping the allocated capacity. */
+  void clear() {
+    Arrays.fill(keys_, EMPTY);
+    size_ = 0;
+  }
+
+
+  private
+  void grow() {
+    final int[] keys = keys_;
+    final int[] ids = ids_;
+    keys_ = new int[keys.length * 2];
+    ids_ = new int[keys.length * 2];
+    Arrays.fill(keys_, EMPTY);
+    final int mask = keys_.length - 1;
+    for (int i = 0; i < keys.length; ++i) {
+      if (keys[i] == EMPTY) continue;
+      int slot = hash(keys[i]) & mask;
+      while (keys_[slot] != EMPTY) slot = (slot + 1) & mask;
+      keys_[slot] = keys[i];
+      ids_[slot] = ids[i];
+    }
+  }
+
+
+  private static
+  int hash(final int term) {
+    // Fibonacci hashing, so that neighbouring terms spread out.
+    final int h = term * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+
+  private static final int EMPTY = -1;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private int size_ = 0;
+  private int[] keys_;
+  private int[] ids_ = new int[INITIAL_CAPACITY];
+
+}
@@ -0,0 +1,363 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import org.mozilla.grouper.base.Assert;
+import org.mozilla.grouper.conf.Conf;
+import org.mozilla.grouper.conf.OptionalKeys;
+
+
+/**
+ * Tuning parameters of the text clustering.
+ *
+ * All values are optional in the Grouperfish configuration (given as
+ * strings, like the other settings). Defaults are used for missing keys.
+ */
+public class TextClusterOptions {
+
+  /** How stage 1 finds the similar documents of each document. */
+  public static
+  enum Engine {
+    /** Exact: Walk the inverted index (see {@link #pruning()}). */
+    INDEX,
+    /** Approximate: Score the candidates of MinHash/LSH buckets. */
+    MINHASH
+  }
+
+  /** Use the defaults. */
+  public
+  TextClusterOptions() { }
+
+
+  /** Read options from the Grouperfish configuration. */
+  public
+  TextClusterOptions(final Conf conf) {
+    threads(OptionalKeys.intValue(conf, CONF_THREADS, threads_));
+    pruning(OptionalKeys.booleanValue(conf, CONF_PRUNING, pruning_));
+    denseHead(OptionalKeys.booleanValue(conf, CONF_DENSE_HEAD, denseHead_));
+    compressedPostings(OptionalKeys.booleanValue(
+        conf, CONF_COMPRESSED_POSTINGS, compressedPostings_));
+    dedup(OptionalKeys.booleanValue(conf, CONF_DEDUP, dedup_));
+    blockSize(OptionalKeys.intValue(conf, CONF_BLOCK_SIZE, blockSize_));
+    memoryBudget(MEGABYTE * OptionalKeys.intValue(conf, CONF_BLOCK_MEMORY, 0));
+    blockParallelism(OptionalKeys.intValue(conf, CONF_BLOCK_PARALLELISM,
+                                           blockParallelism_));
+    assignThreshold(OptionalKeys.doubleValue(conf, CONF_ASSIGN_THRESHOLD,
+                                             assignThreshold_));
+    final String engine = OptionalKeys.get(conf, CONF_ENGINE);
+    if (engine != null) engine(engine(engine));
+    lshBands(OptionalKeys.intValue(conf, CONF_LSH_BANDS, lshBands_));
+    lshRows(OptionalKeys.intValue(conf, CONF_LSH_ROWS, lshRows_));
+    distributed(OptionalKeys.booleanValue(conf, CONF_DISTRIBUTED,
+                                          distributed_));
+    maxPostings(OptionalKeys.intValue(conf, CONF_MAX_POSTINGS, maxPostings_));
+    topTerms(OptionalKeys.intValue(conf, CONF_TOP_TERMS, topTerms_));
+    l2Mass(OptionalKeys.doubleValue(conf, CONF_L2_MASS, l2Mass_));
+  }
+
+
+  /** Number of threads used for scoring documents (1: sequential). */
+  public
+  int threads() { return threads_; }
+
+
+  public
+  TextClusterOptions threads(final int threads) {
+    threads_ = Math.max(1, threads);
+    return this;
+  }
+
+
+  /**
+   * Whether to skip postings that cannot reach the similarity threshold
+   * (exact, see {@link PrunedIndex}).
+   */
+  public
+  boolean pruning() { return pruning_; }
+
+
+  public
+  TextClusterOptions pruning(final boolean pruning) {
+    pruning_ = pruning;
+    return this;
+  }
+
+
+  /**
+   * Whether the most common terms of a block are indexed as dense columns
+   * (see {@link HeadColumns}). Does not change the clusters. Not used when
+   * pruning. Off by default: Walking postings into the score array is fast
+   * enough that columns only pay off for blocks with very common terms.
+   */
+  public
+  boolean denseHead() { return denseHead_; }
+
+
+  public
+  TextClusterOptions denseHead(final boolean denseHead) {
+    denseHead_ = denseHead;
+    return this;
+  }
+
+
+  /**
+   * Whether the inverted index is compressed (see
+   * {@link CompressedPostings}), so that larger blocks fit into the same
+   * memory budget. Weights are quantized, which may change scores slightly.
+   * Not used when pruning.
+   */
+  public
+  boolean compressedPostings() { return compressedPostings_; }
+
+
+  public
+  TextClusterOptions compressedPostings(final boolean compressedPostings) {
+    compressedPostings_ = compressedPostings;
+    return this;
+  }
+
+
+  /**
+   * Whether identical vectors are clustered only once (see
+   * {@link Deduplicator}). Off by default: All vectors are read before
+   * clustering starts, so reading no longer overlaps with clustering, and
+   * the memory budget does not bound the vectors held.
+   */
+  public
+  boolean dedup() { return dedup_; }
+
+
+  public
+  TextClusterOptions dedup(final boolean dedup) {
+    dedup_ = dedup;
+    return this;
+  }
+
+
+  /**
+   * Maximum number of documents per block. Unless configured, this is
+   * {@link IndexClusterer#BLOCK_SIZE}, or unlimited if a memory budget is
+   * set (so that blocks of short documents can use the budget).
+   */
+  public
+  int blockSize() {
+    if (blockSize_ > 0) return blockSize_;
+    return memoryBudget_ > 0 ? Integer.MAX_VALUE : IndexClusterer.BLOCK_SIZE;
+  }
+
+
+  /** @param blockSize The maximum number of documents (0: default). */
+  public
+  TextClusterOptions blockSize(final int blockSize) {
+    blockSize_ = Math.max(0, blockSize);
+    return this;
+  }
+
+
+  /**
+   * Estimated number of bytes that the clustering of a block may use
+   * (0: no budget). A block is closed as soon as its documents reach it.
+   * Configured in megabytes.
+   */
+  public
+  long memoryBudget() { return memoryBudget_; }
+
+
+  public
+  TextClusterOptions memoryBudget(final long bytes) {
+    memoryBudget_ = Math.max(0, bytes);
+    return this;
+  }
+
+
+  /**
+   * Number of blocks that are clustered at the same time, while the next
+   * block is read (each of them using {@link #threads()} for scoring).
+   */
+  public
+  int blockParallelism() { return blockParallelism_; }
+
+
+  public
+  TextClusterOptions blockParallelism(final int blockParallelism) {
+    blockParallelism_ = Math.max(1, blockParallelism);
+    return this;
+  }
+
+
+  /**
+   * Minimum similarity of a new document to the medoid of an existing
+   * cluster, to be assigned to it without a rebuild.
+   */
+  public
+  double assignThreshold() { return assignThreshold_; }
+
+
+  public
+  TextClusterOptions assignThreshold(final double assignThreshold) {
+    assignThreshold_ = assignThreshold;
+    return this;
+  }
+
+
+  public
+  Engine engine() { return engine_; }
+
+
+  public
+  TextClusterOptions engine(final Engine engine) {
+    engine_ = engine;
+    return this;
+  }
+
+
+  /**
+   * Number of LSH bands for the {@link Engine#MINHASH} engine. More bands
+   * find more pairs, at the cost of more candidates.
+   */
+  public
+  int lshBands() { return lshBands_; }
+
+
+  public
+  TextClusterOptions lshBands(final int lshBands) {
+    lshBands_ = Math.max(1, lshBands);
+    return this;
+  }
+
+
+  /**
+   * Number of MinHash values per LSH band. More rows make buckets more
+   * selective: Fewer candidates, but pairs need more terms in common.
+   */
+  public
+  int lshRows() { return lshRows_; }
+
+
+  public
+  TextClusterOptions lshRows(final int lshRows) {
+    lshRows_ = Math.max(1, lshRows);
+    return this;
+  }
+
+
+  /**
+   * Whether a rebuild clusters all pairs of documents with a chain of
+   * Map/Reduce jobs (see {@link AllPairsJob}), instead of in memory.
+   */
+  public
+  boolean distributed() { return distributed_; }
+
+
+  public
+  TextClusterOptions distributed(final boolean distributed) {
+    distributed_ = distributed;
+    return this;
+  }
+
+
+  /**
+   * Terms of more documents than this are ignored by the distributed
+   * clustering (0: no limit): Their postings would produce a quadratic
+   * number of partial scores, and such common terms say little about the
+   * similarity of two documents anyways.
+   *
+   * The in-memory clustering has no such limit, so with terms above it the
+   * distributed clustering computes lower similarities, and its clusters
+   * differ.
+   */
+  public
+  int maxPostings() { return maxPostings_; }
+
+
+  public
+  TextClusterOptions maxPostings(final int maxPostings) {
+    maxPostings_ = Math.max(0, maxPostings);
+    return this;
+  }
+
+
+  /**
+   * Maximum number of terms per document (0: no limit). Only the heaviest
+   * terms are indexed, see {@link Sparsifier}.
+   */
+  public
+  int topTerms() { return topTerms_; }
+
+
+  public
+  TextClusterOptions topTerms(final int topTerms) {
+    topTerms_ = Math.max(0, topTerms);
+    return this;
+  }
+
+
+  /**
+   * Share of the squared length of each document that its indexed terms
+   * must make up, heaviest terms first (1: all terms, see
+   * {@link Sparsifier}).
+   */
+  public
+  double l2Mass() { return l2Mass_; }
+
+
+  public
+  TextClusterOptions l2Mass(final double l2Mass) {
+    Assert.check(l2Mass > 0);
+    l2Mass_ = Math.min(1., l2Mass);
+    return this;
+  }
+
+
+  private static
+  Engine engine(final String name) {
+    for (final Engine engine : Engine.values()) {
+      if (engine.name().equalsIgnoreCase(name.trim())) return engine;
+    }
+    return Assert.unreachable(Engine.class, "Unknown engine: %s", name);
+  }
+
+
+  private static final String CONF_THREADS = "worker:textcluster:threads";
+  private static final String CONF_PRUNING = "worker:textcluster:pruning";
+  private static final String CONF_DEDUP = "worker:textcluster:dedup";
+  private static final String CONF_DENSE_HEAD =
+    "worker:textcluster:dense-head";
+  private static final String CONF_COMPRESSED_POSTINGS =
+    "worker:textcluster:compressed-postings";
+  private static final String CONF_BLOCK_SIZE =
+    "worker:textcluster:block-size";
+  private static final String CONF_BLOCK_MEMORY =
+    "worker:textcluster:block-memory-mb";
+  private static final String CONF_BLOCK_PARALLELISM =
+    "worker:textcluster:block-parallelism";
+  private static final String CONF_ASSIGN_THRESHOLD =
+    "worker:textcluster:assign-threshold";
+  private static final String CONF_ENGINE = "worker:textcluster:engine";
+  private static final String CONF_LSH_BANDS = "worker:textcluster:lsh-bands";
+  private static final String CONF_LSH_ROWS = "worker:textcluster:lsh-rows";
+  private static final String CONF_DISTRIBUTED =
+    "worker:textcluster:distributed";
+  private static final String CONF_MAX_POSTINGS =
+    "worker:textcluster:max-postings";
+  private static final String CONF_TOP_TERMS = "worker:textcluster:top-terms";
+  private static final String CONF_L2_MASS = "worker:textcluster:l2-mass";
+
+  private static final long MEGABYTE = 1024L * 1024L;
+
+  private int threads_ = 1;
+  private boolean pruning_ = false;
+  private boolean dedup_ = false;
+  private boolean denseHead_ = false;
+  private boolean compressedPostings_ = false;
+  private int blockSize_ = 0;
+  private long memoryBudget_ = 0;
+  private int blockParallelism_ = 1;
+  private double assignThreshold_ = IndexClusterer.SIMILARITY_THRESHOLD;
+  private Engine engine_ = Engine.INDEX;
+  private int lshBands_ = 20;
+  private int lshRows_ = 2;
+  private boolean distributed_ = false;
+  private int maxPostings_ = 5000;
+  private int topTerms_ = 0;
+  private double l2Mass_ = 1.;
+
+}
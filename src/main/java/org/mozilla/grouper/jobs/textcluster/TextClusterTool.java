@@ -1,22 +1,16 @@
 package org.mozilla.grouper.jobs.textcluster;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IOUtils;
-import org.apache.hadoop.io.SequenceFile;
-import org.apache.hadoop.io.Text;
-import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.mahout.math.NamedVector;
 import org.apache.mahout.math.Vector;
-import org.apache.mahout.math.VectorWritable;
-import org.mozilla.grouper.base.Assert;
 import org.mozilla.grouper.conf.Conf;
 import org.mozilla.grouper.hbase.Factory;
 import org.mozilla.grouper.hbase.Importer;
@@ -48,32 +42,91 @@ public class TextClusterTool extends AbstractCollectionTool {
 
   @Override public
   int run(CollectionRef collection, long timestamp) throws Exception {
-    return run(collection, timestamp, true);
-  }
-
-
-  @Override protected
-  Job createSubmittableJob(CollectionRef collection, long timestamp)
-  throws Exception {
-    Assert.unreachable("Implement me!!!");
-    return null;
+    final boolean distributed = new TextClusterOptions(conf_).distributed();
+    return run(collection, timestamp, !distributed);
   }
 
 
   protected
   int run(CollectionRef collection, long timestamp, boolean sequential)
       throws Exception {
-    if (!sequential) return super.run(collection, timestamp);
+    final TextClusterOptions options = new TextClusterOptions(conf_);
+    List<BaseCluster> stage2;
+    if (!sequential) {
+      // All pairs at once, so there are no blocks to merge. Duplicates are
+      // clustered like any other documents.
+      final AllPairsJob allPairs = allPairs(collection, timestamp);
+      if (!allPairs.run()) return 1;
+      stage2 = allPairs.clusters();
+    }
+    else {
+      // In memory version.
+      stage2 = inMemory(vectors(collection, timestamp), options);
+    }
+    return store(collection, timestamp, stage2);
+  }
 
-    // In memory version.
-    // :TODO: Add mapper+reducer based on divide & conquer (chunk & merge),
-    //        maybe also based on more thorough parallelization.
-    final CollectionTool source = new VectorizeDocuments(conf_, getConf());
-    final Path inputDir = util_.outputDir(collection, timestamp, source);
-    final Path p = new Path(inputDir, "tfidf-vectors/part-r-00000");
 
-    List<BaseCluster> stage1 = fromVectors(p);
-    List<BaseCluster> stage2 = merge(stage1);
+  /**
+   * Clusters vectors that were computed in this process (see
+   * {@link org.mozilla.grouper.jobs.LocalVectorizer}) like the in memory
+   * version does, and stores the clusters.
+   */
+  public
+  int run(CollectionRef collection, long timestamp,
+          List<? extends Vector> vectors) throws Exception {
+    final Iterator<? extends Vector> it = vectors.iterator();
+    final VectorSource source = new VectorSource() {
+      @Override public
+      Vector next() {
+        return it.hasNext() ? it.next() : null;
+      }
+    };
+    final TextClusterOptions options = new TextClusterOptions(conf_);
+    return store(collection, timestamp,
+                 inMemory(source, "vectorized documents", options));
+  }
+
+
+  private
+  List<BaseCluster> inMemory(Path pattern, TextClusterOptions options)
+      throws IOException {
+    final Configuration hadoopConf = getConf();
+    final FileStatus[] statuses =
+      pattern.getFileSystem(hadoopConf).globStatus(pattern);
+    if (statuses == null || statuses.length == 0) {
+      log.warn("No input vectors found in {}", pattern);
+      return new java.util.ArrayList<BaseCluster>();
+    }
+    final Path[] parts = FileUtil.stat2Paths(statuses);
+    Arrays.sort(parts);
+    log.info("Reading {} vector part file(s).", parts.length);
+
+    final VectorPartsReader reader = new VectorPartsReader(hadoopConf, parts);
+    try {
+      return inMemory(reader, pattern.toString(), options);
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+
+  /** @param name Where the vectors come from (for logging). */
+  private
+  List<BaseCluster> inMemory(VectorSource source, String name,
+                             TextClusterOptions options) throws IOException {
+    final Deduplicator dedup = options.dedup() ? new Deduplicator() : null;
+    final List<BaseCluster> stage1 = fromVectors(source, name, options, dedup);
+    final List<BaseCluster> stage2 = new ClusterMerger(options).merge(stage1);
+    return dedup == null ? stage2 : dedup.expand(stage2);
+  }
+
+
+  /** Stores the clusters, and marks the collection as rebuilt. */
+  private
+  int store(CollectionRef collection, long timestamp,
+            List<BaseCluster> stage2) {
     logHistogram(stage2);
 
     List<Cluster> clusters = new java.util.ArrayList<Cluster>(stage2.size());
@@ -89,52 +142,92 @@ public class TextClusterTool extends AbstractCollectionTool {
     importer.load(clusters);
 
     // Rebuild complete: Activate changes in collection meta...
+    // (documents added from here on are assigned incrementally).
     final Importer<Collection> collectionImporter =
       new Factory(conf_).importer(Collection.class);
-    collectionImporter.load(new Collection(collection).set(Attribute.REBUILT,
-                                                           timestamp));
+    collectionImporter.load(new Collection(collection)
+                            .set(Attribute.REBUILT, timestamp)
+                            .set(Attribute.PROCESSED, timestamp));
 
     return 0;
   }
 
 
+  /** The part files of the tf-idf vectors to cluster. */
   private
-  List<BaseCluster> fromVectors(Path p) throws IOException {
-    final List<BaseCluster> result = new java.util.ArrayList<BaseCluster>();
-    SequenceFile.Reader reader = null;
-    try {
-      final Configuration hadoopConf = getConf();
-      reader = new SequenceFile.Reader(p.getFileSystem(hadoopConf),
-                                       p, hadoopConf);
+  Path vectors(CollectionRef collection, long timestamp) {
+    final CollectionTool source = new VectorizeDocuments(conf_, getConf());
+    final Path inputDir = util_.outputDir(collection, timestamp, source);
+    return new Path(inputDir, "tfidf-vectors/part-*");
+  }
 
-      final Text key =
-        (Text) ReflectionUtils.newInstance(reader.getKeyClass(), hadoopConf);
 
-      final VectorWritable vector =
-        (VectorWritable) ReflectionUtils.newInstance(reader.getValueClass(),
-                                                     hadoopConf);
+  private
+  AllPairsJob allPairs(CollectionRef collection, long timestamp) {
+    return new AllPairsJob(getConf(),
+                           vectors(collection, timestamp),
+                           util_.outputDir(collection, timestamp, this),
+                           jobName(collection, timestamp),
+                           new TextClusterOptions(conf_));
+  }
+
 
-      if (!reader.next(key, vector)) {
-        log.warn("No input vectors found in ", p);
+  /**
+   * @param name Where the vectors come from (for logging).
+   * @param dedup If given, receives all vectors, and only their
+   *              representatives are clustered.
+   */
+  private
+  List<BaseCluster> fromVectors(VectorSource reader,
+                                String name,
+                                TextClusterOptions options,
+                                Deduplicator dedup)
+      throws IOException {
+    final List<BaseCluster> result = new java.util.ArrayList<BaseCluster>();
+    BlockPipeline pipeline = null;
+    try {
+      final Sparsifier sparsifier = Sparsifier.create(options);
+      Vector vector = next(reader, sparsifier);
+      if (vector == null) {
+        log.warn("No input vectors found in {}", name);
         return result;
       }
 
-      final int cardinality = vector.get().size();
+      final int cardinality = vector.size();
       List<BaseCluster> more;
-      IndexClusterer clusterer = new IndexClusterer(cardinality);
+      // Blocks are clustered in the background while the next one is read.
+      pipeline = new BlockPipeline(cardinality, options);
+      if (dedup != null) {
+        final long ts = System.currentTimeMillis();
+        do {
+          dedup.add(vector);
+        } while ((vector = next(reader, sparsifier)) != null);
+        log.info(String.format(
+            "Collapsed %d vectors to %d distinct ones. Took %dms.",
+            dedup.size(), dedup.representatives().size(),
+            System.currentTimeMillis() - ts));
+      }
       log.info("Starting clustering...");
-      {
+      if (dedup != null) {
+        for (Vector v : dedup.representatives()) {
+          pipeline.add(v, dedup.count(v));
+        }
+        result.addAll(pipeline.finish());
+      }
+      else {
         do {
-          more = clusterer.add(vector.get());
-          if (more != null) result.addAll(more);
-        } while (reader.next(key, vector));
-        result.addAll(clusterer.clusters());
+          pipeline.add(vector);
+        } while ((vector = next(reader, sparsifier)) != null);
+        result.addAll(pipeline.finish());
       }
 
+      if (sparsifier != null) log.info(sparsifier.report());
+
       log.info("re-clustering remaining vectors...");
       {
-        IndexClusterer restClusterer = new IndexClusterer(vector.get().size());
-        for (Vector v : clusterer.rest()) {
+        IndexClusterer restClusterer =
+          new IndexClusterer(cardinality, options);
+        for (Vector v : pipeline.rest()) {
           more = restClusterer.add(v);
           if (more != null) result.addAll(more);
         }
@@ -142,50 +235,19 @@ public class TextClusterTool extends AbstractCollectionTool {
       }
     }
     finally {
-      IOUtils.closeStream(reader);
+      if (pipeline != null) pipeline.close();
     }
     return result;
   }
 
 
-  private
-  List<BaseCluster> merge(List<BaseCluster> result) {
-    if (result.size() <= 1) return result;
-    log.info("Starting meta-clustering...");
-    final int cardinality = result.get(0).medoid().size();
-    final Map<Vector, BaseCluster> sources =
-      new HashMap<Vector, BaseCluster>(result.size());
-    final IndexClusterer merger = new IndexClusterer(cardinality);
-    final List<BaseCluster> metaClusters = new ArrayList<BaseCluster>();
-    List<BaseCluster> more;
-    for (BaseCluster c : result) {
-      sources.put(c.medoid(), c);
-      more = merger.add(c.medoid());
-      if (more != null) metaClusters.addAll(more);
-    }
-    metaClusters.addAll(merger.clusters());
-
-    List<BaseCluster> flatClusters = new ArrayList<BaseCluster>();
-    for (final BaseCluster meta : metaClusters) {
-      final Vector medoid = meta.medoid();
-      final List<Vector> related = new ArrayList<Vector>();
-      final List<Double> similarities = new ArrayList<Double>();
-      related.addAll(sources.get(medoid).related());
-      similarities.addAll(sources.get(medoid).similarities());
-
-      int i = 0;
-      for (final Vector substitue : meta.related()) {
-        related.add(substitue);
-        similarities.add(meta.similarities().get(i));
-        related.addAll(sources.get(substitue).related());
-        // :TODO: we should recompute these similarities for the new medoid.
-        similarities.addAll(sources.get(substitue).similarities());
-        ++i;
-      }
-
-      flatClusters.add(new BaseCluster(medoid, related, similarities));
-    }
-    return flatClusters;
+  /** The next vector, sparsified if configured. */
+  private static
+  Vector next(VectorSource reader, Sparsifier sparsifier)
+      throws IOException {
+    final Vector vector = reader.next();
+    if (vector == null || sparsifier == null) return vector;
+    return sparsifier.apply(vector);
   }
 
 
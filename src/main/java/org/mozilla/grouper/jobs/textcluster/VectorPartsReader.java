@@ -0,0 +1,200 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+
+/**
+ * Reads the vectors of several sequence files (the part files of a job) at
+ * the same time, with up to one thread per processor. Threads that have
+ * several files read them a chunk at a time, in turn.
+ *
+ * Each file is decoded into a bounded queue. {@link #next()} takes chunks
+ * of vectors from the files in turn, so the order of the vectors does not
+ * depend on the speed of the readers (and neither does the clustering).
+ * Readers fill their files in the same order, so a reader never waits for
+ * room in one queue while {@link #next()} waits for another of its queues.
+ */
+final class VectorPartsReader implements VectorSource {
+
+  /** Number of vectors that are taken from each file in turn. */
+  static final int CHUNK_SIZE = 1000;
+
+
+  VectorPartsReader(final Configuration hadoopConf, final Path[] parts) {
+    final int threads = Math.max(1, Math.min(
+        parts.length, Runtime.getRuntime().availableProcessors()));
+    executor_ = Executors.newFixedThreadPool(threads);
+    for (final Path path : parts) parts_.add(new Part(path));
+    for (int thread = 0; thread < threads; ++thread) {
+      final List<Part> assigned = new ArrayList<Part>();
+      for (int i = thread; i < parts_.size(); i += threads) {
+        assigned.add(parts_.get(i));
+      }
+      executor_.submit(new PartsReader(hadoopConf, assigned));
+    }
+  }
+
+
+  /** @return The next vector, or <tt>null</tt> after the last one. */
+  @Override public
+  Vector next() throws IOException {
+    try {
+      while (!parts_.isEmpty()) {
+        if (current_ >= parts_.size()) current_ = 0;
+        final Part part = parts_.get(current_);
+        final Vector vector = part.queue_.take();
+        if (vector == END) {
+          // Surfaces errors of the reader.
+          if (part.error_ instanceof IOException) {
+            throw (IOException) part.error_;
+          }
+          if (part.error_ != null) throw new RuntimeException(part.error_);
+          parts_.remove(current_);
+          taken_ = 0;
+          continue;
+        }
+        if (++taken_ == CHUNK_SIZE) {
+          taken_ = 0;
+          ++current_;
+        }
+        return vector;
+      }
+      return null;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  /** Stops the readers (they are done anyway once next() returned null). */
+  void close() {
+    executor_.shutdownNow();
+  }
+
+
+  /** A file, the queue it is decoded into, and what went wrong, if any. */
+  private static
+  class Part {
+    Part(final Path path) {
+      path_ = path;
+    }
+
+    final Path path_;
+    final BlockingQueue<Vector> queue_ =
+      new ArrayBlockingQueue<Vector>(CHUNK_SIZE);
+    volatile Throwable error_;
+    /** Only used by the thread that reads the file. */
+    SequenceFile.Reader reader_;
+  }
+
+
+  /**
+   * Decodes files into their queues, a chunk of each in turn (as they are
+   * taken), and marks the end of each file.
+   */
+  private static
+  class PartsReader implements Callable<Void> {
+
+    PartsReader(final Configuration hadoopConf, final List<Part> parts) {
+      hadoopConf_ = hadoopConf;
+      parts_ = parts;
+    }
+
+    @Override public
+    Void call() throws InterruptedException {
+      final List<Part> open = new ArrayList<Part>(parts_);
+      try {
+        for (final Part part : parts_) {
+          part.reader_ = new SequenceFile.Reader(
+              part.path_.getFileSystem(hadoopConf_), part.path_, hadoopConf_);
+        }
+        while (!open.isEmpty()) {
+          for (int i = 0; i < open.size(); ) {
+            final Part part = open.get(i);
+            if (readChunk(part)) {
+              ++i;
+              continue;
+            }
+            open.remove(i);
+            part.queue_.put(END);
+          }
+        }
+      }
+      catch (IOException e) {
+        fail(open, e);
+      }
+      catch (RuntimeException e) {
+        fail(open, e);
+      }
+      finally {
+        for (final Part part : parts_) IOUtils.closeStream(part.reader_);
+      }
+      return null;
+    }
+
+    /**
+     * Ends the remaining files with an error. Interrupted readers end none
+     * of their files: They have been closed, and nobody takes from
+     * the queues anymore.
+     */
+    private static
+    void fail(final List<Part> parts, final Throwable error)
+        throws InterruptedException {
+      for (final Part part : parts) {
+        part.error_ = error;
+        part.queue_.put(END);
+      }
+    }
+
+    /** @return <tt>false</tt> if the file has no more vectors. */
+    private
+    boolean readChunk(final Part part)
+        throws IOException, InterruptedException {
+      final SequenceFile.Reader reader = part.reader_;
+      final Writable key =
+        (Writable) ReflectionUtils.newInstance(reader.getKeyClass(),
+                                               hadoopConf_);
+      final VectorWritable vector =
+        (VectorWritable) ReflectionUtils.newInstance(reader.getValueClass(),
+                                                     hadoopConf_);
+      for (int i = 0; i < CHUNK_SIZE; ++i) {
+        // Each call to next() deserializes into a new vector instance.
+        if (!reader.next(key, vector)) return false;
+        part.queue_.put(vector.get());
+      }
+      return true;
+    }
+
+    private final Configuration hadoopConf_;
+    private final List<Part> parts_;
+  }
+
+
+  /** Marks the end of a file in its queue. */
+  private static final Vector END = new DenseVector(0);
+
+  private final ExecutorService executor_;
+  private final List<Part> parts_ = new ArrayList<Part>();
+  private int current_ = 0;
+  private int taken_ = 0;
+
+}
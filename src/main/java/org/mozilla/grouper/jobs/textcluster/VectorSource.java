@@ -0,0 +1,14 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.io.IOException;
+
+import org.apache.mahout.math.Vector;
+
+
+/** The vectors of a collection, one at a time. */
+interface VectorSource {
+
+  /** @return The next vector, or <tt>null</tt> after the last one. */
+  Vector next() throws IOException;
+
+}
@@ -0,0 +1,199 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+
+
+/**
+ * The documents of a block, with constant time access by position.
+ *
+ * Besides the original vectors (which are handed out as cluster members),
+ * the non-zero elements of all documents are packed into parallel arrays
+ * (compressed sparse row layout): The elements of document <tt>d</tt> are
+ * found at the positions <tt>start(d)</tt> (inclusive) to <tt>end(d)</tt>
+ * (exclusive) of {@link #terms()} and {@link #weights()}, in ascending order
+ * of (dictionary) terms.
+ *
+ * Terms are stored as dense block-local ids (see {@link TermIds}), so that
+ * everything indexed by term scales with the vocabulary of the block rather
+ * than with the dictionary. Use {@link #numTerms()} as their upper bound.
+ *
+ * The arrays are reused for the next block after {@link #clear()}.
+ */
+final class VectorStore {
+
+  void add(final Vector vector) {
+    add(vector, 1);
+  }
+
+
+  /**
+   * @param count The number of documents that the vector stands for (see
+   *              {@link Deduplicator}).
+   */
+  void add(final Vector vector, final int count) {
+    if (n_ == vectors_.length) {
+      final int capacity = Math.max(INITIAL_CAPACITY, n_ * 2);
+      vectors_ = Arrays.copyOf(vectors_, capacity);
+      counts_ = Arrays.copyOf(counts_, capacity);
+      offsets_ = Arrays.copyOf(offsets_, capacity + 1);
+    }
+    final int length = vector.getNumNondefaultElements();
+    if (size_ + length > terms_.length) {
+      final int capacity =
+        Math.max(size_ + length, Math.max(INITIAL_CAPACITY, size_ * 2));
+      terms_ = Arrays.copyOf(terms_, capacity);
+      weights_ = Arrays.copyOf(weights_, capacity);
+    }
+
+    final int start = size_;
+    final Iterator<Element> it = vector.iterateNonZero();
+    while (it.hasNext()) {
+      final Element e = it.next();
+      terms_[size_] = e.index();
+      weights_[size_] = e.get();
+      if (e.get() < 0) negativeWeights_ = true;
+      ++size_;
+    }
+
+    // Sort by dictionary term before remapping, so that scores are summed up
+    // in the same order no matter in which order the terms were first seen.
+    sortRow(start, size_);
+    for (int i = start; i < size_; ++i) {
+      final int term = termIds_.local(terms_[i]);
+      if (term == termCounts_.length) {
+        termCounts_ = Arrays.copyOf(termCounts_,
+                                    Math.max(INITIAL_CAPACITY, term * 2));
+      }
+      terms_[i] = term;
+      ++termCounts_[term];
+    }
+
+    vectors_[n_] = vector;
+    counts_[n_] = count;
+    ++n_;
+    offsets_[n_] = size_;
+  }
+
+
+  /** Removes all documents. */
+  void clear() {
+    Arrays.fill(vectors_, 0, n_, null);
+    Arrays.fill(termCounts_, 0, termIds_.size(), 0);
+    termIds_.clear();
+    n_ = 0;
+    size_ = 0;
+    negativeWeights_ = false;
+  }
+
+
+  /** Number of documents. */
+  int size() {
+    return n_;
+  }
+
+
+  /** Total number of non-zero elements. */
+  int elements() {
+    return size_;
+  }
+
+
+  Vector vector(final int doc) {
+    return vectors_[doc];
+  }
+
+
+  /** The number of documents that a vector stands for (usually 1). */
+  int count(final int doc) {
+    return counts_[doc];
+  }
+
+
+  int start(final int doc) {
+    return offsets_[doc];
+  }
+
+
+  int end(final int doc) {
+    return offsets_[doc + 1];
+  }
+
+
+  /** Local term ids of all documents, to be addressed by start/end. */
+  int[] terms() {
+    return terms_;
+  }
+
+
+  /** Weights of all documents, parallel to {@link #terms()}. */
+  double[] weights() {
+    return weights_;
+  }
+
+
+  /**
+   * For each local term id, the number of documents containing it (the
+   * array may be longer than {@link #numTerms()}).
+   */
+  int[] termCounts() {
+    return termCounts_;
+  }
+
+
+  /** Whether any of the documents has a negative weight. */
+  boolean hasNegativeWeights() {
+    return negativeWeights_;
+  }
+
+
+  /** The local id of a dictionary term, or -1 if no document has it. */
+  int localTerm(final int term) {
+    return termIds_.get(term);
+  }
+
+
+  /** The number of distinct terms, upper bound for the local term ids. */
+  int numTerms() {
+    return termIds_.size();
+  }
+
+
+  /**
+   * Sequential access vectors are already sorted by term, so this is a single
+   * pass for them. Others are insertion sorted (they are short).
+   */
+  private
+  void sortRow(final int from, final int to) {
+    for (int i = from + 1; i < to; ++i) {
+      final int term = terms_[i];
+      if (terms_[i - 1] < term) continue;
+      final double weight = weights_[i];
+      int j = i;
+      for (; j > from && terms_[j - 1] > term; --j) {
+        terms_[j] = terms_[j - 1];
+        weights_[j] = weights_[j - 1];
+      }
+      terms_[j] = term;
+      weights_[j] = weight;
+    }
+  }
+
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private int n_ = 0;
+  private int size_ = 0;
+  private Vector[] vectors_ = new Vector[0];
+  private int[] counts_ = new int[0];
+  private int[] offsets_ = new int[1];
+  private int[] terms_ = new int[0];
+  private double[] weights_ = new double[0];
+  private int[] termCounts_ = new int[0];
+  private final TermIds termIds_ = new TermIds();
+  private boolean negativeWeights_ = false;
+
+}
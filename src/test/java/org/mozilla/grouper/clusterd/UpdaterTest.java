@@ -0,0 +1,189 @@
+package org.mozilla.grouper.clusterd;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.mahout.math.Vector;
+import org.json.simple.parser.JSONParser;
+import org.mozilla.grouper.jobs.Dictionary;
+import org.mozilla.grouper.model.Cluster;
+import org.mozilla.grouper.model.ClusterRef;
+import org.mozilla.grouper.model.CollectionRef;
+import org.mozilla.grouper.model.Document;
+import org.mozilla.grouper.model.DocumentRef;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class UpdaterTest {
+
+    private static final CollectionRef COLLECTION =
+        new CollectionRef("test", "firefox");
+
+    private static final String[] TERMS = {
+        "flash", "video", "crash", "slow", "startup", "bookmarks", "sync"
+    };
+
+    private static Dictionary dictionary() {
+        final Map<String, Integer> terms = new HashMap<String, Integer>();
+        final Map<Integer, Long> df = new HashMap<Integer, Long>();
+        for (int i = 0; i < TERMS.length; ++i) {
+            terms.put(TERMS[i], Integer.valueOf(i));
+            df.put(Integer.valueOf(i), Long.valueOf(5));
+        }
+        return new Dictionary(terms, df, 100);
+    }
+
+    private static DocumentRef ref(final String id) {
+        return new DocumentRef(COLLECTION, id);
+    }
+
+    private static Cluster cluster(final Dictionary dictionary,
+                                   final String medoid, final String text) {
+        return new Cluster(new ClusterRef(COLLECTION, 1L, medoid),
+                           dictionary.vectorize(medoid, text),
+                           new ArrayList<Vector>(), new ArrayList<Double>());
+    }
+
+    private static MemoryStorage storage() {
+        final Dictionary dictionary = dictionary();
+        final MemoryStorage storage = new MemoryStorage();
+        storage.rebuild(COLLECTION, 1L, dictionary, Arrays.asList(
+            cluster(dictionary, "m1", "flash video crash"),
+            cluster(dictionary, "m2", "slow startup bookmarks sync")));
+        return storage;
+    }
+
+    private static String post(final int port, final String query,
+                               final String body) throws IOException {
+        final URL url =
+            new URL("http://localhost:" + port + "/update?" + query);
+        final HttpURLConnection connection =
+            (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        final OutputStream out = connection.getOutputStream();
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        if (connection.getResponseCode() != 200) {
+            return String.valueOf(connection.getResponseCode());
+        }
+        final InputStream in = connection.getInputStream();
+        final StringBuilder sb = new StringBuilder();
+        final InputStreamReader reader = new InputStreamReader(in, "UTF-8");
+        final char[] buffer = new char[1024];
+        for (int n; (n = reader.read(buffer)) != -1; ) sb.append(buffer, 0, n);
+        reader.close();
+        return sb.toString();
+    }
+
+    @Test(groups = "unit")
+    public void testAssign() throws Exception {
+        final MemoryStorage storage = storage();
+        final Assigner assigner = new Assigner(storage, new UpdaterOptions());
+        final Map<String, String> labels = assigner.assign(COLLECTION,
+            Arrays.asList(
+                new Document(ref("d1"), "Flash video: crash on youtube"),
+                new Document(ref("d2"), "startup is slow"),
+                new Document(ref("d3"), "nothing in common"),
+                new Document(ref("d4"), "sync bookmarks")));
+        assertEquals(Arrays.asList("d1", "d2", "d3", "d4"),
+                     new ArrayList<String>(labels.keySet()));
+        assertEquals("m1", labels.get("d1"));
+        assertEquals("m2", labels.get("d2"));
+        assertEquals(null, labels.get("d3"));
+        assertEquals("m2", labels.get("d4"));
+
+        assigner.flush();
+        assertEquals(4, storage.documents().size());
+        assertEquals(2, storage.additions().size());
+        assigner.close();
+    }
+
+    @Test(groups = "unit")
+    public void testMicroBatches() throws Exception {
+        final MemoryStorage storage = storage();
+        final Assigner assigner = new Assigner(
+            storage, new UpdaterOptions().batchSize(10).flushMillis(60000));
+        for (int i = 0; i < 25; ++i) {
+            assigner.assign(COLLECTION, Arrays.asList(
+                new Document(ref("d" + i), "flash crash")));
+        }
+        assigner.flush();
+        assertEquals(25, storage.documents().size());
+        assertTrue(storage.writes() < 25);
+        assigner.close();
+    }
+
+    @Test(groups = "unit")
+    public void testUnknownCollection() throws Exception {
+        final MemoryStorage storage = storage();
+        final Assigner assigner = new Assigner(storage, new UpdaterOptions());
+        final Map<String, String> labels = assigner.assign(
+            new CollectionRef("test", "thunderbird"),
+            Arrays.asList(new Document(ref("d1"), "flash video crash")));
+        assertEquals(null, labels.get("d1"));
+        assigner.close();
+        assertEquals(1, storage.documents().size());
+    }
+
+    /** Once a collection is reset, its old clusters must not be used. */
+    @Test(groups = "unit")
+    public void testResetCollection() throws Exception {
+        final MemoryStorage storage = storage();
+        final Assigner assigner =
+            new Assigner(storage, new UpdaterOptions().refreshMillis(0));
+        assertEquals("m1", assigner.assign(COLLECTION, Arrays.asList(
+            new Document(ref("d1"), "flash video crash"))).get("d1"));
+        storage.reset(COLLECTION);
+        assertEquals(null, assigner.assign(COLLECTION, Arrays.asList(
+            new Document(ref("d2"), "flash video crash"))).get("d2"));
+        assigner.close();
+    }
+
+    @Test(groups = "unit")
+    public void testEndpoint() throws Exception {
+        final MemoryStorage storage = storage();
+        final Assigner assigner = new Assigner(storage, new UpdaterOptions());
+        final LocalEndpoint endpoint = new LocalEndpoint(assigner, 0);
+        try {
+            final String response = post(
+                endpoint.port(), "namespace=test&collection=firefox",
+                "[{\"id\": \"d1\", \"text\": \"video crash\"}, " +
+                " {\"id\": 2, \"text\": \"something else\"}]");
+            final Map<?, ?> result =
+                (Map<?, ?>) new JSONParser().parse(response);
+            final Map<?, ?> assigned = (Map<?, ?>) result.get("assigned");
+            assertEquals("m1", assigned.get("d1"));
+            assertEquals(1, assigned.size());
+            assertEquals(Arrays.asList("2"),
+                         (List<?>) result.get("unassigned"));
+
+            assertEquals("400", post(endpoint.port(), "namespace=test", "[]"));
+            assertEquals("400", post(endpoint.port(),
+                                     "namespace=test&collection=firefox",
+                                     "{\"id\": \"d1\"}"));
+            // Empty documents cannot be stored.
+            assertEquals("400", post(endpoint.port(),
+                                     "namespace=test&collection=firefox",
+                                     "[{\"id\": \"d3\", \"text\": \"\"}]"));
+        }
+        finally {
+            endpoint.stop();
+            assigner.close();
+        }
+        assertEquals(2, storage.documents().size());
+    }
+}
@@ -0,0 +1,82 @@
+package org.mozilla.grouper.hbase;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.mozilla.grouper.model.CollectionRef;
+import org.mozilla.grouper.model.Document;
+import org.mozilla.grouper.model.DocumentRef;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class ImporterTest {
+
+    private static final CollectionRef COLLECTION =
+        new CollectionRef("test", "firefox");
+
+    /** Records the puts instead of writing them to HBase. */
+    private static class RecordingFactory extends Factory {
+
+        final List<Put> puts = new ArrayList<Put>();
+
+        RecordingFactory() {
+            super(new org.mozilla.grouper.conf.Factory().fromMap(conf()));
+        }
+
+        private static Map<String, Object> conf() {
+            final Map<String, Object> conf = new HashMap<String, Object>();
+            conf.put("general:prefix", "test_");
+            conf.put("storage:hbase:keys:scheme", "SIMPLE");
+            return conf;
+        }
+
+        @Override
+        HTableInterface table(final Class<?> model) {
+            return (HTableInterface) Proxy.newProxyInstance(
+                HTableInterface.class.getClassLoader(),
+                new Class<?>[] {HTableInterface.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                                         Object[] args) {
+                        if ("put".equals(method.getName())) {
+                            for (final Object put : (List<?>) args[0]) {
+                                puts.add((Put) put);
+                            }
+                        }
+                        return null;
+                    }
+                });
+        }
+
+        @Override
+        void release(final HTableInterface table) { }
+    }
+
+    private static Document document(final String id, final String text) {
+        return new Document(new DocumentRef(COLLECTION, id), text);
+    }
+
+    /** Documents without text have no row, and must not fail the batch. */
+    @Test(groups = "unit")
+    public void testPutSkipsEmptyDocuments() throws Exception {
+        final RecordingFactory factory = new RecordingFactory();
+        factory.importer(Document.class).put(Arrays.asList(
+            document("d1", "flash video crash"),
+            document("d2", ""),
+            document("d3", "slow startup")));
+        assertEquals(2, factory.puts.size());
+    }
+
+}
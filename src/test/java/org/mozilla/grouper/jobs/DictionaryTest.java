@@ -0,0 +1,96 @@
+package org.mozilla.grouper.jobs;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.mahout.math.Vector;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class DictionaryTest {
+
+    static private final double DELTA = 1e-9;
+    static private final String TEXT = "pears and plums, plums, apples";
+
+    private static void checkSame(Dictionary expected, Dictionary actual) {
+        assertEquals(expected.size(), actual.size());
+        final Vector e = expected.vectorize("doc", TEXT);
+        final Vector a = actual.vectorize("doc", TEXT);
+        assertEquals(e.getNumNondefaultElements(),
+                     a.getNumNondefaultElements());
+        for (int term = 0; term < expected.size(); ++term) {
+            assertEquals(e.get(term), a.get(term), DELTA);
+        }
+    }
+
+    @Test(groups = "unit")
+    public void testBytes() throws IOException {
+        final Map<String, Integer> terms = new HashMap<String, Integer>();
+        final Map<Integer, Long> frequencies = new HashMap<Integer, Long>();
+        final String[] tokens = {"apples", "pears", "plums", "\u00fcber"};
+        for (int i = 0; i < tokens.length; ++i) {
+            terms.put(tokens[i], Integer.valueOf(i));
+            frequencies.put(Integer.valueOf(i), Long.valueOf(20 + 300 * i));
+        }
+        final Dictionary dictionary = new Dictionary(terms, frequencies, 2000);
+        checkSame(dictionary, Dictionary.fromBytes(dictionary.toBytes()));
+    }
+
+    @Test(groups = "unit")
+    public void testHashedBytes() throws IOException {
+        final int dimensions = 1 << 16;
+        final Map<Integer, Long> frequencies = new HashMap<Integer, Long>();
+        for (String token : new String[] {"apples", "pears", "plums"}) {
+            frequencies.put(Integer.valueOf(Dictionary.hash(token, dimensions)),
+                            Long.valueOf(100));
+        }
+        final Dictionary dictionary =
+            Dictionary.hashed(dimensions, frequencies, 1000);
+        checkSame(dictionary, Dictionary.fromBytes(dictionary.toBytes()));
+    }
+
+    @Test(groups = "unit")
+    public void testDrift() {
+        final Map<String, Integer> terms = new HashMap<String, Integer>();
+        final Map<Integer, Long> frequencies = new HashMap<Integer, Long>();
+        final long[] same = new long[3];
+        final String[] tokens = {"apples", "pears", "plums"};
+        for (int i = 0; i < tokens.length; ++i) {
+            terms.put(tokens[i], Integer.valueOf(i));
+            frequencies.put(Integer.valueOf(i), Long.valueOf(100 * (i + 1)));
+            same[i] = 100 * (i + 1);
+        }
+        final Dictionary dictionary = new Dictionary(terms, frequencies, 1000);
+        assertEquals(0., dictionary.drift(same, 1000), DELTA);
+
+        // A few more documents without these terms barely matter...
+        final double little = dictionary.drift(same, 1050);
+        assertTrue(little > 0 && little < .05);
+
+        // ...but a term that became common does.
+        final long[] common = same.clone();
+        common[0] = 800;
+        assertTrue(dictionary.drift(common, 1000) > .2);
+    }
+
+    @Test(groups = "unit")
+    public void testDriftOfSmallCollections() {
+        // Below MIN_DF documents, the IDF of every term is negative.
+        final Map<String, Integer> terms = new HashMap<String, Integer>();
+        final Map<Integer, Long> frequencies = new HashMap<Integer, Long>();
+        terms.put("apples", Integer.valueOf(0));
+        frequencies.put(Integer.valueOf(0), Long.valueOf(1));
+        final Dictionary dictionary = new Dictionary(terms, frequencies, 2);
+        assertEquals(0., dictionary.drift(new long[] {1}, 2), DELTA);
+
+        final double drift = dictionary.drift(new long[] {2}, 3);
+        assertTrue(drift > 0);
+        assertTrue(drift < Double.POSITIVE_INFINITY);
+    }
+
+}
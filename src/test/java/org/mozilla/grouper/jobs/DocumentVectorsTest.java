@@ -0,0 +1,98 @@
+package org.mozilla.grouper.jobs;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class DocumentVectorsTest {
+
+    static private final int DICT_SIZE = 100000;
+
+    private static void checkSame(Vector expected, Vector actual,
+                                  double delta) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getNumNondefaultElements(),
+                     actual.getNumNondefaultElements());
+        for (int term = 0; term < DICT_SIZE; ++term) {
+            assertEquals(expected.get(term), actual.get(term), delta);
+        }
+    }
+
+    /** Not sequential, and with gaps that need several bytes. */
+    private static Vector vector(boolean weights) {
+        final Vector v = new RandomAccessSparseVector(DICT_SIZE);
+        for (int term : new int[] {0, 1, 130, 20000, DICT_SIZE - 1}) {
+            v.set(term, weights ? 1. / (term + 3) : term % 7 + 1);
+        }
+        return v;
+    }
+
+    @Test(groups = "unit")
+    public void testCounts() throws IOException {
+        final Vector tf = vector(false);
+        final byte[] bytes = DocumentVectors.encodeCounts(tf);
+        assertTrue(bytes.length < 4 * tf.getNumNondefaultElements());
+        checkSame(tf, DocumentVectors.decodeCounts(bytes, DICT_SIZE), 0);
+    }
+
+    @Test(groups = "unit")
+    public void testWeights() throws IOException {
+        final Vector tfidf = vector(true);
+        final byte[] bytes = DocumentVectors.encodeWeights(tfidf);
+        checkSame(tfidf, DocumentVectors.decodeWeights(bytes, DICT_SIZE),
+                  1e-7);
+    }
+
+    @Test(groups = "unit")
+    public void testEmpty() throws IOException {
+        final Vector empty = new RandomAccessSparseVector(DICT_SIZE);
+        final byte[] bytes = DocumentVectors.encodeWeights(empty);
+        assertEquals(1, bytes.length);
+        checkSame(empty, DocumentVectors.decodeWeights(bytes, DICT_SIZE), 0);
+    }
+
+    /** Dense vectors report all of their elements as non-default. */
+    @Test(groups = "unit")
+    public void testDense() throws IOException {
+        final Vector dense = new DenseVector(DICT_SIZE);
+        dense.set(3, 2);
+        dense.set(20000, 1);
+        final Vector sparse = new RandomAccessSparseVector(dense);
+        checkSame(sparse, DocumentVectors.decodeCounts(
+            DocumentVectors.encodeCounts(dense), DICT_SIZE), 0);
+        checkSame(sparse, DocumentVectors.decodeWeights(
+            DocumentVectors.encodeWeights(dense), DICT_SIZE), 0);
+    }
+
+    /** Explicitly stored zeros are not encoded. */
+    @Test(groups = "unit")
+    public void testStoredZeros() throws IOException {
+        final Vector withZeros = new SequentialAccessSparseVector(DICT_SIZE);
+        withZeros.set(3, 2);
+        withZeros.set(7, 1);
+        withZeros.set(7, 0);
+        withZeros.set(20000, 1);
+        final Vector expected = new RandomAccessSparseVector(DICT_SIZE);
+        expected.set(3, 2);
+        expected.set(20000, 1);
+        final byte[] bytes = DocumentVectors.encodeCounts(withZeros);
+        final Vector decoded = DocumentVectors.decodeCounts(bytes, DICT_SIZE);
+        checkSame(expected, decoded, 0);
+    }
+
+    @Test(groups = "unit", expectedExceptions = IOException.class)
+    public void testCardinality() throws IOException {
+        final byte[] bytes = DocumentVectors.encodeCounts(vector(false));
+        DocumentVectors.decodeCounts(bytes, DICT_SIZE / 2);
+    }
+
+}
@@ -0,0 +1,184 @@
+package org.mozilla.grouper.jobs;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.Vector;
+import org.mozilla.grouper.conf.Factory;
+import org.mozilla.grouper.hbase.Schema.Documents;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class IncrementalVectorizerTest {
+
+    static private final double DELTA = 1e-6;
+
+    /** Texts were imported first, then the collection was rebuilt. */
+    static private final long IMPORTED = 500;
+    static private final long REBUILT = 1000;
+    /** A full rebuild that stored its dictionary, but failed to cluster. */
+    static private final long FAILED = 2000;
+    static private final long NOW = 3000;
+
+    static private final String[] TEXTS = {
+        "apples and pears", "pears and plums", "plums", "apples",
+        "cherries and apples"
+    };
+
+    private static Dictionary dictionary(String... tokens) {
+        final Map<String, Integer> terms = new HashMap<String, Integer>();
+        final Map<Integer, Long> frequencies = new HashMap<Integer, Long>();
+        for (int i = 0; i < tokens.length; ++i) {
+            terms.put(tokens[i], Integer.valueOf(i));
+            frequencies.put(Integer.valueOf(i), Long.valueOf(2));
+        }
+        return new Dictionary(terms, frequencies, TEXTS.length);
+    }
+
+    /** A document row, with the vectors of the given dictionary. */
+    private static Result row(int doc, Dictionary dictionary, long stored) {
+        final byte[] row = Bytes.toBytes("doc" + doc);
+        final List<String> tokens = Dictionary.tokenize(TEXTS[doc]);
+        final Vector tf = dictionary.termFrequencies(tokens);
+        final Vector tfidf = dictionary.vectorize("doc" + doc, tf);
+        final KeyValue[] cells = {
+            new KeyValue(row, Documents.Main.FAMILY,
+                         Documents.Main.ID.qualifier, IMPORTED,
+                         Bytes.toBytes("doc" + doc)),
+            new KeyValue(row, Documents.Main.FAMILY,
+                         Documents.Main.TEXT.qualifier, IMPORTED,
+                         Bytes.toBytes(TEXTS[doc])),
+            new KeyValue(row, Documents.Processing.FAMILY,
+                         Documents.Processing.VECTOR_IDF.qualifier, stored,
+                         DocumentVectors.encodeCounts(tf)),
+            new KeyValue(row, Documents.Processing.FAMILY,
+                         Documents.Processing.VECTOR_TFIDF.qualifier, stored,
+                         DocumentVectors.encodeWeights(tfidf))
+        };
+        Arrays.sort(cells, KeyValue.COMPARATOR);
+        return new Result(cells);
+    }
+
+    /** Records the batches of changes. */
+    private static IncrementalVectorizer.ChangeSink changes(
+            final List<List<Put>> batches) {
+        return new IncrementalVectorizer.ChangeSink() {
+            @Override
+            public void write(List<Put> changes) {
+                batches.add(new ArrayList<Put>(changes));
+            }
+        };
+    }
+
+    private static IncrementalVectorizer vectorizer() {
+        return new IncrementalVectorizer(
+            new Factory().fromMap(new HashMap<String, Object>()),
+            new Configuration());
+    }
+
+    /**
+     * The failed rebuild stored a dictionary with other term ids, and the
+     * vectors of most documents. The rebuild after it uses that dictionary
+     * (the latest one), and only vectorizes the documents whose vectors
+     * are from before it.
+     */
+    @Test(groups = "unit")
+    public void testAfterFailedRebuild() throws IOException {
+        final Dictionary before = dictionary("apples", "pears", "plums");
+        final Dictionary latest =
+            dictionary("cherries", "apples", "pears", "plums");
+        final List<Result> rows = new ArrayList<Result>();
+        rows.add(row(0, before, REBUILT));
+        for (int doc = 1; doc < TEXTS.length; ++doc) {
+            rows.add(row(doc, latest, FAILED));
+        }
+
+        final List<NamedVector> vectors = new ArrayList<NamedVector>();
+        final IncrementalVectorizer.VectorSink sink =
+            new IncrementalVectorizer.VectorSink() {
+                @Override
+                public void write(NamedVector vector) {
+                    vectors.add(vector);
+                }
+            };
+        final List<List<Put>> batches = new ArrayList<List<Put>>();
+        assertTrue(vectorizer().vectorize(latest, FAILED, rows, null, NOW,
+                                          sink, changes(batches), 100));
+        assertEquals(1, batches.size());
+        assertEquals(1, batches.get(0).size());
+        assertTrue(Arrays.equals(Bytes.toBytes("doc0"),
+                                 batches.get(0).get(0).getRow()));
+
+        assertEquals(TEXTS.length, vectors.size());
+        for (final NamedVector actual : vectors) {
+            final int doc =
+                Integer.parseInt(actual.getName().substring("doc".length()));
+            final Vector expected = latest.vectorize("doc" + doc, TEXTS[doc]);
+            assertEquals(latest.size(), actual.size());
+            for (int term = 0; term < latest.size(); ++term) {
+                assertEquals(expected.get(term), actual.get(term), DELTA);
+            }
+        }
+    }
+
+    /** Mostly changed collections are vectorized from scratch. */
+    @Test(groups = "unit")
+    public void testMostlyChanged() throws IOException {
+        final Dictionary before = dictionary("apples", "pears", "plums");
+        final Dictionary latest =
+            dictionary("cherries", "apples", "pears", "plums");
+        final List<Result> rows = new ArrayList<Result>();
+        for (int doc = 0; doc < TEXTS.length; ++doc) {
+            rows.add(row(doc, doc < 3 ? before : latest,
+                         doc < 3 ? REBUILT : FAILED));
+        }
+        final IncrementalVectorizer.VectorSink ignore =
+            new IncrementalVectorizer.VectorSink() {
+                @Override
+                public void write(NamedVector vector) { }
+            };
+        assertTrue(!vectorizer().vectorize(latest, FAILED, rows, null, NOW,
+                                           ignore,
+                                           changes(new ArrayList<List<Put>>()),
+                                           100));
+    }
+
+    /** Changes are stored while scanning, in batches of the given size. */
+    @Test(groups = "unit")
+    public void testBatches() throws IOException {
+        final Dictionary before = dictionary("apples", "pears", "plums");
+        final Dictionary latest =
+            dictionary("cherries", "apples", "pears", "plums");
+        final List<Result> rows = new ArrayList<Result>();
+        for (int doc = 0; doc < TEXTS.length; ++doc) {
+            rows.add(row(doc, doc < 2 ? before : latest,
+                         doc < 2 ? REBUILT : FAILED));
+        }
+        final IncrementalVectorizer.VectorSink ignore =
+            new IncrementalVectorizer.VectorSink() {
+                @Override
+                public void write(NamedVector vector) { }
+            };
+        final List<List<Put>> batches = new ArrayList<List<Put>>();
+        assertTrue(vectorizer().vectorize(latest, FAILED, rows, null, NOW,
+                                          ignore, changes(batches), 1));
+        assertEquals(2, batches.size());
+        assertEquals(1, batches.get(0).size());
+        assertEquals(1, batches.get(1).size());
+    }
+
+}
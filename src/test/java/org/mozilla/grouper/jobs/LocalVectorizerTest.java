@@ -0,0 +1,75 @@
+package org.mozilla.grouper.jobs;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.List;
+
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.Vector;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class LocalVectorizerTest {
+
+    static private final double DELTA = 1e-9;
+
+    /** Terms that occur less than MIN_SUPPORT times are dropped. */
+    static private String text(int i) {
+        if (i % 4 == 0) return "Apples and pears, pears!";
+        if (i % 4 == 1) return "pears and plums";
+        return i == 2 ? "apples cherries" : "plums";
+    }
+
+    @Test(groups = "unit")
+    public void testSameAsDictionary() {
+        final LocalVectorizer vectorizer = new LocalVectorizer();
+        final int n = 40;
+        for (int i = 0; i < n; ++i) vectorizer.add("doc" + i, text(i));
+        assertEquals(n, vectorizer.size());
+
+        // "and" is a stopword, "cherries" occurs once. Terms are numbered in
+        // lexical order.
+        final Dictionary dictionary = vectorizer.dictionary();
+        assertEquals(3, dictionary.size());
+        final Vector apples = dictionary.vectorize("apples", "apples");
+        assertEquals(1, apples.getNumNondefaultElements());
+        assertTrue(apples.get(0) > 0);
+        checkVectors(vectorizer, n);
+    }
+
+    @Test(groups = "unit")
+    public void testHashing() {
+        final int dimensions = 64;
+        final LocalVectorizer vectorizer = new LocalVectorizer(dimensions);
+        final int n = 40;
+        for (int i = 0; i < n; ++i) vectorizer.add("doc" + i, text(i));
+
+        // Every token has a dimension, even "cherries".
+        final Dictionary dictionary = vectorizer.dictionary();
+        assertEquals(dimensions, dictionary.size());
+        final int cherries = Dictionary.hash("cherries", dimensions);
+        assertTrue(cherries >= 0 && cherries < dimensions);
+        assertTrue(dictionary.vectorize("doc", "cherries").get(cherries) > 0);
+        checkVectors(vectorizer, n);
+    }
+
+    /** Vectors are those of the dictionary of the vectorizer. */
+    private static void checkVectors(LocalVectorizer vectorizer, int n) {
+        final Dictionary dictionary = vectorizer.dictionary();
+        final List<Vector> vectors = vectorizer.vectors();
+        assertEquals(n, vectors.size());
+        for (int i = 0; i < n; ++i) {
+            final Vector v = vectors.get(i);
+            final Vector expected = dictionary.vectorize("doc" + i, text(i));
+            assertEquals("doc" + i, ((NamedVector) v).getName());
+            assertEquals(expected.getNumNondefaultElements(),
+                         v.getNumNondefaultElements());
+            for (int term = 0; term < dictionary.size(); ++term) {
+                assertEquals(expected.get(term), v.get(term), DELTA);
+            }
+        }
+    }
+
+}
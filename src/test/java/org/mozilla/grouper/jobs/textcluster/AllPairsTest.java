@@ -0,0 +1,269 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.testng.annotations.Test;
+
+
+/**
+ * Runs the steps of the distributed clustering like Map/Reduce would
+ * (grouping by key, values in random order), and compares the result to
+ * the in-memory clustering.
+ */
+@Test(groups = "unit")
+public class AllPairsTest {
+
+    static private final int DICT_SIZE = 500;
+    static private final int CHUNK_SIZE = 100;
+
+    /** Key and value of a reducer input. */
+    static private class Value {
+        Value(long key, double value) { key_ = key; value_ = value; }
+        final long key_;
+        final double value_;
+    }
+
+    static private <K> void put(Map<K, List<Value>> groups,
+                                K group, long key, double value) {
+        List<Value> values = groups.get(group);
+        if (values == null) {
+            values = new ArrayList<Value>();
+            groups.put(group, values);
+        }
+        values.add(new Value(key, value));
+    }
+
+    /** The order in which VectorPartsReader takes vectors from parts. */
+    static private List<Vector> roundRobin(List<List<Vector>> parts) {
+        final List<Vector> order = new ArrayList<Vector>();
+        final int[] taken = new int[parts.size()];
+        boolean more = true;
+        while (more) {
+            more = false;
+            for (int p = 0; p < parts.size(); ++p) {
+                final int end = Math.min(parts.get(p).size(),
+                                         taken[p] + CHUNK_SIZE);
+                more |= end < parts.get(p).size();
+                order.addAll(parts.get(p).subList(taken[p], end));
+                taken[p] = end;
+            }
+        }
+        return order;
+    }
+
+    static private String distributed(List<List<Vector>> parts,
+                                      int maxPostings,
+                                      Random random) throws Exception {
+        // Job 1: map (term) -> (doc, weight), reduce to partial scores.
+        final Map<Long, List<Value>> postings =
+            new HashMap<Long, List<Value>>();
+        final Map<Long, String> names = new HashMap<Long, String>();
+        for (int p = 0; p < parts.size(); ++p) {
+            for (int r = 0; r < parts.get(p).size(); ++r) {
+                final Vector v = parts.get(p).get(r);
+                if (v.getNumNondefaultElements()
+                    < IndexClusterer.MIN_DOCUMENT_LENGTH) continue;
+                final long doc = AllPairs.documentKey(p, r, CHUNK_SIZE);
+                names.put(doc, ((NamedVector) v).getName());
+                final Iterator<Element> it = v.iterateNonZero();
+                while (it.hasNext()) {
+                    final Element e = it.next();
+                    put(postings, (long) e.index(), doc, e.get());
+                }
+            }
+        }
+
+        final Map<String, List<Value>> partials =
+            new HashMap<String, List<Value>>();
+        for (final Map.Entry<Long, List<Value>> term : postings.entrySet()) {
+            final List<Value> values = term.getValue();
+            Collections.shuffle(values, random);
+            final long[] docs = new long[values.size()];
+            final double[] weights = new double[values.size()];
+            for (int i = 0; i < docs.length; ++i) {
+                docs[i] = values.get(i).key_;
+                weights[i] = values.get(i).value_;
+            }
+            final long t = term.getKey();
+            AllPairs.pairs(docs, weights, docs.length, maxPostings,
+                           new AllPairs.PairSink() {
+                public void pair(long first, long second, double product) {
+                    put(partials, first + "," + second, t, product);
+                }
+            });
+        }
+
+        // Job 2: sum up the partial scores of each pair.
+        final Map<Long, List<Value>> matches = new HashMap<Long, List<Value>>();
+        for (final Map.Entry<String, List<Value>> pair : partials.entrySet()) {
+            final List<Value> values = pair.getValue();
+            Collections.shuffle(values, random);
+            final long[] terms = new long[values.size()];
+            final double[] products = new double[values.size()];
+            for (int i = 0; i < terms.length; ++i) {
+                terms[i] = values.get(i).key_;
+                products[i] = values.get(i).value_;
+            }
+            final double score = AllPairs.score(terms, products, terms.length);
+            if (score < IndexClusterer.SIMILARITY_THRESHOLD) continue;
+            final String[] keys = pair.getKey().split(",");
+            final long first = Long.parseLong(keys[0]);
+            final long second = Long.parseLong(keys[1]);
+            put(matches, first, second, score);
+            put(matches, second, first, score);
+        }
+
+        // Job 3: best match of each document.
+        final List<Long> docs = new ArrayList<Long>();
+        final List<AllPairs.Leader> leaders = new ArrayList<AllPairs.Leader>();
+        for (final Map.Entry<Long, List<Value>> doc : matches.entrySet()) {
+            final List<Value> values = doc.getValue();
+            Collections.shuffle(values, random);
+            final long[] others = new long[values.size()];
+            final double[] scores = new double[values.size()];
+            for (int i = 0; i < others.length; ++i) {
+                others[i] = values.get(i).key_;
+                scores[i] = values.get(i).value_;
+            }
+            docs.add(doc.getKey());
+            leaders.add(AllPairs.leader(doc.getKey(), others, scores,
+                                        others.length,
+                                        IndexClusterer.REASSIGN_THRESHOLD));
+        }
+
+        // Driver: stages 2 and 3.
+        final int n = docs.size();
+        final long[] keys = new long[n];
+        final String[] docNames = new String[n];
+        final long[] leaderKeys = new long[n];
+        final double[] leaderScores = new double[n];
+        final double[] centricities = new double[n];
+        for (int i = 0; i < n; ++i) {
+            keys[i] = docs.get(i);
+            docNames[i] = names.get(docs.get(i));
+            leaderKeys[i] = leaders.get(i).leader();
+            leaderScores[i] = leaders.get(i).score();
+            centricities[i] = leaders.get(i).centricity();
+        }
+        final StringBuilder sb = new StringBuilder();
+        IndexClustererTest.describe(
+            AllPairs.clusters(keys, docNames, leaderKeys, leaderScores,
+                              centricities, n), sb);
+        return sb.toString();
+    }
+
+    static private String inMemory(List<Vector> docs) {
+        final IndexClusterer clusterer = new IndexClusterer(DICT_SIZE);
+        for (Vector v : docs) assertTrue(clusterer.add(v) == null);
+        final StringBuilder sb = new StringBuilder();
+        IndexClustererTest.describe(clusterer.clusters(), sb);
+        return sb.toString();
+    }
+
+    @Test(groups = "unit")
+    public void testSameAsInMemory() throws Exception {
+        final Random random = new Random(7);
+        for (long seed = 1; seed <= 3; ++seed) {
+            final List<Vector> docs =
+                IndexClustererTest.documents(seed, 2000, 20);
+            // Uneven parts, so that some run out before the others.
+            final List<List<Vector>> parts = new ArrayList<List<Vector>>();
+            parts.add(docs.subList(0, 950));
+            parts.add(docs.subList(950, 1130));
+            parts.add(docs.subList(1130, 2000));
+
+            final String expected = inMemory(roundRobin(parts));
+            assertTrue(expected.contains(":"));
+            assertEquals(expected, distributed(parts, 0, random));
+        }
+    }
+
+    @Test(groups = "unit")
+    public void testDocumentKeys() {
+        final List<List<Vector>> parts = new ArrayList<List<Vector>>();
+        final Map<Long, Vector> byKey = new TreeMap<Long, Vector>();
+        final int[] sizes = {250, 30, 420};
+        for (int p = 0; p < sizes.length; ++p) {
+            final List<Vector> part = new ArrayList<Vector>();
+            for (int r = 0; r < sizes[p]; ++r) {
+                final Vector v = new NamedVector(
+                    new org.apache.mahout.math.DenseVector(0), p + "/" + r);
+                part.add(v);
+                byKey.put(AllPairs.documentKey(p, r, CHUNK_SIZE), v);
+            }
+            parts.add(part);
+        }
+        assertEquals(roundRobin(parts), new ArrayList<Vector>(byKey.values()));
+    }
+
+    @Test(groups = "unit")
+    public void testMaxPostings() throws Exception {
+        final long[] docs = {3, 1, 2};
+        final double[] weights = {.3, .1, .2};
+        final List<String> pairs = new ArrayList<String>();
+        final AllPairs.PairSink sink = new AllPairs.PairSink() {
+            public void pair(long first, long second, double product) {
+                pairs.add(first + "," + second);
+            }
+        };
+        assertFalse(AllPairs.pairs(docs, weights, 3, 2, sink));
+        assertTrue(pairs.isEmpty());
+        assertTrue(AllPairs.pairs(docs, weights, 3, 3, sink));
+        assertEquals("[1,2, 1,3, 2,3]", pairs.toString());
+    }
+
+    @Test(groups = "unit")
+    public void testSkippedTerms() throws Exception {
+        // Documents that only share a stopword.
+        final List<Vector> docs = new ArrayList<Vector>();
+        for (int i = 0; i < 10; ++i) {
+            final Vector v = new SequentialAccessSparseVector(DICT_SIZE);
+            v.set(0, .8);
+            v.set(i + 1, .6);
+            docs.add(new NamedVector(v, "doc" + i));
+        }
+        final List<List<Vector>> parts = new ArrayList<List<Vector>>();
+        parts.add(docs);
+        assertEquals(inMemory(docs), distributed(parts, 10, new Random(1)));
+        assertTrue(inMemory(docs).contains(":"));
+        assertEquals("", distributed(parts, 9, new Random(1)));
+    }
+
+    /**
+     * Above the limit of postings, the distributed clustering ignores the
+     * most common terms, which the in-memory clustering scores.
+     */
+    @Test(groups = "unit")
+    public void testDivergesAboveMaxPostings() throws Exception {
+        final List<Vector> docs = new ArrayList<Vector>();
+        for (Vector v : IndexClustererTest.documents(1, 500, 20)) {
+            final Vector common = v.clone();
+            common.set(DICT_SIZE - 1, 1.);
+            docs.add(new NamedVector(common.normalize(),
+                                     ((NamedVector) v).getName()));
+        }
+        final List<List<Vector>> parts = new ArrayList<List<Vector>>();
+        parts.add(docs);
+        final String expected = inMemory(docs);
+        assertEquals(expected, distributed(parts, docs.size(),
+                                           new Random(1)));
+        assertFalse(expected.equals(distributed(parts, docs.size() - 1,
+                                                new Random(1))));
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.List;
+
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.Vector;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class BlockPipelineTest {
+
+    static private final int DICT_SIZE = 500;
+
+    private String describe(BlockPipeline pipeline, List<Vector> docs) {
+        final StringBuilder sb = new StringBuilder();
+        for (Vector v : docs) pipeline.add(v);
+        IndexClustererTest.describe(pipeline.finish(), sb);
+        sb.append("rest:");
+        for (Vector v : pipeline.rest()) {
+            sb.append(' ').append(((NamedVector) v).getName());
+        }
+        return sb.toString();
+    }
+
+    @Test(groups = "unit")
+    public void testSameAsSingleClusterer() {
+        final List<Vector> docs = IndexClustererTest.documents(1, 5000, 30);
+        final TextClusterOptions options = new TextClusterOptions()
+            .blockSize(700);
+        final String expected = IndexClustererTest.describe(
+            new IndexClusterer(DICT_SIZE, options), docs);
+        assertTrue(expected.contains(":"));
+
+        for (int parallelism = 1; parallelism <= 4; ++parallelism) {
+            final BlockPipeline pipeline = new BlockPipeline(
+                DICT_SIZE, options.blockParallelism(parallelism));
+            assertEquals(expected, describe(pipeline, docs));
+        }
+    }
+
+    @Test(groups = "unit")
+    public void testEmpty() {
+        final BlockPipeline pipeline =
+            new BlockPipeline(DICT_SIZE, new TextClusterOptions());
+        assertEquals(0, pipeline.finish().size());
+        assertEquals(0, pipeline.rest().size());
+    }
+}
@@ -0,0 +1,81 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.mahout.math.Vector;
+import org.mozilla.grouper.model.BaseCluster;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class ClusterMergerTest {
+
+    static private final int DICT_SIZE = 500;
+
+    /** Clusters from small blocks, so that there is a lot to merge. */
+    static List<BaseCluster> stage1(List<Vector> docs) {
+        final BlockPipeline pipeline = new BlockPipeline(
+            DICT_SIZE, new TextClusterOptions().blockSize(200));
+        for (Vector v : docs) pipeline.add(v);
+        return pipeline.finish();
+    }
+
+    static int documents(List<BaseCluster> clusters) {
+        int n = 0;
+        for (BaseCluster c : clusters) n += 1 + c.size();
+        return n;
+    }
+
+    @Test(groups = "unit")
+    public void testMergeTree() {
+        final List<BaseCluster> stage1 =
+            stage1(IndexClustererTest.documents(1, 4000, 20));
+
+        // Groups of 50 medoids need several levels.
+        final List<BaseCluster> merged = new ClusterMerger(
+            new TextClusterOptions().blockSize(50)).merge(stage1);
+        assertTrue(merged.size() < stage1.size());
+        assertEquals(documents(stage1), documents(merged));
+
+        final StringBuilder expected = new StringBuilder();
+        IndexClustererTest.describe(merged, expected);
+        final StringBuilder actual = new StringBuilder();
+        IndexClustererTest.describe(new ClusterMerger(
+            new TextClusterOptions().blockSize(50).blockParallelism(3))
+            .merge(stage1), actual);
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test(groups = "unit")
+    public void testRescoring() {
+        final List<BaseCluster> stage1 =
+            stage1(IndexClustererTest.documents(2, 4000, 20));
+        final Map<Vector, Vector> stage1Medoids =
+            new IdentityHashMap<Vector, Vector>();
+        for (BaseCluster c : stage1) {
+            for (Vector v : c.related()) stage1Medoids.put(v, c.medoid());
+        }
+
+        final List<BaseCluster> merged =
+            new ClusterMerger(new TextClusterOptions().blockSize(50))
+                .merge(stage1);
+        int rescored = 0;
+        for (BaseCluster c : merged) {
+            for (int i = 0; i < c.size(); ++i) {
+                final Vector member = c.related().get(i);
+                final Vector before = stage1Medoids.get(member);
+                // Only members that moved to another medoid are rescored.
+                if (before == null || before == c.medoid()) continue;
+                assertEquals(c.medoid().dot(member),
+                             c.similarities().get(i), 1e-9);
+                ++rescored;
+            }
+        }
+        assertTrue(rescored > 0);
+    }
+}
@@ -0,0 +1,77 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Random;
+
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class CompressedPostingsTest {
+
+    static private final int DICT_SIZE = 1000;
+
+    /**
+     * Many documents with few terms, so that some gaps between the
+     * documents of a term need several bytes.
+     */
+    private static VectorStore vectors(int n) {
+        final Random random = new Random(n);
+        final VectorStore vectors = new VectorStore();
+        for (int i = 0; i < n; ++i) {
+            final Vector v = new SequentialAccessSparseVector(DICT_SIZE);
+            v.set(random.nextInt(10), random.nextDouble());
+            if (random.nextInt(1000) == 0) {
+                v.set(10 + random.nextInt(DICT_SIZE - 10), random.nextDouble());
+            }
+            if (i == 0 || i == n - 1) v.set(DICT_SIZE - 1, .5);
+            vectors.add(v);
+        }
+        return vectors;
+    }
+
+    @Test(groups = "unit")
+    public void testSameAsPostings() {
+        for (int n : new int[] {1, 300, 40000}) {
+            final VectorStore vectors = vectors(n);
+            final Postings postings =
+                new Postings(vectors.termCounts(), vectors.numTerms());
+            for (int doc = 0; doc < n; ++doc) {
+                for (int i = vectors.start(doc); i < vectors.end(doc); ++i) {
+                    postings.add(vectors.terms()[i], doc,
+                                 vectors.weights()[i]);
+                }
+            }
+            postings.seal();
+            final CompressedPostings compressed =
+                new CompressedPostings(vectors, null);
+            assertEquals(postings.size(), compressed.size());
+            assertTrue(compressed.bytes() < 4 * compressed.size());
+
+            final ScoreAccumulator expected = new ScoreAccumulator(n);
+            final ScoreAccumulator actual = new ScoreAccumulator(n);
+            for (int query : new int[] {-1, 0, n / 2, n - 1}) {
+                for (int term = 0; term < vectors.numTerms(); ++term) {
+                    int walked = 0;
+                    for (int p = postings.start(term);
+                         p < postings.end(term); ++p) {
+                        if (postings.docs()[p] <= query) continue;
+                        expected.add(postings.docs()[p],
+                                     postings.weights()[p]);
+                        ++walked;
+                    }
+                    assertEquals(walked,
+                                 compressed.walk(term, query, 1., actual));
+                }
+                for (int doc = 0; doc < n; ++doc) {
+                    assertEquals(expected.take(doc), actual.take(doc), 1e-4);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.mozilla.grouper.model.BaseCluster;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class DeduplicatorTest {
+
+    static private final int DICT_SIZE = 500;
+
+    private static Vector vector(String name, int[] terms, double[] weights) {
+        final Vector v = new SequentialAccessSparseVector(DICT_SIZE + 2);
+        for (int k = 0; k < terms.length; ++k) v.set(terms[k], weights[k]);
+        return new NamedVector(v, name);
+    }
+
+    @Test(groups = "unit")
+    public void testCollapse() {
+        final Deduplicator dedup = new Deduplicator();
+        final int[] terms = {3, 7, 11};
+        final Vector a = vector("a", terms, new double[] {.5, .5, .7071});
+        assertTrue(dedup.add(a));
+        assertFalse(dedup.add(vector("b", terms, new double[] {.5, .5, .7071})));
+        // Near identical: Equal after rounding.
+        final double[] close = {.5, .501, .7071};
+        assertFalse(dedup.add(vector("c", terms, close)));
+        assertTrue(dedup.add(vector("d", terms, new double[] {.5, .6, .6245})));
+        assertTrue(dedup.add(vector("e", new int[] {3, 7, 12},
+                                    new double[] {.5, .5, .7071})));
+        assertEquals(5, dedup.size());
+        assertEquals(3, dedup.representatives().size());
+        assertEquals(3, dedup.count(a));
+        assertEquals(1, dedup.count(dedup.representatives().get(1)));
+    }
+
+    @Test(groups = "unit")
+    public void testExpand() {
+        // Each document three times, some of them many times.
+        final List<Vector> docs = new ArrayList<Vector>();
+        int copies = 0;
+        for (Vector v : IndexClustererTest.documents(3, 600, 20)) {
+            final int times = v.getNumNondefaultElements() % 4 == 0 ? 10 : 3;
+            for (int i = 0; i < times; ++i) {
+                docs.add(new NamedVector(v, "copy" + copies++));
+            }
+        }
+        // ...and a group of duplicates that matches nothing else.
+        for (int i = 0; i < 5; ++i) {
+            docs.add(vector("lonely" + i, new int[] {DICT_SIZE, DICT_SIZE + 1},
+                            new double[] {.6, .8}));
+        }
+
+        final Deduplicator dedup = new Deduplicator();
+        for (Vector v : docs) dedup.add(v);
+        final IndexClusterer clusterer = new IndexClusterer(DICT_SIZE);
+        for (Vector v : dedup.representatives()) {
+            clusterer.fill(v, dedup.count(v));
+        }
+        final List<BaseCluster> clusters = dedup.expand(clusterer.flush());
+
+        // Every document is in at most one cluster, together with its copies.
+        final Map<Vector, BaseCluster> clusterOf =
+            new HashMap<Vector, BaseCluster>();
+        int clustered = 0;
+        for (BaseCluster c : clusters) {
+            assertEquals(null, clusterOf.put(c.medoid(), c));
+            for (Vector v : c.related()) assertEquals(null, clusterOf.put(v, c));
+            clustered += c.size() + 1;
+        }
+        for (Vector representative : dedup.representatives()) {
+            final BaseCluster c = clusterOf.get(representative);
+            for (Vector duplicate : dedup.duplicates(representative)) {
+                assertEquals(c, clusterOf.get(duplicate));
+            }
+        }
+        int rest = 0;
+        for (Vector v : clusterer.rest()) rest += dedup.count(v);
+        int tooShort = 0;
+        for (Vector v : docs) {
+            final int length = v.getNumNondefaultElements();
+            if (length < IndexClusterer.MIN_DOCUMENT_LENGTH) ++tooShort;
+        }
+        assertEquals(docs.size() - tooShort, clustered + rest);
+
+        final BaseCluster lonely = clusterOf.get(docs.get(docs.size() - 5));
+        assertEquals(4, lonely.size());
+        assertEquals(Double.valueOf(1.), lonely.similarities().get(0));
+    }
+}
@@ -0,0 +1,67 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.ArrayList;
+
+
+/**
+ * Worst case for stage 2 of the {@link IndexClusterer}: All documents of a
+ * block collapse into one cluster, through a chain where each document
+ * follows the next one. Compares splicing by copying ArrayLists (the
+ * previous implementation) with {@link Followers}.
+ *
+ * Not part of the unit tests. Run with the test classpath:
+ *   java org.mozilla.grouper.jobs.textcluster.FollowersBenchmark [DOCUMENTS]
+ */
+public class FollowersBenchmark {
+
+    public static void main(String[] args) {
+        final int maxN = args.length > 0 ? Integer.parseInt(args[0]) : 80000;
+        for (int n = maxN / 4; n <= maxN; n *= 2) {
+            for (int round = 0; round < 3; ++round) {
+                long ts = System.nanoTime();
+                final int copied = withArrayLists(n);
+                final long arrayListMs = (System.nanoTime() - ts) / 1000000;
+
+                ts = System.nanoTime();
+                final int spliced = withFollowers(n);
+                final long followersMs = (System.nanoTime() - ts) / 1000000;
+
+                System.out.format(
+                    "n=%d round %d: ArrayList %6d ms, Followers %6d ms " +
+                    "(cluster sizes %d / %d)%n",
+                    n, round, arrayListMs, followersMs, copied, spliced);
+            }
+        }
+    }
+
+    static private int withArrayLists(int n) {
+        @SuppressWarnings("unchecked")
+        final ArrayList<Integer>[] followers = new ArrayList[n];
+        for (int idx = 0; idx < n - 1; ++idx) {
+            final int target = idx + 1;
+            if (followers[target] == null) {
+                followers[target] = new ArrayList<Integer>();
+            }
+            followers[target].add(idx);
+            if (followers[idx] != null) {
+                followers[target].addAll(followers[idx]);
+            }
+            followers[idx] = null;
+        }
+        return followers[n - 1].size();
+    }
+
+    static private int withFollowers(int n) {
+        final Followers followers = new Followers(n);
+        for (int idx = 0; idx < n - 1; ++idx) {
+            followers.follow(idx + 1, idx);
+        }
+        int size = 0;
+        for (int f = followers.first(n - 1);
+             f != Followers.NONE;
+             f = followers.next(f)) {
+            ++size;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,122 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.mozilla.grouper.model.BaseCluster;
+
+
+/**
+ * Walks the documents of a term as postings and as a dense column, for
+ * terms of different document frequencies, to find where the column is
+ * cheaper (see {@link HeadColumns#DENSE_COST}). Then clusters a block with
+ * common terms with and without head columns.
+ *
+ * Not part of the unit tests. Run with the test classpath:
+ *   java org.mozilla.grouper.jobs.textcluster.HeadColumnsBenchmark [DOCS]
+ */
+public class HeadColumnsBenchmark {
+
+    public static void main(String[] args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : 40000;
+        final Random random = new Random(42);
+        final ScoreAccumulator similars = new ScoreAccumulator(n);
+        final double[] frequencies = {.01, .05, .1, .15, .2, .3, .5};
+        for (int round = 0; round < 2; ++round) {
+            for (double frequency : frequencies) {
+                final int[] docs = new int[n];
+                final double[] weights = new double[n];
+                final double[] column = new double[n];
+                int df = 0;
+                for (int doc = 0; doc < n; ++doc) {
+                    if (random.nextDouble() >= frequency) continue;
+                    docs[df] = doc;
+                    weights[df++] = column[doc] = random.nextDouble();
+                }
+
+                // Each document with the term is a query, as in stage 1.
+                long ts = System.nanoTime();
+                long postings = 0;
+                for (int q = 0; q < df; ++q) {
+                    for (int p = df - 1; p >= 0 && docs[p] > docs[q]; --p) {
+                        similars.add(docs[p], weights[q] * weights[p]);
+                        ++postings;
+                    }
+                    drain(similars);
+                }
+                final long sparseNs = System.nanoTime() - ts;
+
+                ts = System.nanoTime();
+                long entries = 0;
+                for (int q = 0; q < df; ++q) {
+                    similars.addColumn(column, docs[q] + 1, n, weights[q]);
+                    entries += n - docs[q] - 1;
+                    drain(similars);
+                }
+                final long denseNs = System.nanoTime() - ts;
+                if (round == 0) continue;
+                System.out.format(
+                    "df %.2f: postings %5d ms, column %5d ms, " +
+                    "column entry / posting: %.3f%n", frequency,
+                    sparseNs / 1000000, denseNs / 1000000,
+                    ((double) denseNs / entries)
+                    / ((double) sparseNs / postings));
+            }
+        }
+
+        final List<Vector> docs = documents(n, random);
+        for (int round = 0; round < 2; ++round) {
+            for (boolean denseHead : new boolean[] {false, true}) {
+                final long ts = System.nanoTime();
+                final IndexClusterer clusterer = new IndexClusterer(
+                    DICT_SIZE, new TextClusterOptions().denseHead(denseHead)
+                                                       .blockSize(n + 1));
+                for (Vector v : docs) clusterer.add(v);
+                final List<BaseCluster> clusters = clusterer.clusters();
+                if (round == 0) continue;
+                System.out.format("dense head %-5s: %6d ms, %d clusters%n",
+                                  denseHead, (System.nanoTime() - ts) / 1000000,
+                                  clusters.size());
+            }
+        }
+    }
+
+    /** Resets the accumulator, like stage 1 does (no score is high enough). */
+    static private void drain(ScoreAccumulator similars) {
+        similars.drainTo(NO_MATCHES, Double.MAX_VALUE);
+    }
+
+    static private final Matches NO_MATCHES = new Matches(0, 1);
+
+    static private final int DICT_SIZE = 20000;
+
+    /**
+     * Documents with a few very common terms (the head), and topic terms.
+     */
+    static private List<Vector> documents(int n, Random random) {
+        final double[] headFrequencies = new double[40];
+        for (int k = 0; k < headFrequencies.length; ++k) {
+            headFrequencies[k] = .5 / (k + 1);
+        }
+        final List<Vector> docs = new ArrayList<Vector>(n);
+        for (int i = 0; i < n; ++i) {
+            final Vector v = new SequentialAccessSparseVector(DICT_SIZE);
+            for (int k = 0; k < headFrequencies.length; ++k) {
+                if (random.nextDouble() < headFrequencies[k]) {
+                    v.set(k, .2 * random.nextDouble());
+                }
+            }
+            final int topic = 100 + random.nextInt(400) * 40;
+            final int length = 3 + random.nextInt(12);
+            for (int k = 0; k < length; ++k) {
+                v.set(topic + random.nextInt(40), random.nextDouble());
+            }
+            docs.add(new NamedVector(v.normalize(), "doc" + i));
+        }
+        return docs;
+    }
+}
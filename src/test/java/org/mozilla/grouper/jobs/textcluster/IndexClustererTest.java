@@ -0,0 +1,285 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.mozilla.grouper.model.BaseCluster;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class IndexClustererTest {
+
+    static private final int DICT_SIZE = 500;
+
+    /**
+     * Random unit vectors. Most terms are drawn from a few "topics" so that
+     * there is something to cluster.
+     */
+    static List<Vector> documents(long seed, int n, int topics) {
+        final Random random = new Random(seed);
+        final int[][] topicTerms = new int[topics][8];
+        for (int[] terms : topicTerms) {
+            for (int k = 0; k < terms.length; ++k) {
+                terms[k] = random.nextInt(DICT_SIZE);
+            }
+        }
+        final List<Vector> docs = new ArrayList<Vector>(n);
+        for (int i = 0; i < n; ++i) {
+            final int[] terms = topicTerms[random.nextInt(topics)];
+            final Vector v = new SequentialAccessSparseVector(DICT_SIZE);
+            final int length = 1 + random.nextInt(12);
+            for (int k = 0; k < length; ++k) {
+                final int term = random.nextDouble() < .6 ?
+                    terms[random.nextInt(terms.length)] :
+                    random.nextInt(DICT_SIZE);
+                v.set(term, v.get(term) + random.nextDouble());
+            }
+            final double norm = Math.sqrt(v.getLengthSquared());
+            final Iterator<Element> it = v.iterateNonZero();
+            while (it.hasNext()) {
+                final Element e = it.next();
+                e.set(e.get() / norm);
+            }
+            docs.add(new NamedVector(v, "doc" + i));
+        }
+        return docs;
+    }
+
+    /** A textual representation that covers all details of a clustering. */
+    static String describe(IndexClusterer clusterer, List<Vector> docs) {
+        final StringBuilder sb = new StringBuilder();
+        for (Vector v : docs) {
+            final List<BaseCluster> clusters = clusterer.add(v);
+            if (clusters != null) describe(clusters, sb);
+        }
+        describe(clusterer.clusters(), sb);
+        sb.append("rest:");
+        for (Vector v : clusterer.rest()) {
+            sb.append(' ').append(((NamedVector) v).getName());
+        }
+        return sb.toString();
+    }
+
+    static void describe(List<BaseCluster> clusters, StringBuilder sb) {
+        for (BaseCluster c : clusters) {
+            sb.append(((NamedVector) c.medoid()).getName()).append(':');
+            for (int i = 0; i < c.size(); ++i) {
+                sb.append(' ')
+                  .append(((NamedVector) c.related().get(i)).getName())
+                  .append('=')
+                  .append(c.similarities().get(i));
+            }
+            sb.append('\n');
+        }
+    }
+
+    /** The lines of a description without similarities, sorted. */
+    static List<String> members(String description) {
+        final List<String> lines = Arrays.asList(
+            description.replaceAll("=\\S*", "").split("\n"));
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private void checkSameAsSequential(TextClusterOptions options) {
+        for (long seed = 1; seed <= 3; ++seed) {
+            final List<Vector> docs = documents(seed, 2000, 20);
+            final String expected =
+                describe(new IndexClusterer(DICT_SIZE), docs);
+            final String actual =
+                describe(new IndexClusterer(DICT_SIZE, options), docs);
+            assertTrue(expected.contains(":"));
+            assertEquals(expected, actual);
+        }
+    }
+
+    public void testParallelScoring() {
+        checkSameAsSequential(new TextClusterOptions().threads(4));
+    }
+
+    @Test(groups = "unit")
+    public void testPruning() {
+        checkSameAsSequential(new TextClusterOptions().pruning(true));
+        checkSameAsSequential(new TextClusterOptions().pruning(true).threads(4));
+    }
+
+    @Test(groups = "unit")
+    public void testDenseHead() {
+        // Half of the documents get a common term, which is in enough of
+        // them to be a head term (see HeadColumns#cutover).
+        for (long seed = 1; seed <= 3; ++seed) {
+            final List<Vector> docs = new ArrayList<Vector>();
+            for (Vector v : documents(seed, 2000, 20)) {
+                final Vector common = v.clone();
+                if (docs.size() % 2 == 0) common.set(DICT_SIZE - 1, .5);
+                docs.add(new NamedVector(common.normalize(),
+                                         ((NamedVector) v).getName()));
+            }
+            final TextClusterOptions postings =
+                new TextClusterOptions().denseHead(false);
+            final String expected =
+                describe(new IndexClusterer(DICT_SIZE, postings), docs);
+            assertTrue(expected.contains(":"));
+            assertEquals(expected, describe(new IndexClusterer(
+                DICT_SIZE, new TextClusterOptions().denseHead(true)), docs));
+            assertEquals(expected, describe(new IndexClusterer(
+                DICT_SIZE, new TextClusterOptions().denseHead(true)
+                                                   .threads(4)), docs));
+        }
+    }
+
+    @Test(groups = "unit")
+    public void testPruningWithNegativeWeights() {
+        // Blocks that cannot be pruned fall back to exact postings, without
+        // head columns or compression (that blockBytes() did not plan for).
+        final List<Vector> docs = new ArrayList<Vector>();
+        for (Vector v : documents(1, 2000, 20)) {
+            final Vector common = v.clone();
+            if (docs.size() % 2 == 0) common.set(DICT_SIZE - 1, .5);
+            if (docs.size() % 7 == 0) common.set(DICT_SIZE - 2, -.1);
+            docs.add(new NamedVector(common.normalize(),
+                                     ((NamedVector) v).getName()));
+        }
+        final String expected = describe(new IndexClusterer(
+            DICT_SIZE, new TextClusterOptions().denseHead(false)), docs);
+        assertTrue(expected.contains(":"));
+        assertEquals(expected, describe(new IndexClusterer(
+            DICT_SIZE, new TextClusterOptions().pruning(true)
+                                               .denseHead(true)
+                                               .compressedPostings(true)),
+            docs));
+    }
+
+    @Test(groups = "unit")
+    public void testCompressedPostings() {
+        // Quantized weights change similarities a little (and so the order
+        // of clusters), but not which documents are clustered together.
+        final TextClusterOptions compressed =
+            new TextClusterOptions().compressedPostings(true);
+        for (long seed = 1; seed <= 3; ++seed) {
+            final List<Vector> docs = documents(seed, 2000, 20);
+            final String expected =
+                describe(new IndexClusterer(DICT_SIZE), docs);
+            final String actual =
+                describe(new IndexClusterer(DICT_SIZE, compressed), docs);
+            assertTrue(expected.contains(":"));
+            assertEquals(members(expected), members(actual));
+        }
+    }
+
+    @Test(groups = "unit")
+    public void testMemoryBudget() {
+        final List<Vector> docs = documents(1, 2000, 20);
+        final long budget = 64 * 1024;
+        final IndexClusterer clusterer = new IndexClusterer(
+            DICT_SIZE, new TextClusterOptions().memoryBudget(budget));
+        int blocks = 0;
+        int inBlock = 0;
+        for (Vector v : docs) {
+            final long before = clusterer.blockBytes();
+            ++inBlock;
+            if (clusterer.add(v) == null) continue;
+            // The block is closed by the first document that reaches it.
+            assertTrue(before < budget);
+            assertTrue(inBlock > 1);
+            ++blocks;
+            inBlock = 0;
+            assertEquals(0, clusterer.blockBytes());
+        }
+        assertTrue(blocks > 1);
+
+        // Without a budget, all of these documents fit into one block.
+        final IndexClusterer unlimited = new IndexClusterer(DICT_SIZE);
+        for (Vector v : docs) assertEquals(null, unlimited.add(v));
+    }
+
+    @Test(groups = "unit")
+    public void testMemoryOfDenseHead() {
+        // Every document has the common term, which becomes a head term
+        // once the block is large enough.
+        final List<Vector> docs = new ArrayList<Vector>();
+        for (Vector v : documents(1, 1000, 20)) {
+            final Vector common = v.clone();
+            common.set(DICT_SIZE - 1, .5);
+            docs.add(new NamedVector(common.normalize(),
+                                     ((NamedVector) v).getName()));
+        }
+        final IndexClusterer postings = new IndexClusterer(
+            DICT_SIZE, new TextClusterOptions().denseHead(false));
+        final IndexClusterer columns = new IndexClusterer(
+            DICT_SIZE, new TextClusterOptions().denseHead(true));
+        for (Vector v : docs) {
+            postings.fill(v);
+            columns.fill(v);
+        }
+        assertTrue(columns.blockBytes() - postings.blockBytes()
+                   >= HeadColumns.BYTES_PER_DOCUMENT * docs.size());
+    }
+
+    @Test(groups = "unit")
+    public void testSparseDictionary() {
+        // Spreading the terms over a huge dictionary changes nothing, as
+        // blocks only allocate for the terms they contain.
+        final int stride = 100000;
+        final List<Vector> docs = documents(2, 2000, 20);
+        final List<Vector> spread = new ArrayList<Vector>(docs.size());
+        for (Vector v : docs) {
+            final Vector s = new SequentialAccessSparseVector(DICT_SIZE * stride);
+            final Iterator<Element> it = v.iterateNonZero();
+            while (it.hasNext()) {
+                final Element e = it.next();
+                s.set(e.index() * stride, e.get());
+            }
+            spread.add(new NamedVector(s, ((NamedVector) v).getName()));
+        }
+        assertEquals(describe(new IndexClusterer(DICT_SIZE), docs),
+                     describe(new IndexClusterer(DICT_SIZE * stride), spread));
+    }
+
+    @Test(groups = "unit")
+    public void testMinHash() {
+        // Groups of duplicates on separate terms: Duplicates always share
+        // their buckets, so LSH finds the same pairs as the exact index.
+        final Random random = new Random(7);
+        final List<Vector> docs = new ArrayList<Vector>();
+        for (int i = 0; i < 600; ++i) {
+            final int group = random.nextInt(30);
+            final Vector v = new SequentialAccessSparseVector(DICT_SIZE);
+            for (int k = 0; k < 5; ++k) {
+                v.set(group * 10 + k, 1 + k);
+            }
+            docs.add(new NamedVector(v.normalize(), "doc" + i));
+        }
+        final TextClusterOptions minHash = new TextClusterOptions()
+            .engine(TextClusterOptions.Engine.MINHASH);
+        final String expected = describe(new IndexClusterer(DICT_SIZE), docs);
+        assertTrue(expected.contains(":"));
+        final IndexClusterer lsh = new IndexClusterer(DICT_SIZE, minHash);
+        assertEquals(expected, describe(lsh, docs));
+        // Candidates are not postings.
+        assertEquals(0, lsh.scannedPostings());
+        assertEquals(0, lsh.skippedPostings());
+
+        // Results do not depend on the number of threads.
+        final TextClusterOptions parallel = new TextClusterOptions()
+            .engine(TextClusterOptions.Engine.MINHASH).threads(4);
+        for (long seed = 1; seed <= 3; ++seed) {
+            final List<Vector> topics = documents(seed, 2000, 20);
+            assertEquals(
+                describe(new IndexClusterer(DICT_SIZE, minHash), topics),
+                describe(new IndexClusterer(DICT_SIZE, parallel), topics));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class LshIndexTest {
+
+    static private final int DICT_SIZE = 100;
+
+    private static Vector vector(double... weights) {
+        final Vector v = new SequentialAccessSparseVector(DICT_SIZE);
+        for (int term = 0; term < weights.length; ++term) {
+            if (weights[term] != 0) v.set(term, weights[term]);
+        }
+        return v;
+    }
+
+    /**
+     * Documents without a usable term must not inherit the buckets of the
+     * document before them.
+     */
+    @Test(groups = "unit")
+    public void testNoSignature() {
+        final VectorStore vectors = new VectorStore();
+        vectors.add(vector(.5, .5));
+        vectors.add(vector());
+        vectors.add(vector(Double.NaN));
+        vectors.add(vector());
+        vectors.add(vector(.5, .5));
+        final LshIndex lsh = new LshIndex(vectors, 4, 2);
+
+        final ScoreAccumulator similars =
+            new ScoreAccumulator(vectors.size(), vectors.numTerms());
+        assertEquals(4, lsh.candidates(0, similars));
+        assertEquals(1, similars.numTouched());
+        assertEquals(4, similars.touched(0));
+        assertEquals(4., similars.take(4));
+        similars.endQuery();
+        for (int doc = 1; doc <= 3; ++doc) {
+            assertEquals(0, lsh.candidates(doc, similars));
+            assertEquals(0, similars.numTouched());
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.mozilla.grouper.model.BaseCluster;
+
+
+/**
+ * Compares the MinHash/LSH engine with the exact index: The share of
+ * similar pairs that LSH finds (recall), the number of candidates it scores,
+ * and the time and result of clustering with either engine.
+ *
+ * Not part of the unit tests. Run with the test classpath:
+ *   java org.mozilla.grouper.jobs.textcluster.LshRecallBenchmark \
+ *        [DOCUMENTS [BANDS [ROWS]]]
+ */
+public class LshRecallBenchmark {
+
+    public static void main(String[] args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : 40000;
+        final TextClusterOptions lsh = new TextClusterOptions()
+            .engine(TextClusterOptions.Engine.MINHASH);
+        if (args.length > 1) lsh.lshBands(Integer.parseInt(args[1]));
+        if (args.length > 2) lsh.lshRows(Integer.parseInt(args[2]));
+        final int dictSize = 20000;
+        final List<Vector> docs = documents(n, dictSize);
+
+        final VectorStore store = new VectorStore();
+        for (Vector v : docs) store.add(v);
+        final Postings index = new Postings(store.termCounts(),
+                                            store.numTerms());
+        final int[] terms = store.terms();
+        final double[] weights = store.weights();
+        for (int doc = 0; doc < n; ++doc) {
+            for (int i = store.start(doc); i < store.end(doc); ++i) {
+                index.add(terms[i], doc, weights[i]);
+            }
+        }
+        index.seal();
+
+        long ts = System.nanoTime();
+        final LshIndex buckets =
+            new LshIndex(store, lsh.lshBands(), lsh.lshRows());
+        final long bucketsMs = (System.nanoTime() - ts) / 1000000;
+
+        // Exact pairs (above the thresholds), and how many LSH finds.
+        final double[] thresholds = {
+            IndexClusterer.SIMILARITY_THRESHOLD,
+            IndexClusterer.REASSIGN_THRESHOLD,
+            .5
+        };
+        final long[] pairs = new long[thresholds.length];
+        final long[] found = new long[thresholds.length];
+        long candidates = 0;
+        final ScoreAccumulator exact = new ScoreAccumulator(n);
+        final ScoreAccumulator approximate = new ScoreAccumulator(n);
+        final boolean[] isCandidate = new boolean[n];
+        for (int doc = 0; doc < n; ++doc) {
+            buckets.candidates(doc, approximate);
+            for (int i = 0; i < approximate.numTouched(); ++i) {
+                final int match = approximate.touched(i);
+                if (approximate.take(match) == 0) continue;
+                isCandidate[match] = true;
+                ++candidates;
+            }
+
+            for (int i = store.start(doc); i < store.end(doc); ++i) {
+                for (int p = index.start(terms[i]); p < index.end(terms[i]);
+                     ++p) {
+                    final int match = index.docs()[p];
+                    if (match > doc) {
+                        exact.add(match, weights[i] * index.weights()[p]);
+                    }
+                }
+            }
+            for (int i = 0; i < exact.numTouched(); ++i) {
+                final int match = exact.touched(i);
+                final double score = exact.take(match);
+                for (int t = 0; t < thresholds.length; ++t) {
+                    if (score < thresholds[t]) continue;
+                    ++pairs[t];
+                    if (isCandidate[match]) ++found[t];
+                }
+            }
+            exact.endQuery();
+
+            for (int i = 0; i < approximate.numTouched(); ++i) {
+                isCandidate[approximate.touched(i)] = false;
+            }
+            approximate.endQuery();
+        }
+
+        System.out.format("%d documents, %d bands of %d rows, " +
+                          "buckets built in %d ms%n",
+                          n, lsh.lshBands(), lsh.lshRows(), bucketsMs);
+        System.out.format("candidates: %d (%.2f per document)%n",
+                          candidates, (double) candidates / n);
+        for (int t = 0; t < thresholds.length; ++t) {
+            System.out.format("recall at similarity >= %.2f: %.3f " +
+                              "(%d of %d pairs)%n", thresholds[t],
+                              pairs[t] == 0 ? 1. : (double) found[t] / pairs[t],
+                              found[t], pairs[t]);
+        }
+
+        final TextClusterOptions exactOptions =
+            new TextClusterOptions().blockSize(n);
+        lsh.blockSize(n);
+        for (TextClusterOptions options : new TextClusterOptions[] {
+                 exactOptions, lsh }) {
+            ts = System.nanoTime();
+            final IndexClusterer clusterer =
+                new IndexClusterer(dictSize, options);
+            final List<BaseCluster> clusters = new ArrayList<BaseCluster>();
+            for (Vector v : docs) {
+                final List<BaseCluster> block = clusterer.add(v);
+                if (block != null) clusters.addAll(block);
+            }
+            clusters.addAll(clusterer.clusters());
+            int clustered = 0;
+            for (BaseCluster c : clusters) clustered += c.size() + 1;
+            System.out.format(
+                "%-7s engine: %6d ms, %d clusters, %d documents clustered%n",
+                options.engine(), (System.nanoTime() - ts) / 1000000,
+                clusters.size(), clustered);
+        }
+    }
+
+    /**
+     * Documents about a few hundred topics, with a share of frequent terms
+     * (like in feedback collections). Weighted by tf-idf.
+     */
+    static private List<Vector> documents(int n, int dictSize) {
+        final Random random = new Random(42);
+        final int topics = 400;
+        final int headSize = 300;
+        final int[][] topicTerms = new int[topics][15];
+        for (int[] topic : topicTerms) {
+            for (int k = 0; k < topic.length; ++k) {
+                topic[k] = headSize + random.nextInt(dictSize - headSize);
+            }
+        }
+        final List<Vector> counts = new ArrayList<Vector>(n);
+        final int[] df = new int[dictSize];
+        for (int i = 0; i < n; ++i) {
+            final int[] topic = topicTerms[random.nextInt(topics)];
+            final Vector v = new SequentialAccessSparseVector(dictSize);
+            final int length = 3 + random.nextInt(20);
+            for (int k = 0; k < length; ++k) {
+                final double r = random.nextDouble();
+                final int term = r < .5 ? topic[random.nextInt(topic.length)]
+                    : r < .75 ? random.nextInt(headSize)
+                    : random.nextInt(dictSize);
+                if (v.get(term) == 0) ++df[term];
+                v.set(term, v.get(term) + 1);
+            }
+            counts.add(v);
+        }
+        final List<Vector> docs = new ArrayList<Vector>(n);
+        for (int i = 0; i < n; ++i) {
+            final Vector v = counts.get(i);
+            final Iterator<Element> it = v.iterateNonZero();
+            while (it.hasNext()) {
+                final Element e = it.next();
+                final double idf = Math.log((double) n / df[e.index()]);
+                e.set(Math.sqrt(e.get()) * idf);
+            }
+            docs.add(new NamedVector(v.normalize(), "doc" + i));
+        }
+        return docs;
+    }
+}
@@ -0,0 +1,51 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+
+import java.util.List;
+
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class MedoidIndexTest {
+
+    @Test(groups = "unit")
+    public void testNearestIsMostSimilar() {
+        final List<Vector> medoids = IndexClustererTest.documents(1, 300, 20);
+        final List<Vector> docs = IndexClustererTest.documents(2, 300, 20);
+        final MedoidIndex index = new MedoidIndex(medoids);
+        assertEquals(medoids.size(), index.size());
+
+        for (Vector doc : docs) {
+            int best = -1;
+            double bestScore = 0;
+            for (int i = 0; i < medoids.size(); ++i) {
+                final double score = medoids.get(i).dot(doc);
+                if (score > 0 && (best == -1 || score > bestScore)) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+            final MedoidIndex.Assignment nearest = index.nearest(doc);
+            if (best == -1) {
+                assertNull(nearest);
+                continue;
+            }
+            assertEquals(bestScore, nearest.similarity(), 1e-9);
+            assertEquals(bestScore, medoids.get(nearest.index()).dot(doc), 1e-9);
+        }
+    }
+
+    @Test(groups = "unit")
+    public void testUnknownTerms() {
+        final MedoidIndex index =
+            new MedoidIndex(IndexClustererTest.documents(1, 10, 2));
+        final Vector doc = new SequentialAccessSparseVector(100000);
+        doc.set(99999, 1.);
+        assertNull(index.nearest(doc));
+    }
+}
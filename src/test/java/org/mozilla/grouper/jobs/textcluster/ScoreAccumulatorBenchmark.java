@@ -0,0 +1,131 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * Compares stage-1 score accumulation using a boxed HashMap (the previous
+ * implementation) with the dense {@link ScoreAccumulator}.
+ *
+ * Not part of the unit tests. Run with the test classpath:
+ *   java org.mozilla.grouper.jobs.textcluster.ScoreAccumulatorBenchmark \
+ *        [DOCUMENTS [TERMS [DOCUMENT_LENGTH]]]
+ */
+public class ScoreAccumulatorBenchmark {
+
+    public static void main(String[] args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : 40000;
+        final int dictSize = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        final int length = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        // A third of all terms come from a small set of frequent terms.
+        final Random random = new Random(42);
+        final int headSize = Math.min(dictSize, 500);
+        final int[][] terms = new int[n][length];
+        final double[][] weights = new double[n][length];
+        final int[] termCounts = new int[dictSize];
+        for (int doc = 0; doc < n; ++doc) {
+            for (int k = 0; k < length; ++k) {
+                final int term = random.nextInt(3) == 0 ?
+                    random.nextInt(headSize) : random.nextInt(dictSize);
+                terms[doc][k] = term;
+                weights[doc][k] = random.nextDouble();
+                ++termCounts[term];
+            }
+            normalize(weights[doc]);
+        }
+        final Postings index = new Postings(termCounts, dictSize);
+        for (int doc = 0; doc < n; ++doc) {
+            for (int k = 0; k < length; ++k) {
+                index.add(terms[doc][k], doc, weights[doc][k]);
+            }
+        }
+        index.seal();
+        System.out.format("%d documents, %d terms, %d postings%n",
+                          n, dictSize, index.size());
+
+        for (int round = 0; round < 3; ++round) {
+            long ts = System.nanoTime();
+            final double hashed = withHashMap(index, terms, weights);
+            final long hashMapMs = (System.nanoTime() - ts) / 1000000;
+
+            ts = System.nanoTime();
+            final double dense = withAccumulator(index, terms, weights);
+            final long denseMs = (System.nanoTime() - ts) / 1000000;
+
+            System.out.format(
+                "round %d: HashMap %6d ms, dense %6d ms (checksums %.6f / %.6f)%n",
+                round, hashMapMs, denseMs, hashed, dense);
+        }
+    }
+
+    static private void normalize(double[] weights) {
+        double sum = 0;
+        for (double w : weights) sum += w * w;
+        final double norm = Math.sqrt(sum);
+        for (int k = 0; k < weights.length; ++k) weights[k] /= norm;
+    }
+
+    static private double withHashMap(Postings index,
+                                      int[][] terms,
+                                      double[][] weights) {
+        final int[] docs = index.docs();
+        final double[] postingWeights = index.weights();
+        final Map<Integer, Double> similars = new HashMap<Integer, Double>();
+        double checksum = 0;
+        for (int doc = 0; doc < terms.length; ++doc) {
+            for (int k = 0; k < terms[doc].length; ++k) {
+                final int term = terms[doc][k];
+                final int start = index.start(term);
+                for (int p = index.end(term); p-- > start;) {
+                    final int match = docs[p];
+                    if (match <= doc) break;
+                    final double termScore = weights[doc][k] * postingWeights[p];
+                    final Double pairScore = similars.get(match);
+                    if (pairScore == null) similars.put(match, termScore);
+                    else similars.put(match, pairScore.doubleValue() + termScore);
+                }
+            }
+            for (Map.Entry<Integer, Double> entry : similars.entrySet()) {
+                final double score = entry.getValue().doubleValue();
+                if (score >= IndexClusterer.SIMILARITY_THRESHOLD) checksum += score;
+            }
+            similars.clear();
+        }
+        return checksum;
+    }
+
+    static private double withAccumulator(Postings index,
+                                          int[][] terms,
+                                          double[][] weights) {
+        final int[] docs = index.docs();
+        final double[] postingWeights = index.weights();
+        final ScoreAccumulator similars = new ScoreAccumulator(terms.length);
+        final int chunkSize = 500;
+        double checksum = 0;
+        for (int from = 0; from < terms.length; from += chunkSize) {
+            final int to = Math.min(terms.length, from + chunkSize);
+            final Matches matches = new Matches(from, to);
+            for (int doc = from; doc < to; ++doc) {
+                for (int k = 0; k < terms[doc].length; ++k) {
+                    final int term = terms[doc][k];
+                    final int start = index.start(term);
+                    for (int p = index.end(term); p-- > start;) {
+                        final int match = docs[p];
+                        if (match <= doc) break;
+                        similars.add(match, weights[doc][k] * postingWeights[p]);
+                    }
+                }
+                similars.drainTo(matches, IndexClusterer.SIMILARITY_THRESHOLD);
+                matches.endQuery();
+            }
+            final double[] scores = matches.scores();
+            for (int i = matches.start(from); i < matches.end(to - 1); ++i) {
+                checksum += scores[i];
+            }
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,81 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.testng.annotations.Test;
+
+
+@Test(groups = "unit")
+public class SparsifierTest {
+
+    static private final int DICT_SIZE = 500;
+    static private final double DELTA = 1e-9;
+
+    /** Weights 1 (term 10), 2 (term 20), ... 5 (term 50), unit length. */
+    private static Vector vector() {
+        final Vector v = new SequentialAccessSparseVector(DICT_SIZE);
+        for (int k = 1; k <= 5; ++k) v.set(10 * k, k / Math.sqrt(55));
+        return new NamedVector(v, "doc");
+    }
+
+    @Test(groups = "unit")
+    public void testTopTerms() {
+        final Vector sparse = new Sparsifier(2, 1.).apply(vector());
+        assertEquals(2, sparse.getNumNondefaultElements());
+        assertEquals("doc", ((NamedVector) sparse).getName());
+        assertEquals(0., sparse.get(30), DELTA);
+        // Same direction and length as the kept weights (4 and 5).
+        assertEquals(4 / Math.sqrt(41), sparse.get(40), DELTA);
+        assertEquals(5 / Math.sqrt(41), sparse.get(50), DELTA);
+        assertEquals(1., sparse.getLengthSquared(), DELTA);
+    }
+
+    @Test(groups = "unit")
+    public void testL2Mass() {
+        // 25 + 16 = 41 of 55 is less than 80%, 25 + 16 + 9 = 50 is more.
+        final Vector sparse = new Sparsifier(0, .8).apply(vector());
+        assertEquals(3, sparse.getNumNondefaultElements());
+        assertTrue(sparse.get(30) > 0);
+        assertEquals(1., sparse.getLengthSquared(), DELTA);
+
+        // The stricter of both limits applies.
+        assertEquals(2, new Sparsifier(2, .8).apply(vector())
+                            .getNumNondefaultElements());
+    }
+
+    @Test(groups = "unit")
+    public void testUnchanged() {
+        final Sparsifier sparsifier = new Sparsifier(5, 1.);
+        final Vector v = vector();
+        assertSame(v, sparsifier.apply(v));
+        assertTrue(sparsifier.report().startsWith("Sparsified 0 of 1"));
+        assertNull(Sparsifier.create(new TextClusterOptions()));
+    }
+
+    @Test(groups = "unit")
+    public void testDense() {
+        // Dense vectors report all of their elements as non-default.
+        final Vector dense = new DenseVector(DICT_SIZE);
+        for (int k = 1; k <= 5; ++k) dense.set(10 * k, k / Math.sqrt(55));
+        final Vector sparse = new Sparsifier(2, 1.).apply(dense);
+        assertEquals(2, sparse.getNumNondefaultElements());
+        assertEquals(4 / Math.sqrt(41), sparse.get(40), DELTA);
+        assertEquals(5 / Math.sqrt(41), sparse.get(50), DELTA);
+    }
+
+    @Test(groups = "unit")
+    public void testEmpty() {
+        final Sparsifier sparsifier = new Sparsifier(2, .8);
+        final Vector empty = new DenseVector(DICT_SIZE);
+        assertSame(empty, sparsifier.apply(empty));
+        assertTrue(sparsifier.report().startsWith("Sparsified 0 of 1"));
+    }
+
+}
@@ -0,0 +1,121 @@
+package org.mozilla.grouper.jobs.textcluster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.mozilla.grouper.model.BaseCluster;
+
+
+/**
+ * Clusters documents of very different lengths with and without
+ * sparsification, to pick the number of terms (or L2 mass) to keep: Index
+ * size, time, and how many documents end up in the same cluster as without
+ * sparsification.
+ *
+ * Not part of the unit tests. Run with the test classpath:
+ *   java org.mozilla.grouper.jobs.textcluster.SparsifyBenchmark [DOCUMENTS]
+ */
+public class SparsifyBenchmark {
+
+    public static void main(String[] args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final int dictSize = 20000;
+        final List<Vector> docs = documents(n, dictSize);
+
+        final Map<String, String> reference = medoids(docs, dictSize, null);
+        final int[] topTerms = {0, 100, 50, 20, 10};
+        final double[] masses = {.95, .9, .8};
+        for (int t = 0; t < topTerms.length + masses.length; ++t) {
+            final Sparsifier sparsifier = t < topTerms.length
+                ? new Sparsifier(topTerms[t], 1.)
+                : new Sparsifier(0, masses[t - topTerms.length]);
+            final long ts = System.nanoTime();
+            final Map<String, String> medoids =
+                medoids(docs, dictSize, sparsifier);
+            final long ms = (System.nanoTime() - ts) / 1000000;
+            int same = 0;
+            for (Map.Entry<String, String> e : reference.entrySet()) {
+                if (e.getValue().equals(medoids.get(e.getKey()))) ++same;
+            }
+            System.out.format("%s%n    %d ms, %d of %d clustered documents " +
+                              "share their medoid with the reference%n",
+                              sparsifier.report(), ms, same, reference.size());
+        }
+    }
+
+    /** The medoid of each clustered document. */
+    static private Map<String, String> medoids(List<Vector> docs,
+                                               int dictSize,
+                                               Sparsifier sparsifier) {
+        final IndexClusterer clusterer = new IndexClusterer(
+            dictSize, new TextClusterOptions().blockSize(docs.size()));
+        final List<BaseCluster> clusters = new ArrayList<BaseCluster>();
+        for (Vector v : docs) {
+            final List<BaseCluster> block =
+                clusterer.add(sparsifier == null ? v : sparsifier.apply(v));
+            if (block != null) clusters.addAll(block);
+        }
+        clusters.addAll(clusterer.clusters());
+        final Map<String, String> medoids = new HashMap<String, String>();
+        for (BaseCluster c : clusters) {
+            final String medoid = ((NamedVector) c.medoid()).getName();
+            medoids.put(medoid, medoid);
+            for (Vector member : c.related()) {
+                medoids.put(((NamedVector) member).getName(), medoid);
+            }
+        }
+        return medoids;
+    }
+
+    /**
+     * Short and long documents about a few hundred topics: Most have a
+     * handful of terms, some have hundreds (long reviews). Weighted by
+     * tf-idf.
+     */
+    static private List<Vector> documents(int n, int dictSize) {
+        final Random random = new Random(42);
+        final int topics = 400;
+        final int[][] topicTerms = new int[topics][30];
+        for (int[] topic : topicTerms) {
+            for (int k = 0; k < topic.length; ++k) {
+                topic[k] = random.nextInt(dictSize);
+            }
+        }
+        final List<Vector> counts = new ArrayList<Vector>(n);
+        final int[] df = new int[dictSize];
+        for (int i = 0; i < n; ++i) {
+            final int[] topic = topicTerms[random.nextInt(topics)];
+            final Vector v = new SequentialAccessSparseVector(dictSize);
+            final int length = random.nextDouble() < .2
+                ? 100 + random.nextInt(400) : 3 + random.nextInt(20);
+            for (int k = 0; k < length; ++k) {
+                final int term = random.nextDouble() < .5
+                    ? topic[random.nextInt(topic.length)]
+                    : random.nextInt(dictSize);
+                if (v.get(term) == 0) ++df[term];
+                v.set(term, v.get(term) + 1);
+            }
+            counts.add(v);
+        }
+        final List<Vector> docs = new ArrayList<Vector>(n);
+        for (int i = 0; i < n; ++i) {
+            final Vector v = counts.get(i);
+            final Iterator<Element> it = v.iterateNonZero();
+            while (it.hasNext()) {
+                final Element e = it.next();
+                final double idf = Math.log((double) n / df[e.index()]);
+                e.set(Math.sqrt(e.get()) * idf);
+            }
+            docs.add(new NamedVector(v.normalize(), "doc" + i));
+        }
+        return docs;
+    }
+}